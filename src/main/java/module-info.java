@@ -11,5 +11,9 @@ open module mutable.alignment {
             mutablealignment.MATreeLikelihood,
             mutablealignment.BeagleMATreeLikelihood,
             mutablealignment.MutableAlignmentOperator,
-            mutablealignment.MutableAlignmentLogger;
+            mutablealignment.GibbsSequenceOperator,
+            mutablealignment.MutableAlignmentLogger,
+            mutablealignment.IndexedAlignmentLogger,
+            mutablealignment.AlignmentPosteriorSummariser,
+            mutablealignment.AlignmentLogSummariser;
 }
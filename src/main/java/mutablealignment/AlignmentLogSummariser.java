@@ -0,0 +1,580 @@
+package mutablealignment;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.GZIPInputStream;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.inference.Runnable;
+
+@Description("Summarises sampled alignments in a log file: MAP alignment, posterior support of each character "
+		+ "and credible sets. The log is streamed in batches of samples, each of which is counted in parallel "
+		+ "over blocks of taxa, so memory use does not depend on the length of the chain.")
+public class AlignmentLogSummariser extends Runnable {
+	final public Input<String> logInput = new Input<>("log", "log file with a column per taxon as written by MutableAlignment, "
+			+ "or a column per character as written by MutableAlignmentLogger, or a sequenceFile of MutableAlignmentLogger "
+			+ "(may be gzipped)", Validate.REQUIRED);
+	final public Input<String> outInput = new Input<>("out", "file to write the summary to", Validate.REQUIRED);
+	final public Input<Integer> burninInput = new Input<>("burnin", "percentage of samples to discard as burn-in. "
+			+ "This takes an extra pass over the log to count samples, which burninSamples avoids", 10);
+	final public Input<Integer> burninSamplesInput = new Input<>("burninSamples", "number of samples to discard as burn-in, "
+			+ "so that the log is read only once; -1 to use burnin instead", -1);
+	final public Input<Double> credibleSetInput = new Input<>("credibleSet", "percentage of posterior mass covered by credible sets", 95.0);
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads to use, 0 for all processors", 0);
+	final public Input<Integer> batchSizeInput = new Input<>("batchSize", "kilobytes of samples read before counting them "
+			+ "(at least one sample is read)", 64 * 1024);
+	final public Input<String> taxaInput = new Input<>("taxa", "comma separated names of the taxa, in the order of their columns, "
+			+ "so that the alignment columns are found from the header alone. Otherwise they are guessed from the header and "
+			+ "the first sample, which can go wrong when taxon names end in digits");
+	final public Input<Integer> blockSizeInput = new Input<>("blockSize", "number of taxa counted by one task", 8);
+
+	/** characters of one taxon: a dictionary of the values seen, and a count per site and symbol **/
+	private static class TaxonCounts {
+		// character or code -> symbol, -1 if not seen yet
+		int [] valueToSymbol = new int[0];
+		int [] symbolToValue = new int[4];
+		int symbolCount;
+		// site-major, stride counts per site
+		int [] counts;
+		int stride = 4;
+
+		TaxonCounts(int siteCount) {
+			counts = new int[siteCount * stride];
+		}
+
+		void add(int siteNr, int value) {
+			int symbol = value < valueToSymbol.length ? valueToSymbol[value] : -1;
+			if (symbol < 0) {
+				symbol = addSymbol(value);
+			}
+			counts[siteNr * stride + symbol]++;
+		}
+
+		private int addSymbol(int value) {
+			if (value < 0) {
+				throw new IllegalArgumentException("Cannot count negative code " + value);
+			}
+			if (value >= valueToSymbol.length) {
+				int oldLength = valueToSymbol.length;
+				valueToSymbol = Arrays.copyOf(valueToSymbol, Math.max(value + 1, oldLength * 2));
+				Arrays.fill(valueToSymbol, oldLength, valueToSymbol.length, -1);
+			}
+			if (symbolCount == stride) {
+				int siteCount = counts.length / stride;
+				int [] newCounts = new int[siteCount * stride * 2];
+				for (int j = 0; j < siteCount; j++) {
+					System.arraycopy(counts, j * stride, newCounts, j * stride * 2, stride);
+				}
+				counts = newCounts;
+				stride *= 2;
+				symbolToValue = Arrays.copyOf(symbolToValue, stride);
+			}
+			valueToSymbol[value] = symbolCount;
+			symbolToValue[symbolCount] = value;
+			return symbolCount++;
+		}
+	}
+
+	private interface RangeAction {
+		void run(int from, int to);
+	}
+
+	/** runs action on [from,to) in parallel, splitting until ranges are at most grain long **/
+	private static class RangeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final RangeAction action;
+		private final int from, to, grain;
+
+		RangeTask(RangeAction action, int from, int to, int grain) {
+			this.action = action;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				action.run(from, to);
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new RangeTask(action, from, mid, grain), new RangeTask(action, mid, to, grain));
+			}
+		}
+	}
+
+	// true if the log has a column per taxon holding its sequence, false for a column per character
+	private boolean isSequenceLog;
+	private List<String> taxaNames;
+	// sequence log: column of each taxon; otherwise column of the first site of each taxon, in increasing order
+	private int [] taxonColumn;
+	private int siteCount;
+	private TaxonCounts [] taxonCounts;
+	private int sampleCount;
+	private int burninCount;
+
+	@Override
+	public void initAndValidate() {
+		if (burninInput.get() < 0 || burninInput.get() >= 100) {
+			throw new IllegalArgumentException("burnin should be a percentage between 0 and 100");
+		}
+		if (credibleSetInput.get() <= 0 || credibleSetInput.get() > 100) {
+			throw new IllegalArgumentException("credibleSet should be a percentage between 0 and 100");
+		}
+		if (burninSamplesInput.get() < -1) {
+			throw new IllegalArgumentException("burninSamples should be a number of samples, or -1 to use burnin");
+		}
+		if (batchSizeInput.get() < 1 || blockSizeInput.get() < 1) {
+			throw new IllegalArgumentException("batchSize and blockSize should be at least 1");
+		}
+	}
+
+	@Override
+	public void run() throws Exception {
+		if (burninSamplesInput.get() >= 0) {
+			burninCount = burninSamplesInput.get();
+		} else {
+			burninCount = (int) ((long) countSamples() * burninInput.get() / 100);
+		}
+		sampleCount = 0;
+		taxaNames = null;
+		int threads = threadsInput.get() > 0 ? threadsInput.get() : Runtime.getRuntime().availableProcessors();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try (BufferedReader in = open()) {
+			String [] header = null;
+			long batchChars = batchSizeInput.get() * 1024L;
+			List<String> lines = new ArrayList<>();
+			long lineChars = 0;
+			int skipped = 0;
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				if (header == null) {
+					header = line.split("\t");
+					continue;
+				}
+				if (skipped < burninCount) {
+					skipped++;
+					continue;
+				}
+				if (taxaNames == null) {
+					initLayout(header, line);
+				}
+				lines.add(line);
+				lineChars += line.length();
+				if (lineChars >= batchChars) {
+					count(pool, lines);
+					lines.clear();
+					lineChars = 0;
+				}
+			}
+			count(pool, lines);
+		} finally {
+			pool.shutdown();
+		}
+		if (sampleCount == 0) {
+			throw new IllegalArgumentException("No samples left in " + logInput.get() + " after burn-in");
+		}
+		write();
+		Log.info.println("Summarised " + sampleCount + " samples of " + taxaNames.size() + " taxa x " + siteCount
+				+ " sites to " + outInput.get());
+	}
+
+	private BufferedReader open() throws IOException {
+		return new BufferedReader(new InputStreamReader(openStream(), StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	private InputStream openStream() throws IOException {
+		InputStream in = new FileInputStream(logInput.get());
+		if (logInput.get().endsWith(".gz")) {
+			in = new GZIPInputStream(in, 1 << 16);
+		}
+		return in;
+	}
+
+	/** number of samples in the log, including burn-in, counted from the bytes without decoding lines **/
+	private int countSamples() throws IOException {
+		int count = 0;
+		try (InputStream in = openStream()) {
+			byte [] buffer = new byte[1 << 16];
+			// previous byte, which starts a line if it is a line end
+			byte previous = '\n';
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				for (int k = 0; k < n; k++) {
+					byte b = buffer[k];
+					if (previous == '\n' && b != '\n' && b != '\r' && b != '#') {
+						count++;
+					}
+					previous = b == '\r' ? (byte) '\n' : b;
+				}
+			}
+		}
+		// first line is the header
+		return Math.max(count - 1, 0);
+	}
+
+	/**
+	 * Find the alignment columns. With taxa given, a column named after a taxon holds
+	 * its sequence, and otherwise columns named after the taxon followed by 0, 1, ...
+	 * hold its codes. Without taxa, a column per character shows up as runs of columns
+	 * named taxon0, taxon1, ... holding codes, at least two runs of the same length; otherwise
+	 * columns that do not hold numbers are taken to hold a sequence, or if there are none,
+	 * the columns of digits that most often have the same length, as for binary data.
+	 */
+	private void initLayout(String [] header, String firstSample) {
+		String [] values = firstSample.split("\t");
+		taxaNames = new ArrayList<>();
+		List<Integer> columns = new ArrayList<>();
+		if (taxaInput.get() != null) {
+			findTaxa(header, values, columns);
+		} else {
+			findCharacterRuns(header, values, columns);
+			if (taxaNames.size() < 2) {
+				// a single run is more likely a sequence log with taxa named x0, x1, ...
+				taxaNames.clear();
+				columns.clear();
+			}
+			isSequenceLog = taxaNames.isEmpty();
+			if (isSequenceLog) {
+				findSequences(header, values, columns);
+			}
+		}
+		if (taxaNames.isEmpty()) {
+			throw new IllegalArgumentException("Could not find an alignment in " + logInput.get());
+		}
+		taxonColumn = columns.stream().mapToInt(Integer::intValue).toArray();
+		taxonCounts = new TaxonCounts[taxaNames.size()];
+		for (int i = 0; i < taxonCounts.length; i++) {
+			taxonCounts[i] = new TaxonCounts(siteCount);
+		}
+	}
+
+	/** columns of the taxa given by the taxa input, from the header alone **/
+	private void findTaxa(String [] header, String [] values, List<Integer> columns) {
+		List<String> headerNames = Arrays.asList(header);
+		String [] taxa = taxaInput.get().trim().split("\\s*,\\s*");
+		isSequenceLog = headerNames.contains(taxa[0]);
+		for (String taxon : taxa) {
+			int c = headerNames.indexOf(isSequenceLog ? taxon : taxon + "0");
+			if (c < 0) {
+				throw new IllegalArgumentException("Taxon " + taxon + " has no " + (isSequenceLog ? "column" : "column " + taxon + "0")
+						+ " in " + logInput.get());
+			}
+			int sites = 1;
+			if (isSequenceLog) {
+				sites = c < values.length ? values[c].length() : 0;
+			} else {
+				while (c + sites < header.length && header[c + sites].equals(taxon + sites)) {
+					sites++;
+				}
+			}
+			if (!taxaNames.isEmpty() && sites != siteCount) {
+				throw new IllegalArgumentException("Taxon " + taxon + " has " + sites + " sites but taxon "
+						+ taxaNames.get(0) + " has " + siteCount);
+			}
+			if (!columns.isEmpty() && c < columns.get(columns.size() - 1)) {
+				throw new IllegalArgumentException("Taxa should be given in the order of their columns, but " + taxon
+						+ " comes before " + taxaNames.get(taxaNames.size() - 1));
+			}
+			taxaNames.add(taxon);
+			columns.add(c);
+			siteCount = sites;
+		}
+	}
+
+	/** runs of columns named taxon0, taxon1, ... holding codes, all of the length of the first run **/
+	private void findCharacterRuns(String [] header, String [] values, List<Integer> columns) {
+		for (int c = 0; c < header.length; c++) {
+			if (header[c].endsWith("0") && c < values.length && isCode(values[c])) {
+				String taxon = header[c].substring(0, header[c].length() - 1);
+				int sites = 1;
+				while (c + sites < header.length && header[c + sites].equals(taxon + sites)
+						&& c + sites < values.length && isCode(values[c + sites])) {
+					sites++;
+				}
+				if (sites > 1 && (taxaNames.isEmpty() || sites == siteCount)) {
+					taxaNames.add(taxon);
+					columns.add(c);
+					siteCount = sites;
+					c += sites - 1;
+				}
+			}
+		}
+	}
+
+	/** columns holding a sequence, skipping the first column, which holds the sample number **/
+	private void findSequences(String [] header, String [] values, List<Integer> columns) {
+		int columnCount = Math.min(header.length, values.length);
+		// sites: length of the first sequence that is not a number, or else the most common length of digits
+		int sites = -1;
+		Map<Integer, Integer> lengthCounts = new HashMap<>();
+		for (int c = 1; c < columnCount; c++) {
+			if (!isNumber(values[c])) {
+				sites = values[c].length();
+				break;
+			}
+			if (isCode(values[c])) {
+				lengthCounts.merge(values[c].length(), 1, Integer::sum);
+			}
+		}
+		if (sites < 0) {
+			int best = 0;
+			for (Map.Entry<Integer, Integer> entry : lengthCounts.entrySet()) {
+				if (entry.getValue() > best || entry.getValue() == best && entry.getKey() > sites) {
+					sites = entry.getKey();
+					best = entry.getValue();
+				}
+			}
+		}
+		for (int c = 1; c < columnCount; c++) {
+			boolean isDigits = isCode(values[c]);
+			if (!isNumber(values[c]) || isDigits && values[c].length() == sites) {
+				if (values[c].length() != sites) {
+					throw new IllegalArgumentException("Sequence of " + header[c] + " has length " + values[c].length()
+							+ " but sequence of " + taxaNames.get(0) + " has length " + sites);
+				}
+				taxaNames.add(header[c]);
+				columns.add(c);
+			}
+		}
+		siteCount = sites;
+	}
+
+	private static boolean isCode(String value) {
+		return !value.isEmpty() && value.chars().allMatch(c -> c >= '0' && c <= '9');
+	}
+
+	private static boolean isNumber(String value) {
+		try {
+			Double.parseDouble(value);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/** count the samples in lines, first finding where taxa start line by line, then counting taxon block by taxon block **/
+	private void count(ForkJoinPool pool, List<String> lines) {
+		int lineCount = lines.size();
+		if (lineCount == 0) {
+			return;
+		}
+		int [][] taxonStarts = new int[lineCount][];
+		pool.invoke(new RangeTask((from, to) -> {
+			for (int k = from; k < to; k++) {
+				taxonStarts[k] = findTaxa(lines.get(k));
+			}
+		}, 0, lineCount, 16));
+		pool.invoke(new RangeTask((from, to) -> {
+			for (int i = from; i < to; i++) {
+				for (int k = 0; k < lineCount; k++) {
+					countTaxon(i, lines.get(k), taxonStarts[k][i]);
+				}
+			}
+		}, 0, taxonCounts.length, blockSizeInput.get()));
+		sampleCount += lineCount;
+	}
+
+	/** position in line where the column (or first column) of each taxon starts **/
+	private int [] findTaxa(String line) {
+		int [] starts = new int[taxonColumn.length];
+		int c = 0, pos = 0;
+		for (int i = 0; i < taxonColumn.length; i++) {
+			while (c < taxonColumn[i]) {
+				int tab = line.indexOf('\t', pos);
+				if (tab < 0) {
+					throw new IllegalArgumentException("Sample starting with " + line.substring(0, Math.min(line.length(), 20))
+							+ " has " + (c + 1) + " columns but taxon " + taxaNames.get(i) + " is in column " + (taxonColumn[i] + 1));
+				}
+				pos = tab + 1;
+				c++;
+			}
+			starts[i] = pos;
+		}
+		return starts;
+	}
+
+	/** count the characters of taxon in the columns of line from start on **/
+	private void countTaxon(int taxonNr, String line, int start) {
+		TaxonCounts counts = taxonCounts[taxonNr];
+		if (isSequenceLog) {
+			int end = line.indexOf('\t', start);
+			int length = (end < 0 ? line.length() : end) - start;
+			if (length != siteCount) {
+				throw new IllegalArgumentException("Sequence of " + taxaNames.get(taxonNr) + " has length " + length
+						+ " but expected " + siteCount);
+			}
+			for (int j = 0; j < siteCount; j++) {
+				counts.add(j, line.charAt(start + j));
+			}
+		} else {
+			int pos = start;
+			for (int j = 0; j < siteCount; j++) {
+				if (pos > line.length()) {
+					throw new IllegalArgumentException("Sample starting with " + line.substring(0, Math.min(line.length(), 20))
+							+ " ends before character " + taxaNames.get(taxonNr) + j);
+				}
+				int from = pos, value = 0;
+				while (pos < line.length() && line.charAt(pos) != '\t') {
+					char c = line.charAt(pos++);
+					if (c < '0' || c > '9') {
+						int end = line.indexOf('\t', from);
+						throw new IllegalArgumentException("Character " + taxaNames.get(taxonNr) + j + " is not a code: "
+								+ line.substring(from, end < 0 ? line.length() : end));
+					}
+					value = value * 10 + c - '0';
+				}
+				// skip the tab
+				pos++;
+				counts.add(j, value);
+			}
+		}
+	}
+
+	public List<String> getTaxaNames() {
+		return taxaNames;
+	}
+
+	public int getSiteCount() {
+		return siteCount;
+	}
+
+	/** number of samples counted, after burn-in **/
+	public int getSampleCount() {
+		return sampleCount;
+	}
+
+	public int getBurninCount() {
+		return burninCount;
+	}
+
+	/** number of samples in which taxon has the given character (or code) at site **/
+	public int getCount(int taxonNr, int siteNr, int value) {
+		TaxonCounts counts = taxonCounts[taxonNr];
+		int symbol = value >= 0 && value < counts.valueToSymbol.length ? counts.valueToSymbol[value] : -1;
+		return symbol < 0 ? 0 : counts.counts[siteNr * counts.stride + symbol];
+	}
+
+	/** most frequent character (or code) of taxon at site **/
+	public int getMAP(int taxonNr, int siteNr) {
+		TaxonCounts counts = taxonCounts[taxonNr];
+		int offset = siteNr * counts.stride;
+		int best = 0;
+		for (int s = 1; s < counts.symbolCount; s++) {
+			if (counts.counts[offset + s] > counts.counts[offset + best]) {
+				best = s;
+			}
+		}
+		return counts.symbolToValue[best];
+	}
+
+	/** posterior support of the MAP character of taxon at site **/
+	public double getSupport(int taxonNr, int siteNr) {
+		return (double) getCount(taxonNr, siteNr, getMAP(taxonNr, siteNr)) / sampleCount;
+	}
+
+	/** smallest set of characters (or codes) of taxon at site covering credibleSet percent of samples, most frequent first **/
+	public int [] getCredibleSet(int taxonNr, int siteNr) {
+		TaxonCounts counts = taxonCounts[taxonNr];
+		int offset = siteNr * counts.stride;
+		Integer [] symbols = new Integer[counts.symbolCount];
+		for (int s = 0; s < symbols.length; s++) {
+			symbols[s] = s;
+		}
+		Arrays.sort(symbols, (a, b) -> counts.counts[offset + b] - counts.counts[offset + a]);
+		double required = credibleSetInput.get() / 100.0 * sampleCount;
+		int [] set = new int[symbols.length];
+		int size = 0, covered = 0;
+		while (covered < required - 1e-9 && size < symbols.length) {
+			covered += counts.counts[offset + symbols[size]];
+			set[size] = counts.symbolToValue[symbols[size]];
+			size++;
+		}
+		return Arrays.copyOf(set, size);
+	}
+
+	/**
+	 * Writes the MAP alignment as a line per taxon, followed by a line per character with
+	 * a MAP support below 1 with taxon, site (starting at 0), MAP support and credible set
+	 */
+	private void write() throws IOException {
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(outInput.get()), 1 << 16))) {
+			out.println("# " + sampleCount + " samples from " + logInput.get() + " after discarding " + burninCount + " as burn-in");
+			out.println("# MAP alignment");
+			StringBuilder b = new StringBuilder();
+			for (int i = 0; i < taxaNames.size(); i++) {
+				b.setLength(0);
+				b.append(taxaNames.get(i)).append('\t');
+				for (int j = 0; j < siteCount; j++) {
+					if (!isSequenceLog && j > 0) {
+						b.append(',');
+					}
+					appendValue(b, getMAP(i, j));
+				}
+				out.println(b);
+			}
+			out.println("# characters with MAP support below 1: taxon, site, MAP support, " + credibleSetInput.get() + "% credible set");
+			for (int j = 0; j < siteCount; j++) {
+				for (int i = 0; i < taxaNames.size(); i++) {
+					double support = getSupport(i, j);
+					if (support < 1) {
+						b.setLength(0);
+						b.append(taxaNames.get(i)).append('\t').append(j).append('\t').append(support).append('\t');
+						int [] set = getCredibleSet(i, j);
+						for (int k = 0; k < set.length; k++) {
+							if (k > 0) {
+								b.append(',');
+							}
+							appendValue(b, set[k]);
+						}
+						out.println(b);
+					}
+				}
+			}
+		}
+	}
+
+	private void appendValue(StringBuilder b, int value) {
+		if (isSequenceLog) {
+			b.append((char) value);
+		} else {
+			b.append(value);
+		}
+	}
+
+	/** usage: AlignmentLogSummariser -log file -out file [-burnin 10 | -burninSamples 1000] [-credibleSet 95] [-threads 0] [-taxa a,b,c] **/
+	public static void main(String[] args) throws Exception {
+		AlignmentLogSummariser summariser = new AlignmentLogSummariser();
+		if (args.length % 2 != 0) {
+			throw new IllegalArgumentException("Expected arguments as -name value pairs, e.g. -log alignment.log -out summary.txt");
+		}
+		for (int i = 0; i < args.length; i += 2) {
+			if (!args[i].startsWith("-")) {
+				throw new IllegalArgumentException("Expected argument name starting with '-' but got " + args[i]);
+			}
+			summariser.setInputValue(args[i].substring(1), args[i + 1]);
+		}
+		summariser.initAndValidate();
+		summariser.run();
+	}
+}
@@ -0,0 +1,363 @@
+package mutablealignment;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Loggable;
+import beast.base.evolution.datatype.DataType;
+import mutablealignment.MutableAlignment.EditListener;
+
+@Description("Summarises the posterior of a mutable alignment while sampling: counts states per character "
+		+ "and writes marginal probabilities and the MAP alignment at the end, instead of logging every sample")
+public class AlignmentPosteriorSummariser extends BEASTObject implements Loggable, EditListener {
+	final public Input<MutableAlignment> alignmentInput = new Input<>("alignment", "mutable alignment to be summarised", Validate.REQUIRED);
+	final public Input<String> fileInput = new Input<>("file", "file to write marginal probabilities and MAP alignment to", Validate.REQUIRED);
+	final public Input<Long> burninInput = new Input<>("burnin", "samples with a lower sample number are ignored", 0L);
+
+	private MutableAlignment alignment;
+	private int taxonCount;
+	private int siteCount;
+
+	// characters at the last counted sample
+	private PackedSiteStorage previous;
+	// sites edited by accepted proposals since the last counted sample
+	private final BitSet touchedSites = new BitSet();
+	private boolean allSitesTouched;
+	// number of samples counted so far
+	private int sampleCount;
+
+	// Counts are only kept for characters that changed, in the counts of their
+	// site, which is null while no character at the site changed
+	private SiteCounts [] siteCounts;
+
+	private int [] site;
+	private int [] previousSite;
+
+	@Override
+	public void initAndValidate() {
+		alignment = alignmentInput.get();
+		alignment.addEditListener(this);
+		taxonCount = alignment.getTaxonCount();
+		siteCount = alignment.getSiteCount();
+		site = new int[taxonCount];
+		previousSite = new int[taxonCount];
+		sampleCount = -1;
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		sampleCount = -1;
+	}
+
+	@Override
+	public void editsAccepted(EditJournal journal) {
+		if (sampleCount < 0 || allSitesTouched) {
+			return;
+		}
+		for (int i = 0; i < journal.size(); i++) {
+			switch (journal.getType(i)) {
+			case singleSite:
+			case allTaxa:
+				touchedSites.set(journal.getSiteNr(i));
+				break;
+			default:
+				allSitesTouched = true;
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		if (sample < burninInput.get()) {
+			return;
+		}
+		if (sampleCount < 0) {
+			start();
+			return;
+		}
+		// edits of the last proposal may not have been passed on yet
+		editsAccepted(alignment.getEditJournal());
+		SiteStorage storage = alignment.getStorage();
+		if (allSitesTouched) {
+			touchedSites.set(0, siteCount);
+		}
+		for (int j = touchedSites.nextSetBit(0); j >= 0; j = touchedSites.nextSetBit(j + 1)) {
+			storage.getSiteValuesBySite(j, site);
+			previous.getSiteValuesBySite(j, previousSite);
+			boolean changed = false;
+			for (int i = 0; i < taxonCount; i++) {
+				if (site[i] != previousSite[i]) {
+					count(j, i, previousSite[i]);
+					changed = true;
+				}
+			}
+			if (changed) {
+				previous.setSiteValuesBySite(j, site);
+			}
+		}
+		touchedSites.clear();
+		allSitesTouched = false;
+		sampleCount++;
+	}
+
+	/** first counted sample **/
+	private void start() {
+		SiteStorage storage = alignment.getStorage();
+		previous = new PackedSiteStorage(taxonCount, siteCount, alignment.getDataType().getStateCount());
+		for (int j = 0; j < siteCount; j++) {
+			storage.getSiteValuesBySite(j, site);
+			previous.setSiteValuesBySite(j, site);
+		}
+		siteCounts = new SiteCounts[siteCount];
+		touchedSites.clear();
+		allSitesTouched = false;
+		sampleCount = 1;
+	}
+
+	/**
+	 * Character of taxon at site is about to change from code, which it had in the samples
+	 * counted since it last changed. The count of the current code of a character is not
+	 * kept, since it follows from the sample count and the counts of the other codes.
+	 */
+	private void count(int siteNr, int taxonNr, int code) {
+		SiteCounts counts = siteCounts[siteNr];
+		if (counts == null) {
+			counts = siteCounts[siteNr] = new SiteCounts();
+		}
+		int row = counts.indexOf(taxonNr);
+		if (row < 0) {
+			row = counts.addTaxon(taxonNr);
+		}
+		int symbol = counts.symbolOf(code);
+		if (symbol < 0) {
+			symbol = counts.addSymbol(code);
+		}
+		counts.set(row, symbol, sampleCount - counts.sumExcept(row, symbol));
+	}
+
+	/**
+	 * Number of counted samples in which taxon has the given code at site,
+	 * taking the current character into account up to the last counted sample
+	 */
+	public int getCount(int taxonNr, int siteNr, int code) {
+		if (sampleCount <= 0) {
+			return 0;
+		}
+		int current = previous.getSiteValue(taxonNr, siteNr);
+		SiteCounts counts = siteCounts[siteNr];
+		int row = counts == null ? -1 : counts.indexOf(taxonNr);
+		if (row < 0) {
+			return code == current ? sampleCount : 0;
+		}
+		if (code == current) {
+			return sampleCount - counts.sumExcept(row, counts.symbolOf(current));
+		}
+		int symbol = counts.symbolOf(code);
+		return symbol < 0 ? 0 : counts.get(row, symbol);
+	}
+
+	/** codes taxon had at site in counted samples, in increasing order **/
+	private int [] getCodes(int taxonNr, int siteNr) {
+		int current = previous.getSiteValue(taxonNr, siteNr);
+		SiteCounts counts = siteCounts[siteNr];
+		int row = counts == null ? -1 : counts.indexOf(taxonNr);
+		if (row < 0) {
+			return new int[] {current};
+		}
+		int [] codes = new int[counts.symbolCount + 1];
+		int n = 0;
+		codes[n++] = current;
+		for (int s = 0; s < counts.symbolCount; s++) {
+			if (counts.codes[s] != current && counts.get(row, s) > 0) {
+				codes[n++] = counts.codes[s];
+			}
+		}
+		codes = Arrays.copyOf(codes, n);
+		Arrays.sort(codes);
+		return codes;
+	}
+
+	public int getSampleCount() {
+		return Math.max(sampleCount, 0);
+	}
+
+	/** most frequent code of taxon at site, the lowest code in case of ties **/
+	public int getMAPCode(int taxonNr, int siteNr) {
+		int best = 0, bestCount = -1;
+		for (int code : getCodes(taxonNr, siteNr)) {
+			int count = getCount(taxonNr, siteNr, code);
+			if (count > bestCount) {
+				best = code;
+				bestCount = count;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Writes the MAP alignment as a line per taxon, followed by marginal probabilities
+	 * for characters that were not the same in all samples, as a line per character
+	 * with taxon, site (starting at 0) and probability per character.
+	 */
+	@Override
+	public void close(PrintStream out) {
+		DataType dataType = alignment.getDataType();
+		List<String> taxaNames = alignment.getTaxaNames();
+		try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(fileInput.get()), 1 << 16))) {
+			writer.println("# " + getSampleCount() + " samples");
+			writer.println("# MAP alignment");
+			if (sampleCount > 0) {
+				CharacterTable characters = new CharacterTable(dataType);
+				int [] sequence = new int[siteCount];
+				for (int i = 0; i < taxonCount; i++) {
+					for (int j = 0; j < siteCount; j++) {
+						sequence[j] = getMAPCode(i, j);
+					}
+					characters.format(sequence, siteCount);
+					writer.print(taxaNames.get(i));
+					writer.print('\t');
+					writer.println(new String(characters.getRow(), 0, characters.getRowLength(), StandardCharsets.UTF_8));
+				}
+				writer.println("# marginal probabilities of characters that changed");
+				for (int j = 0; j < siteCount; j++) {
+					SiteCounts counts = siteCounts[j];
+					for (int row = 0; counts != null && row < counts.size; row++) {
+						int i = counts.taxa[row];
+						int [] codes = getCodes(i, j);
+						if (codes.length > 1) {
+							StringBuilder b = new StringBuilder();
+							for (int code : codes) {
+								b.append('\t').append(dataType.getCharacter(code)).append('=').append((double) getCount(i, j, code) / sampleCount);
+							}
+							writer.println(taxaNames.get(i) + "\t" + j + b);
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not write " + fileInput.get(), e);
+		}
+	}
+
+	/**
+	 * Counts of the characters at a site that changed: a row per taxon, in increasing
+	 * order of taxa, with a count per symbol of a dictionary of the codes seen at the site.
+	 * Counts are unsigned shorts until one does not fit.
+	 */
+	private static class SiteCounts {
+		int [] taxa = new int[2];
+		int size;
+		// symbol -> code
+		int [] codes = new int[2];
+		int symbolCount;
+		int stride = 2;
+		char [] counts = new char[taxa.length * stride];
+		// replaces counts once a count does not fit in a char
+		int [] wideCounts;
+
+		int indexOf(int taxonNr) {
+			int row = Arrays.binarySearch(taxa, 0, size, taxonNr);
+			return row < 0 ? -1 : row;
+		}
+
+		int symbolOf(int code) {
+			for (int s = 0; s < symbolCount; s++) {
+				if (codes[s] == code) {
+					return s;
+				}
+			}
+			return -1;
+		}
+
+		int get(int row, int symbol) {
+			int k = row * stride + symbol;
+			return wideCounts != null ? wideCounts[k] : counts[k];
+		}
+
+		void set(int row, int symbol, int value) {
+			int k = row * stride + symbol;
+			if (wideCounts == null && value > Character.MAX_VALUE) {
+				wideCounts = new int[counts.length];
+				for (int m = 0; m < counts.length; m++) {
+					wideCounts[m] = counts[m];
+				}
+				counts = null;
+			}
+			if (wideCounts != null) {
+				wideCounts[k] = value;
+			} else {
+				counts[k] = (char) value;
+			}
+		}
+
+		/** sum of the counts of row, leaving out symbol, which may be -1 **/
+		int sumExcept(int row, int symbol) {
+			int sum = 0;
+			for (int s = 0; s < symbolCount; s++) {
+				if (s != symbol) {
+					sum += get(row, s);
+				}
+			}
+			return sum;
+		}
+
+		/** insert a row of zero counts for taxon, which should not have one yet **/
+		int addTaxon(int taxonNr) {
+			int row = -Arrays.binarySearch(taxa, 0, size, taxonNr) - 1;
+			if (size == taxa.length) {
+				taxa = Arrays.copyOf(taxa, size * 2);
+				resize(taxa.length * stride);
+			}
+			System.arraycopy(taxa, row, taxa, row + 1, size - row);
+			taxa[row] = taxonNr;
+			Object array = wideCounts != null ? wideCounts : counts;
+			System.arraycopy(array, row * stride, array, (row + 1) * stride, (size - row) * stride);
+			for (int s = 0; s < stride; s++) {
+				set(row, s, 0);
+			}
+			size++;
+			return row;
+		}
+
+		int addSymbol(int code) {
+			if (symbolCount == stride) {
+				int newStride = stride * 2;
+				Object array = wideCounts != null ? wideCounts : counts;
+				Object newArray = wideCounts != null ? new int[taxa.length * newStride] : new char[taxa.length * newStride];
+				for (int row = 0; row < size; row++) {
+					System.arraycopy(array, row * stride, newArray, row * newStride, stride);
+				}
+				if (wideCounts != null) {
+					wideCounts = (int []) newArray;
+				} else {
+					counts = (char []) newArray;
+				}
+				stride = newStride;
+				codes = Arrays.copyOf(codes, stride);
+			}
+			codes[symbolCount] = code;
+			return symbolCount++;
+		}
+
+		private void resize(int length) {
+			if (wideCounts != null) {
+				wideCounts = Arrays.copyOf(wideCounts, length);
+			} else {
+				counts = Arrays.copyOf(counts, length);
+			}
+		}
+	}
+}
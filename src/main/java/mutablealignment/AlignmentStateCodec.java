@@ -0,0 +1,203 @@
+package mutablealignment;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact binary format for the characters of a MutableAlignment, used for
+ * storing the state in binary form.
+ *
+ * After a header with the taxon names and the dictionary of codes that occur,
+ * characters are written site by site with as few bits per character as the
+ * dictionary requires, and the whole is deflated. Both directions stream
+ * through the storage a site at a time, so no text representation of the
+ * alignment is built.
+ **/
+public class AlignmentStateCodec {
+	/** 'MALS' **/
+	public final static int MAGIC = 0x4D414C53;
+	public final static int VERSION = 1;
+
+	/** write characters in storage for the given taxa (in storage order) to out, which is not closed **/
+	public static void write(SiteStorage storage, List<String> taxaNames, OutputStream out) throws IOException {
+		int taxonCount = storage.getTaxonCount();
+		int siteCount = storage.getSiteCount();
+		int [] site = new int[taxonCount];
+
+		// dictionary of codes that occur
+		BitSet codes = new BitSet();
+		for (int j = 0; j < siteCount; j++) {
+			storage.getSiteValuesBySite(j, site);
+			for (int code : site) {
+				codes.set(code);
+			}
+		}
+		int [] symbolToCode = codes.stream().toArray();
+		int [] codeToSymbol = new int[codes.length()];
+		for (int i = 0; i < symbolToCode.length; i++) {
+			codeToSymbol[symbolToCode[i]] = i;
+		}
+		int bits = bitsFor(symbolToCode.length);
+
+		DeflaterOutputStream deflater = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED), 1 << 16);
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(deflater, 1 << 16));
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt(taxonCount);
+		data.writeInt(siteCount);
+		for (int i = 0; i < taxonCount; i++) {
+			data.writeUTF(taxaNames.get(i));
+		}
+		data.writeInt(symbolToCode.length);
+		for (int code : symbolToCode) {
+			data.writeInt(code);
+		}
+		data.writeByte(bits);
+
+		long buffer = 0;
+		int bufferBits = 0;
+		for (int j = 0; j < siteCount; j++) {
+			storage.getSiteValuesBySite(j, site);
+			for (int i = 0; i < taxonCount; i++) {
+				buffer |= (long) codeToSymbol[site[i]] << bufferBits;
+				bufferBits += bits;
+				while (bufferBits >= 8) {
+					data.write((int) buffer);
+					buffer >>>= 8;
+					bufferBits -= 8;
+				}
+			}
+		}
+		if (bufferBits > 0) {
+			data.write((int) buffer);
+		}
+		data.flush();
+		deflater.finish();
+	}
+
+	/**
+	 * Read characters written by write() into storage, matching taxa by name
+	 * @param taxaNames names of taxa in storage order
+	 * @throws IOException if the data is not in this format or does not fit the storage
+	 */
+	public static void read(InputStream in, SiteStorage storage, List<String> taxaNames) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(new InflaterInputStream(in, new Inflater(), 1 << 16), 1 << 16));
+		if (data.readInt() != MAGIC) {
+			throw new IOException("Not a binary alignment state");
+		}
+		int version = data.readInt();
+		if (version != VERSION) {
+			throw new IOException("Cannot read binary alignment state of version " + version);
+		}
+		int taxonCount = data.readInt();
+		int siteCount = data.readInt();
+		if (taxonCount != storage.getTaxonCount() || siteCount != storage.getSiteCount()) {
+			throw new IOException("State contains " + taxonCount + " taxa x " + siteCount + " sites" +
+					" but expected " + storage.getTaxonCount() + " taxa x " + storage.getSiteCount() + " sites");
+		}
+		Map<String, Integer> taxonIndex = new HashMap<>();
+		for (int i = 0; i < taxaNames.size(); i++) {
+			taxonIndex.putIfAbsent(taxaNames.get(i), i);
+		}
+		// taxon in state -> taxon in storage
+		int [] taxonMap = new int[taxonCount];
+		for (int i = 0; i < taxonCount; i++) {
+			String taxon = data.readUTF();
+			taxonMap[i] = taxonIndex.getOrDefault(taxon, -1);
+			if (taxonMap[i] < 0) {
+				throw new IOException("Taxon " + taxon + " in state is not in the alignment");
+			}
+		}
+		int [] symbolToCode = new int[data.readInt()];
+		for (int i = 0; i < symbolToCode.length; i++) {
+			symbolToCode[i] = data.readInt();
+		}
+		int bits = data.readByte();
+		long mask = (1L << bits) - 1;
+
+		int [] site = new int[taxonCount];
+		long buffer = 0;
+		int bufferBits = 0;
+		for (int j = 0; j < siteCount; j++) {
+			for (int i = 0; i < taxonCount; i++) {
+				while (bufferBits < bits) {
+					buffer |= (long) data.readUnsignedByte() << bufferBits;
+					bufferBits += 8;
+				}
+				int symbol = (int) (buffer & mask);
+				buffer >>>= bits;
+				bufferBits -= bits;
+				if (symbol >= symbolToCode.length) {
+					throw new IOException("Corrupt binary alignment state at site " + j);
+				}
+				site[taxonMap[i]] = symbolToCode[symbol];
+			}
+			storage.setSiteValuesBySite(j, site);
+		}
+	}
+
+	private static int bitsFor(int symbolCount) {
+		return Math.max(1, 32 - Integer.numberOfLeadingZeros(symbolCount - 1));
+	}
+
+	/** write() as base64, appended to b **/
+	public static void writeBase64(SiteStorage storage, List<String> taxaNames, StringBuilder b) {
+		try (OutputStream out = Base64.getEncoder().wrap(new OutputStream() {
+				@Override
+				public void write(int c) {
+					b.append((char) c);
+				}
+
+				@Override
+				public void write(byte [] bytes, int offset, int length) {
+					for (int i = offset; i < offset + length; i++) {
+						b.append((char) bytes[i]);
+					}
+				}
+			})) {
+			write(storage, taxaNames, out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** read() from base64 text, ignoring white space and line breaks **/
+	public static void readBase64(CharSequence str, SiteStorage storage, List<String> taxaNames) throws IOException {
+		InputStream in = new InputStream() {
+			int pos = 0;
+
+			@Override
+			public int read() {
+				return pos < str.length() ? str.charAt(pos++) : -1;
+			}
+
+			@Override
+			public int read(byte [] bytes, int offset, int length) {
+				if (pos >= str.length()) {
+					return -1;
+				}
+				int n = Math.min(length, str.length() - pos);
+				for (int i = 0; i < n; i++) {
+					bytes[offset + i] = (byte) str.charAt(pos++);
+				}
+				return n;
+			}
+		};
+		read(Base64.getMimeDecoder().wrap(in), storage, taxaNames);
+	}
+}
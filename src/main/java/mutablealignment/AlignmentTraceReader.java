@@ -0,0 +1,187 @@
+package mutablealignment;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads binary alignment traces written by AlignmentTraceWriter, one sample at a time.
+ * After next() returns true, getStorage() holds the alignment of sample getSample().
+ * A record cut short at the end of the file, as left by a run that stopped while
+ * writing, ends the trace.
+ **/
+public class AlignmentTraceReader implements AutoCloseable {
+	private final DataInputStream in;
+	private final int taxonCount;
+	private final int siteCount;
+	private final int keyframeInterval;
+	private final List<String> taxaNames;
+	private final IntArraySiteStorage storage;
+	private final int [][] sitePatterns;
+	private final CountingInputStream counter;
+	private long sample = -1;
+	private boolean hasKeyframe = false;
+	// bytes up to the end of the last complete record
+	private long completeLength;
+
+	public AlignmentTraceReader(File file) throws IOException {
+		counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		in = new DataInputStream(counter);
+		if (in.readInt() != AlignmentTraceWriter.MAGIC) {
+			in.close();
+			throw new IOException("File " + file.getPath() + " is not an alignment trace");
+		}
+		int version = in.readInt();
+		if (version != AlignmentTraceWriter.VERSION) {
+			in.close();
+			throw new IOException("Cannot read alignment trace of version " + version);
+		}
+		taxonCount = in.readInt();
+		siteCount = in.readInt();
+		keyframeInterval = in.readInt();
+		taxaNames = new ArrayList<>();
+		for (int i = 0; i < taxonCount; i++) {
+			taxaNames.add(in.readUTF());
+		}
+		sitePatterns = new int[siteCount][taxonCount];
+		storage = new IntArraySiteStorage(sitePatterns, taxonCount);
+		completeLength = counter.count;
+	}
+
+	public List<String> getTaxaNames() {
+		return taxaNames;
+	}
+
+	public int getKeyframeInterval() {
+		return keyframeInterval;
+	}
+
+	/** length of the file up to the end of the last sample read, or of the header before the first **/
+	public long getCompleteLength() {
+		return completeLength;
+	}
+
+	/** sample number of the current sample, -1 before the first call to next() **/
+	public long getSample() {
+		return sample;
+	}
+
+	/** alignment of the current sample; this is updated in place by next() **/
+	public SiteStorage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Advance to the next sample
+	 * @return false if there are no more samples
+	 */
+	public boolean next() throws IOException {
+		try {
+			readRecord(in.readByte());
+		} catch (EOFException e) {
+			// end of the trace, or a record cut short
+			return false;
+		}
+		completeLength = counter.count;
+		return true;
+	}
+
+	private void readRecord(int type) throws IOException {
+		sample = in.readLong();
+		switch (type) {
+		case AlignmentTraceWriter.KEYFRAME:
+			for (int j = 0; j < siteCount; j++) {
+				int [] site = sitePatterns[j];
+				for (int i = 0; i < taxonCount; i++) {
+					site[i] = readVarInt();
+				}
+			}
+			hasKeyframe = true;
+			break;
+		case AlignmentTraceWriter.DELTA:
+			if (!hasKeyframe) {
+				throw new IOException("Alignment trace does not start with a keyframe");
+			}
+			int changeCount = readVarInt();
+			int cell = 0;
+			for (int k = 0; k < changeCount; k++) {
+				cell += readVarInt();
+				sitePatterns[cell / taxonCount][cell % taxonCount] = readVarInt();
+			}
+			break;
+		default:
+			throw new IOException("Corrupt alignment trace after sample " + sample);
+		}
+	}
+
+	/**
+	 * Advance to the given sample
+	 * @return false if the trace has no such sample after the current one
+	 */
+	public boolean seek(long target) throws IOException {
+		while (sample != target) {
+			if (!next()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private int readVarInt() throws IOException {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	/** counts bytes read through it **/
+	private static class CountingInputStream extends FilterInputStream {
+		long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte [] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package mutablealignment;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import mutablealignment.MutableAlignment.EditListener;
+
+/**
+ * Writes samples of an alignment to a binary trace file as a full keyframe
+ * every keyframeInterval samples, and only the cells that changed since the
+ * previous sample otherwise. AlignmentTraceReader rebuilds samples.
+ *
+ * Deltas only look at the sites and taxa of edits passed to editsAccepted(),
+ * so the writer should be registered as edit listener of the alignment, and
+ * get the journal of the last proposal before write().
+ *
+ * File layout, all integers big-endian:
+ * header: MAGIC, VERSION, taxon count, site count, keyframe interval, taxon names (UTF);
+ * then per sample: record type (byte), sample (long), followed by
+ * for KEYFRAME all cells site by site as var-ints, or
+ * for DELTA the number of changes, then per change the distance in cells
+ * (site * taxonCount + taxon) to the previous change and the new value, as var-ints.
+ **/
+public class AlignmentTraceWriter implements EditListener {
+	/** 'MALT' **/
+	public final static int MAGIC = 0x4D414C54;
+	public final static int VERSION = 1;
+	public final static byte KEYFRAME = 1;
+	public final static byte DELTA = 2;
+
+	private final DataOutputStream out;
+	private final int taxonCount;
+	private final int siteCount;
+	private final int keyframeInterval;
+	private int samplesSinceKeyframe;
+
+	// alignment as of the previous sample
+	private final PackedSiteStorage previous;
+	private final int [] site;
+	private final int [] previousSite;
+	private final int [] sequence;
+	private final int [] previousSequence;
+	// sites and taxa edited since the previous sample
+	private final BitSet touchedSites = new BitSet();
+	private final BitSet touchedTaxa = new BitSet();
+	private boolean allTouched;
+	// changes found in the current sample, as cell index (high bits) and value (low bits)
+	private long [] changes = new long[16];
+	private int changeCount;
+
+	/**
+	 * @param append if true and the file holds a trace of the same taxa and sites, samples
+	 * are added to the end of the trace, e.g. when resuming a run; otherwise the file is overwritten
+	 */
+	public AlignmentTraceWriter(File file, List<String> taxaNames, int siteCount, int stateCount, int keyframeInterval,
+			boolean append) throws IOException {
+		this.taxonCount = taxaNames.size();
+		this.siteCount = siteCount;
+		this.keyframeInterval = keyframeInterval;
+		previous = new PackedSiteStorage(taxonCount, siteCount, stateCount);
+		site = new int[taxonCount];
+		previousSite = new int[taxonCount];
+		sequence = new int[siteCount];
+		previousSequence = new int[siteCount];
+		// the first sample written is a keyframe, also when appending
+		samplesSinceKeyframe = keyframeInterval;
+
+		if (append && file.length() > 0) {
+			long length;
+			try (AlignmentTraceReader reader = new AlignmentTraceReader(file)) {
+				if (!reader.getTaxaNames().equals(taxaNames) || reader.getStorage().getSiteCount() != siteCount) {
+					throw new IOException("File " + file.getPath() + " holds a trace of other taxa or sites, so it cannot be appended to");
+				}
+				while (reader.next()) {
+				}
+				length = reader.getCompleteLength();
+			}
+			// drop a record that was cut short when the earlier run stopped
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				channel.truncate(length);
+			}
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16));
+			return;
+		}
+
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(taxonCount);
+		out.writeInt(siteCount);
+		out.writeInt(keyframeInterval);
+		for (String taxon : taxaNames) {
+			out.writeUTF(taxon);
+		}
+	}
+
+	/** records sites and taxa of the edits, to be compared with the previous sample by the next delta **/
+	@Override
+	public void editsAccepted(EditJournal journal) {
+		if (allTouched) {
+			return;
+		}
+		for (int i = 0; i < journal.size(); i++) {
+			switch (journal.getType(i)) {
+			case singleSite:
+			case allTaxa:
+				touchedSites.set(journal.getSiteNr(i));
+				break;
+			case allSites:
+				touchedTaxa.set(journal.getTaxonNr(i));
+				break;
+			default:
+				allTouched = true;
+				return;
+			}
+		}
+	}
+
+	/** write the current state of storage as the given sample **/
+	public void write(long sample, SiteStorage storage) throws IOException {
+		if (samplesSinceKeyframe >= keyframeInterval) {
+			writeKeyframe(sample, storage);
+			samplesSinceKeyframe = 1;
+		} else {
+			writeDelta(sample, storage);
+			samplesSinceKeyframe++;
+		}
+		touchedSites.clear();
+		touchedTaxa.clear();
+		allTouched = false;
+	}
+
+	private void writeKeyframe(long sample, SiteStorage storage) throws IOException {
+		out.writeByte(KEYFRAME);
+		out.writeLong(sample);
+		for (int j = 0; j < siteCount; j++) {
+			storage.getSiteValuesBySite(j, site);
+			for (int i = 0; i < taxonCount; i++) {
+				writeVarInt(site[i]);
+			}
+			previous.setSiteValuesBySite(j, site);
+		}
+	}
+
+	private void writeDelta(long sample, SiteStorage storage) throws IOException {
+		changeCount = 0;
+		if (allTouched) {
+			touchedSites.set(0, siteCount);
+			touchedTaxa.clear();
+		}
+		for (int j = touchedSites.nextSetBit(0); j >= 0; j = touchedSites.nextSetBit(j + 1)) {
+			storage.getSiteValuesBySite(j, site);
+			previous.getSiteValuesBySite(j, previousSite);
+			boolean changed = false;
+			for (int i = 0; i < taxonCount; i++) {
+				if (site[i] != previousSite[i]) {
+					addChange(j * taxonCount + i, site[i]);
+					changed = true;
+				}
+			}
+			if (changed) {
+				previous.setSiteValuesBySite(j, site);
+			}
+		}
+		// cells of touched sites are up to date in previous, so are not found again here
+		for (int i = touchedTaxa.nextSetBit(0); i >= 0; i = touchedTaxa.nextSetBit(i + 1)) {
+			storage.getSiteValuesByTaxon(i, sequence);
+			previous.getSiteValuesByTaxon(i, previousSequence);
+			boolean changed = false;
+			for (int j = 0; j < siteCount; j++) {
+				if (sequence[j] != previousSequence[j]) {
+					addChange(j * taxonCount + i, sequence[j]);
+					changed = true;
+				}
+			}
+			if (changed) {
+				previous.setSiteValuesByTaxon(i, sequence);
+			}
+		}
+		if (!touchedTaxa.isEmpty()) {
+			Arrays.sort(changes, 0, changeCount);
+		}
+
+		out.writeByte(DELTA);
+		out.writeLong(sample);
+		writeVarInt(changeCount);
+		int cell = 0;
+		for (int k = 0; k < changeCount; k++) {
+			int changedCell = (int) (changes[k] >>> 32);
+			writeVarInt(changedCell - cell);
+			writeVarInt((int) changes[k]);
+			cell = changedCell;
+		}
+	}
+
+	private void addChange(int cell, int value) {
+		if (changeCount == changes.length) {
+			changes = Arrays.copyOf(changes, changeCount * 2);
+		}
+		changes[changeCount++] = ((long) cell << 32) | value;
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private void writeVarInt(int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+}
@@ -0,0 +1,220 @@
+package mutablealignment;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import beast.base.evolution.datatype.DataType;
+
+/**
+ * Writes sequences of an alignment to file on a background thread.
+ *
+ * The calling (MCMC) thread only takes a snapshot of the characters and puts it
+ * in a bounded queue; formatting and writing happen on the background thread.
+ * Snapshots of CopyOnWriteSiteStorage share blocks with the alignment, other
+ * storages are copied into recycled packed snapshots. The caller only blocks
+ * when queueSize snapshots are waiting to be written, and stops waiting with an
+ * IOException once the background thread failed.
+ *
+ * The file has a tab separated header line with "Sample" and the taxon names,
+ * followed by a line per sample with the sample number and a sequence per taxon,
+ * optionally gzip compressed.
+ **/
+public class AsyncAlignmentWriter implements AutoCloseable {
+
+	private static class Snapshot {
+		final long sample;
+		final SiteStorage storage;
+		// packed snapshots go back to the free list after writing, copy-on-write snapshots are released
+		final boolean recycle;
+
+		Snapshot(long sample, SiteStorage storage, boolean recycle) {
+			this.sample = sample;
+			this.storage = storage;
+			this.recycle = recycle;
+		}
+	}
+
+	private final static Snapshot END = new Snapshot(-1, null, false);
+	// how long the caller waits for the writer before checking whether it failed
+	private final static long WAIT_MS = 100;
+
+	private final int taxonCount;
+	private final int siteCount;
+	private final int stateCount;
+	private final int maxSnapshots;
+	private final BlockingQueue<Snapshot> queue;
+	private final BlockingQueue<PackedSiteStorage> free;
+	private int snapshotCount = 0;
+	private final int [] site;
+
+	private final OutputStream out;
+	private final CharacterTable characterTable;
+	private final Thread thread;
+	private volatile Throwable failure;
+
+	/**
+	 * @param queueSize number of snapshots that can wait to be written before the caller blocks
+	 * @param compress whether to gzip the output
+	 */
+	public AsyncAlignmentWriter(File file, List<String> taxaNames, int siteCount, DataType dataType, int queueSize, boolean compress) throws IOException {
+		this.taxonCount = taxaNames.size();
+		this.siteCount = siteCount;
+		this.stateCount = dataType.getStateCount();
+		// one more than the queue holds, for the snapshot being written
+		maxSnapshots = queueSize + 1;
+		queue = new ArrayBlockingQueue<>(queueSize);
+		free = new ArrayBlockingQueue<>(maxSnapshots);
+		site = new int[taxonCount];
+		characterTable = new CharacterTable(dataType);
+
+		OutputStream stream = new FileOutputStream(file);
+		if (compress) {
+			stream = new GZIPOutputStream(stream, 1 << 16);
+		}
+		out = new BufferedOutputStream(stream, 1 << 16);
+		StringBuilder header = new StringBuilder("Sample");
+		for (String taxon : taxaNames) {
+			header.append('\t').append(taxon);
+		}
+		header.append('\n');
+		out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+
+		thread = new Thread(this::run, "AsyncAlignmentWriter " + file.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queue the current state of storage for writing, blocking only if the queue is full
+	 * @throws IOException if writing an earlier sample failed
+	 */
+	public void write(long sample, SiteStorage storage) throws IOException {
+		checkFailure();
+		Snapshot snapshot;
+		if (storage instanceof CopyOnWriteSiteStorage) {
+			snapshot = new Snapshot(sample, ((CopyOnWriteSiteStorage) storage).copy(), false);
+		} else {
+			PackedSiteStorage copy = takeFree();
+			for (int j = 0; j < siteCount; j++) {
+				storage.getSiteValuesBySite(j, site);
+				copy.setSiteValuesBySite(j, site);
+			}
+			snapshot = new Snapshot(sample, copy, true);
+		}
+		try {
+			put(snapshot);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while queueing sample " + sample, e);
+		}
+	}
+
+	/** write all queued samples and close the file **/
+	@Override
+	public void close() throws IOException {
+		try {
+			if (failure == null) {
+				put(END);
+			}
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing", e);
+		}
+		checkFailure();
+	}
+
+	private PackedSiteStorage takeFree() throws IOException {
+		PackedSiteStorage copy = free.poll();
+		if (copy != null) {
+			return copy;
+		}
+		if (snapshotCount < maxSnapshots) {
+			snapshotCount++;
+			return new PackedSiteStorage(taxonCount, siteCount, stateCount);
+		}
+		try {
+			while ((copy = free.poll(WAIT_MS, TimeUnit.MILLISECONDS)) == null) {
+				checkFailure();
+			}
+			return copy;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the writer", e);
+		}
+	}
+
+	/** queue snapshot, blocking while the queue is full unless the writer failed **/
+	private void put(Snapshot snapshot) throws IOException, InterruptedException {
+		while (!queue.offer(snapshot, WAIT_MS, TimeUnit.MILLISECONDS)) {
+			checkFailure();
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("Writing alignment failed: " + failure.getMessage(), failure);
+		}
+	}
+
+	private void run() {
+		int [] sequence = new int[siteCount];
+		Snapshot snapshot = null;
+		try {
+			while (true) {
+				snapshot = queue.take();
+				if (snapshot == END) {
+					break;
+				}
+				out.write(Long.toString(snapshot.sample).getBytes(StandardCharsets.US_ASCII));
+				for (int i = 0; i < taxonCount; i++) {
+					snapshot.storage.getSiteValuesByTaxon(i, sequence);
+					characterTable.format(sequence, siteCount);
+					out.write('\t');
+					out.write(characterTable.getRow(), 0, characterTable.getRowLength());
+				}
+				out.write('\n');
+				recycle(snapshot);
+				snapshot = null;
+			}
+		} catch (Throwable e) {
+			failure = e;
+			// hand back all snapshots, so a caller waiting for a free one wakes up
+			if (snapshot != null) {
+				recycle(snapshot);
+			}
+			while ((snapshot = queue.poll()) != null) {
+				recycle(snapshot);
+			}
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+	}
+
+	private void recycle(Snapshot snapshot) {
+		if (snapshot == END) {
+			return;
+		}
+		if (snapshot.recycle) {
+			// never blocks, since there are at most maxSnapshots packed snapshots
+			free.offer((PackedSiteStorage) snapshot.storage);
+		} else {
+			((CopyOnWriteSiteStorage) snapshot.storage).release();
+		}
+	}
+}
@@ -1,25 +1,37 @@
 package mutablealignment;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.BitSet;
 
 import beagle.Beagle;
 import beast.base.core.Description;
-import beast.base.evolution.datatype.DataType;
+import beast.base.core.Input;
+import beast.base.core.Log;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.CalculationNode;
 
 @Description("Tree likelihood that can efficiently recalculate changes in a mutable alignment")
-public class BeagleMATreeLikelihood extends BeagleTreeLikelihood {
-	
+public class BeagleMATreeLikelihood extends BeagleTreeLikelihood implements SequenceProbe {
+	final public Input<Integer> blockSizeInput = new Input<>("blockSize", "number of patterns per BEAGLE pattern partition. "
+			+ "When only the alignment changed, partials and root likelihoods are recalculated only for blocks with changed patterns. "
+			+ "Use 0 to always recalculate all patterns. Not used with scaling, invariant sites or ascertainment correction", 64);
+	final public Input<Integer> sidecarSizeInput = new Input<>("sidecarSize", "maximum number of changed patterns that are evaluated "
+			+ "outside BEAGLE when only the alignment changed, so that BEAGLE is only updated once the proposal is accepted. "
+			+ "Use 0 to always use BEAGLE. Not used with ambiguities, tip likelihoods, scaling, invariant sites or ascertainment correction", 16);
+
+	// do not bother with block updates when more than this fraction of blocks changed
+	private final static int BLOCK_MAX_FRACTION = 4;
+
 	private MutableAlignment alignment;
 	private boolean alignmentNeedsUpdate;
 	private int[] cachedOperations;
 	private int[] cachedStates;
-	private double[] cachedPartials;
+	// characters of the taxon being updated, read in one go from the alignment
+	private int[] cachedCodes;
+	// pattern weights passed to BEAGLE, only used when the alignment compresses patterns
+	private double[] cachedPatternWeights;
 
 	// Mapping from alignment column index to tree leaf node number, and
 	// inverse. Computed once in initAndValidate by taxon name; alignment
@@ -32,8 +44,106 @@ public class BeagleMATreeLikelihood extends BeagleTreeLikelihood {
 	// them from the (post-store/restore) alignment. BEAGLE's tip states are
 	// not double-buffered, so this resync mechanism is unavoidable.
 	// Stored as alignment column indices, matching dirtySequences.
-	private final Set<Integer> tempTipNodes = new HashSet<>();
-	
+	private final BitSet tempTipNodes = new BitSet();
+
+	// Encoded tip data, double-buffered through tipBufferHelper, so restore()
+	// switches a tip back to its stored encoding and only needs to set it in
+	// BEAGLE again. BEAGLE addresses tip states by tip number only, so it
+	// cannot hold both buffers itself.
+	private BufferIndexHelper tipBufferHelper;
+	private int[][] tipStates;
+	private double[][] tipPartials;
+	// tips that switched buffers since store()
+	private boolean[] tipIsFlipped;
+	private TipEncoder tipEncoder;
+
+	// Pre-order partials per node for tip conditionals, in BEAGLE's partials
+	// layout, allocated on first use. BEAGLE has no pre-order traversal, so
+	// they are calculated here from partials and matrices read back from BEAGLE.
+	private double[][] preOrderPartials;
+	private boolean[] preOrderIsCurrent;
+	private double[] siblingPartials;
+	private int[] siblingStates;
+	private double[] siblingMatrices;
+	private double[] childMatrices;
+
+	// scratch space for probes, so that they do not allocate
+	private static final int[] ZERO_INDEX = new int[]{0};
+	private final int[] rootIndexArg = new int[1];
+	private final int[] cumulateScaleBufferIndexArg = new int[1];
+	private final double[] sumLogLikelihoods = new double[1];
+	private double[] probeCategoryWeights;
+	// ancestors flipped to their scratch slot by a probe, the first flipCount entries are valid
+	private int[] flipStack;
+	private int flipCount;
+	private boolean[] isFlipped;
+	// tip conditionals for batched probes, allocated on first use
+	private double[] batchConditionals;
+	// scratch space for getTipConditionalLogProbs
+	private Node[] preOrderPath;
+	private double[] preOrderAbove;
+	private int[] conditionalStates;
+	private double[] conditionalPartials;
+	private double[] conditionalLogProbs;
+
+	// Patterns are split into blocks of blockSize patterns, registered as BEAGLE
+	// pattern partitions. Block updates overwrite partials in place, so restore()
+	// recalculates the same blocks of the same nodes from the restored tips.
+	// blockCount is 0 if block updates are not used.
+	private int blockSize;
+	private int blockCount;
+	private boolean onlyAlignmentIsDirty;
+	private int[] dirtyPatterns;
+	private int dirtyPatternCount;
+	// blocks and nodes updated in place since store(), the first updatedBlockCount entries are valid
+	private int[] updatedBlocks;
+	private int updatedBlockCount;
+	private boolean[] blockIsUpdated;
+	private boolean[] nodeIsAffected;
+	private int[] blockOperations;
+	// log likelihood per block
+	private double[] blockLogLikelihoods;
+	private double[] storedBlockLogLikelihoods;
+	// arguments of calculateRootLogLikelihoodsByPartition, a value per block
+	private int[] blockRootIndices;
+	private int[] blockZeroIndices;
+	private int[] blockScaleIndices;
+	private double[] blockSumLogLikelihoods;
+
+	// The sidecar evaluates the few patterns changed by a proposal, using cached
+	// pattern log likelihoods of BEAGLE for the others. BEAGLE is left as it is
+	// until the result is accepted, so rejecting the proposal costs nothing.
+	// A pending result is folded into BEAGLE by accept(), or by store() if the
+	// alignment committed the edits without accept(). By then the alignment and
+	// tree may hold the next proposal, so folding only uses what was kept during
+	// evaluation: patterns, their new weights and tip states, log likelihoods,
+	// and the nodes to recalculate.
+	// sidecar is null if not used.
+	private ColumnSidecar sidecar;
+	private boolean sidecarIsPending;
+	private boolean sidecarMatricesAreCurrent;
+	private double[] sidecarLogLikelihoods;
+	private int[] sidecarPatterns;
+	private int sidecarPatternCount;
+	private double[] sidecarWeights;
+	// tips that change, then internal nodes above them in post-order as (node, child1, child2)
+	private int[] sidecarTips;
+	private int sidecarTipCount;
+	private int[] sidecarNodes;
+	private int sidecarNodeCount;
+
+	// unweighted pattern log likelihoods and logP of the partials in BEAGLE,
+	// kept when blocks or the sidecar are used. False if they may not match the
+	// partials, e.g. when scaling is used.
+	private double[] cachedPatternLogLikelihoods;
+	private double[] storedPatternLogLikelihoods;
+	private double cachedLogP;
+	private double storedCachedLogP;
+	private boolean cachedLogLikelihoodsAreCurrent;
+	private boolean storedCachedLogLikelihoodsAreCurrent;
+	// set when the alignment grew its pattern slots during the proposal, so buffers were rebuilt
+	private boolean reinitialisedInProposal;
+
 	@Override
 	public void initAndValidate() {
 		if (!(dataInput.get() instanceof MutableAlignment)) {
@@ -46,12 +156,90 @@ public class BeagleMATreeLikelihood extends BeagleTreeLikelihood {
 		alignmentNeedsUpdate = false;
 
 		int patternCount = alignment.getPatternCount();
-		int stateCount = alignment.getDataType().getStateCount();
 		cachedStates = new int[patternCount];
-		cachedPartials = new double[patternCount * stateCount];
+		cachedCodes = new int[patternCount];
+		dirtySequences = new int[alignment.getTaxonCount()];
+		dirtySequenceCount = 0;
 		cachedOperations = new int[treeInput.get().getNodeCount() * Beagle.OPERATION_TUPLE_SIZE];
+		flipStack = new int[treeInput.get().getNodeCount()];
+		isFlipped = new boolean[treeInput.get().getNodeCount()];
+		probeCategoryWeights = new double[Math.max(categoryCount, 1)];
+		if (alignment.isCompressingPatterns()) {
+			cachedPatternWeights = new double[patternCount];
+		}
 
 		buildTaxonIndexMaps();
+
+		tipEncoder = new TipEncoder(alignment);
+		tipBufferHelper = new BufferIndexHelper(tipCount, 0);
+		tipStates = new int[tipBufferHelper.getBufferCount()][];
+		tipPartials = new double[tipBufferHelper.getBufferCount()][];
+		tipIsFlipped = new boolean[tipCount];
+		for (int i = 0; i < alignment.getTaxonCount(); i++) {
+			encodeTip(i, tipBufferHelper.getOffsetIndex(alignmentIdxToTreeNodeNr[i]));
+		}
+
+		initBlocks();
+		initSidecar();
+		if (blockCount > 0 || sidecar != null) {
+			dirtyPatterns = new int[patternCount];
+			cachedPatternLogLikelihoods = new double[patternCount];
+			storedPatternLogLikelihoods = new double[patternCount];
+		}
+	}
+
+	private void initSidecar() {
+		int sidecarSize = sidecarSizeInput.get();
+		if (sidecarSize < 0) {
+			throw new IllegalArgumentException("sidecarSize should not be negative");
+		}
+		if (beagle == null || sidecarSize == 0 || m_bUseAmbiguities || m_bUseTipLikelihoods) {
+			return;
+		}
+		sidecar = new ColumnSidecar(tipCount, m_nNodeCount, m_nStateCount, categoryCount, Math.min(sidecarSize, patternCount));
+		sidecarLogLikelihoods = new double[sidecar.getCapacity()];
+		sidecarPatterns = new int[sidecar.getCapacity()];
+		sidecarWeights = new double[sidecar.getCapacity()];
+		sidecarTips = new int[tipCount];
+		sidecarNodes = new int[3 * m_nNodeCount];
+		if (nodeIsAffected == null) {
+			nodeIsAffected = new boolean[m_nNodeCount];
+		}
+	}
+
+	/** register pattern blocks as BEAGLE pattern partitions, if there is more than one block **/
+	private void initBlocks() {
+		blockSize = blockSizeInput.get();
+		if (blockSize < 0) {
+			throw new IllegalArgumentException("blockSize should not be negative");
+		}
+		blockCount = 0;
+		if (beagle == null || blockSize == 0 || patternCount <= blockSize) {
+			return;
+		}
+		int count = (patternCount + blockSize - 1) / blockSize;
+		int[] patternPartitions = new int[patternCount];
+		for (int k = 0; k < patternCount; k++) {
+			patternPartitions[k] = k / blockSize;
+		}
+		try {
+			beagle.setPatternPartitions(count, patternPartitions);
+		} catch (RuntimeException e) {
+			Log.warning("BEAGLE resource does not support pattern partitions, so all patterns are recalculated on every change: " + e.getMessage());
+			return;
+		}
+		blockCount = count;
+		updatedBlocks = new int[blockCount];
+		blockIsUpdated = new boolean[blockCount];
+		nodeIsAffected = new boolean[m_nNodeCount];
+		blockOperations = new int[blockCount * Beagle.PARTITION_OPERATION_TUPLE_SIZE];
+		blockLogLikelihoods = new double[blockCount];
+		storedBlockLogLikelihoods = new double[blockCount];
+		blockRootIndices = new int[blockCount];
+		blockZeroIndices = new int[blockCount];
+		blockScaleIndices = new int[blockCount];
+		Arrays.fill(blockScaleIndices, Beagle.NONE);
+		blockSumLogLikelihoods = new double[blockCount];
 	}
 
 	private void buildTaxonIndexMaps() {
@@ -72,116 +260,635 @@ public class BeagleMATreeLikelihood extends BeagleTreeLikelihood {
 		
 	@Override
 	public double calculateLogP() {
+		invalidatePreOrderPartials();
+		if (sidecarIsPending) {
+			// calculated again for the same proposal, whose edits are still in the alignment
+			sidecarIsPending = false;
+			alignmentNeedsUpdate = true;
+		}
 		if (alignmentNeedsUpdate) {
-			updateAlignment();
 			alignmentNeedsUpdate = false;
+			if (canUseSidecar() && evaluateSidecar()) {
+				return logP;
+			}
+			if (canUpdateBlocks()) {
+				updateBlocks();
+				if (!Double.isNaN(logP) && !Double.isInfinite(logP)) {
+					return logP;
+				}
+				// let the full update deal with under/over flow
+			} else {
+				updateAlignment();
+			}
 		}
 		logP = super.calculateLogP();
+		sidecarMatricesAreCurrent = false;
+		refreshCachedLogLikelihoods();
 		return logP;
 	}
+
+	private boolean canUseSidecar() {
+		if (sidecar == null || !onlyAlignmentIsDirty || !cachedLogLikelihoodsAreCurrent ||
+				useScaleFactors || useAutoScaling || getConstantPattern() != null || ascertainedSitePatterns) {
+			return false;
+		}
+		dirtyPatternCount = alignment.getDirtyPatternIndices(dirtyPatterns);
+		return dirtyPatternCount <= sidecar.getCapacity();
+	}
+
+	/**
+	 * Calculate logP from cached pattern log likelihoods, replacing those of dirty
+	 * patterns by sidecar results. BEAGLE is not touched.
+	 * @return false if the result is not finite, so the caller should use BEAGLE
+	 */
+	private boolean evaluateSidecar() {
+		TreeInterface tree = treeInput.get();
+		Node root = tree.getRoot();
+		if (!sidecarMatricesAreCurrent) {
+			for (int i = 0; i < m_nNodeCount; i++) {
+				if (i != root.getNr()) {
+					beagle.getTransitionMatrix(matrixBufferHelper.getOffsetIndex(i), sidecar.getMatrices(i));
+				}
+			}
+			sidecarMatricesAreCurrent = true;
+		}
+		// patterns are read from the alignment for all tips, since a compressed
+		// pattern can change for taxa that were not edited
+		sidecarTipCount = 0;
+		for (int nodeNr = 0; nodeNr < tipCount; nodeNr++) {
+			int taxonIndex = treeNodeNrToAlignmentIdx[nodeNr];
+			int[] states = tipStates[tipBufferHelper.getOffsetIndex(nodeNr)];
+			boolean changed = false;
+			for (int h = 0; h < dirtyPatternCount; h++) {
+				int state = tipEncoder.getState(alignment.getPattern(taxonIndex, dirtyPatterns[h]));
+				sidecar.setTipState(nodeNr, h, state);
+				changed |= states[dirtyPatterns[h]] != state;
+			}
+			if (changed) {
+				sidecarTips[sidecarTipCount++] = nodeNr;
+				for (Node node = tree.getNode(nodeNr); node != null && !nodeIsAffected[node.getNr()]; node = node.getParent()) {
+					nodeIsAffected[node.getNr()] = true;
+				}
+			}
+		}
+		sidecarNodeCount = 0;
+		if (nodeIsAffected[root.getNr()]) {
+			addSidecarNodes(root);
+		}
+		Arrays.fill(nodeIsAffected, false);
+		sidecar.calculateLogLikelihoods(root, currentCategoryWeights, currentFreqs, dirtyPatternCount, sidecarLogLikelihoods);
+
+		double logL = cachedLogP;
+		for (int h = 0; h < dirtyPatternCount; h++) {
+			int k = dirtyPatterns[h];
+			double oldWeight = getCachedPatternWeight(k);
+			double newWeight = alignment.getPatternWeight(k);
+			if (oldWeight != 0) {
+				logL -= oldWeight * cachedPatternLogLikelihoods[k];
+			}
+			if (newWeight != 0) {
+				logL += newWeight * sidecarLogLikelihoods[h];
+			}
+			sidecarPatterns[h] = k;
+			sidecarWeights[h] = newWeight;
+		}
+		if (Double.isNaN(logL) || Double.isInfinite(logL)) {
+			return false;
+		}
+		sidecarPatternCount = dirtyPatternCount;
+		logP = logL;
+		sidecarIsPending = true;
+		return true;
+	}
+
+	/** weight of pattern k as set in BEAGLE **/
+	private double getCachedPatternWeight(int k) {
+		return cachedPatternWeights == null ? alignment.getPatternWeight(k) : cachedPatternWeights[k];
+	}
+
+	/** add affected internal nodes below and including node to sidecarNodes, in post-order **/
+	private void addSidecarNodes(Node node) {
+		Node child1 = node.getLeft();
+		Node child2 = node.getRight();
+		if (!child1.isLeaf() && nodeIsAffected[child1.getNr()]) {
+			addSidecarNodes(child1);
+		}
+		if (!child2.isLeaf() && nodeIsAffected[child2.getNr()]) {
+			addSidecarNodes(child2);
+		}
+		sidecarNodes[3 * sidecarNodeCount] = node.getNr();
+		sidecarNodes[3 * sidecarNodeCount + 1] = child1.getNr();
+		sidecarNodes[3 * sidecarNodeCount + 2] = child2.getNr();
+		sidecarNodeCount++;
+	}
+
+	/**
+	 * Bring BEAGLE up to date with a sidecar evaluation that was accepted: set the
+	 * tip states and weights of the sidecar patterns, and recalculate partials of
+	 * the nodes recorded by the evaluation in place, for the blocks with sidecar
+	 * patterns or for all patterns without blocks. Transition matrices are those
+	 * the sidecar used, and root log likelihoods are known from the sidecar.
+	 */
+	private void foldSidecar() {
+		sidecarIsPending = false;
+		for (int t = 0; t < sidecarTipCount; t++) {
+			int nodeNr = sidecarTips[t];
+			int[] states = tipStates[tipBufferHelper.getOffsetIndex(nodeNr)];
+			for (int h = 0; h < sidecarPatternCount; h++) {
+				states[sidecarPatterns[h]] = sidecar.getTipState(nodeNr, h);
+			}
+			beagle.setTipStates(nodeNr, states);
+		}
+		if (cachedPatternWeights != null) {
+			for (int h = 0; h < sidecarPatternCount; h++) {
+				cachedPatternWeights[sidecarPatterns[h]] = sidecarWeights[h];
+			}
+			beagle.setPatternWeights(cachedPatternWeights);
+		}
+		for (int h = 0; h < sidecarPatternCount; h++) {
+			cachedPatternLogLikelihoods[sidecarPatterns[h]] = sidecarLogLikelihoods[h];
+		}
+
+		if (blockCount == 0) {
+			for (int i = 0; i < sidecarNodeCount; i++) {
+				setOperation(cachedOperations, i * Beagle.OPERATION_TUPLE_SIZE,
+						sidecarNodes[3 * i], sidecarNodes[3 * i + 1], sidecarNodes[3 * i + 2]);
+			}
+			if (sidecarNodeCount > 0) {
+				beagle.updatePartials(cachedOperations, sidecarNodeCount, Beagle.NONE);
+			}
+		} else {
+			for (int h = 0; h < sidecarPatternCount; h++) {
+				int b = sidecarPatterns[h] / blockSize;
+				if (!blockIsUpdated[b]) {
+					blockIsUpdated[b] = true;
+					updatedBlocks[updatedBlockCount++] = b;
+				}
+			}
+			int operationCount = 0;
+			for (int i = 0; i < sidecarNodeCount; i++) {
+				operationCount = addBlockOperations(operationCount, sidecarNodes[3 * i], sidecarNodes[3 * i + 1], sidecarNodes[3 * i + 2]);
+			}
+			if (operationCount > 0) {
+				beagle.updatePartialsByPartition(blockOperations, operationCount);
+			}
+			for (int i = 0; i < updatedBlockCount; i++) {
+				sumBlock(updatedBlocks[i]);
+			}
+			clearUpdatedBlocks();
+		}
+		cachedLogP = logP;
+	}
+
+	private boolean canUpdateBlocks() {
+		if (blockCount == 0 || !onlyAlignmentIsDirty || !cachedLogLikelihoodsAreCurrent ||
+				useScaleFactors || useAutoScaling || getConstantPattern() != null || ascertainedSitePatterns) {
+			return false;
+		}
+		dirtyPatternCount = alignment.getDirtyPatternIndices(dirtyPatterns);
+		int dirtyBlockCount = 0;
+		for (int p = 0, previous = -1; p < dirtyPatternCount; p++) {
+			int b = dirtyPatterns[p] / blockSize;
+			if (b != previous && !blockIsUpdated[b]) {
+				dirtyBlockCount++;
+			}
+			previous = b;
+		}
+		// with a mutability mask, cold patterns come first and are never dirty
+		return (updatedBlockCount + dirtyBlockCount) * BLOCK_MAX_FRACTION <= blockCount ||
+				(updatedBlockCount + dirtyBlockCount) * blockSize <= alignment.getColdPatternCount();
+	}
+
+	/**
+	 * Update tips, then partials of their ancestors and root likelihoods for blocks
+	 * with dirty patterns only, and sum the block log likelihoods into logP.
+	 */
+	private void updateBlocks() {
+		for (int p = 0; p < dirtyPatternCount; p++) {
+			int b = dirtyPatterns[p] / blockSize;
+			if (!blockIsUpdated[b]) {
+				blockIsUpdated[b] = true;
+				updatedBlocks[updatedBlockCount++] = b;
+			}
+		}
+		updateAlignment();
+		markAncestorsOfDirtyTips();
+		updateBlockPartials();
+
+		TreeInterface tree = treeInput.get();
+		int rootIndex = partialBufferHelper.getOffsetIndex(tree.getRoot().getNr());
+		Arrays.fill(blockRootIndices, 0, updatedBlockCount, rootIndex);
+		beagle.calculateRootLogLikelihoodsByPartition(blockRootIndices, blockZeroIndices, blockZeroIndices,
+				blockScaleIndices, updatedBlocks, updatedBlockCount, 1, blockSumLogLikelihoods, sumLogLikelihoods);
+		// site log likelihoods are only current for the blocks passed in
+		beagle.getSiteLogLikelihoods(patternLogLikelihoods);
+		for (int i = 0; i < updatedBlockCount; i++) {
+			int b = updatedBlocks[i];
+			blockLogLikelihoods[b] = blockSumLogLikelihoods[i];
+			int end = Math.min((b + 1) * blockSize, patternCount);
+			System.arraycopy(patternLogLikelihoods, b * blockSize, cachedPatternLogLikelihoods, b * blockSize, end - b * blockSize);
+		}
+		double logL = 0;
+		for (int b = 0; b < blockCount; b++) {
+			logL += blockLogLikelihoods[b];
+		}
+		logP = logL;
+		cachedLogP = logL;
+	}
+
+	private void markAncestorsOfDirtyTips() {
+		TreeInterface tree = treeInput.get();
+		for (int d = 0; d < dirtySequenceCount; d++) {
+			Node node = tree.getNode(alignmentIdxToTreeNodeNr[dirtySequences[d]]);
+			while (node != null && !nodeIsAffected[node.getNr()]) {
+				nodeIsAffected[node.getNr()] = true;
+				node = node.getParent();
+			}
+		}
+	}
+
+	/** recalculate partials of affected nodes for updated blocks, in place **/
+	private void updateBlockPartials() {
+		Node root = treeInput.get().getRoot();
+		if (updatedBlockCount == 0 || !nodeIsAffected[root.getNr()]) {
+			return;
+		}
+		int operationCount = addBlockOperations(root, 0);
+		beagle.updatePartialsByPartition(blockOperations, operationCount);
+	}
+
+	/** add an operation per updated block for affected internal nodes below and including node, in post-order **/
+	private int addBlockOperations(Node node, int operationCount) {
+		if (node.isLeaf()) {
+			return operationCount;
+		}
+		Node child1 = node.getLeft();
+		Node child2 = node.getRight();
+		if (nodeIsAffected[child1.getNr()]) {
+			operationCount = addBlockOperations(child1, operationCount);
+		}
+		if (nodeIsAffected[child2.getNr()]) {
+			operationCount = addBlockOperations(child2, operationCount);
+		}
+		return addBlockOperations(operationCount, node.getNr(), child1.getNr(), child2.getNr());
+	}
+
+	/** add an operation per updated block for an internal node **/
+	private int addBlockOperations(int operationCount, int nodeNr, int child1, int child2) {
+		int size = Beagle.PARTITION_OPERATION_TUPLE_SIZE;
+		if ((operationCount + updatedBlockCount) * size > blockOperations.length) {
+			blockOperations = Arrays.copyOf(blockOperations, Math.max(blockOperations.length * 2, (operationCount + updatedBlockCount) * size));
+		}
+		for (int i = 0; i < updatedBlockCount; i++) {
+			int x = operationCount * size;
+			setOperation(blockOperations, x, nodeNr, child1, child2);
+			blockOperations[x + 7] = updatedBlocks[i];
+			blockOperations[x + 8] = Beagle.NONE; // cumulative scale buffer
+			operationCount++;
+		}
+		return operationCount;
+	}
+
+	/** set the first OPERATION_TUPLE_SIZE entries of an operation at offset x, updating node in place without scaling **/
+	private void setOperation(int[] operations, int x, int nodeNr, int child1, int child2) {
+		operations[x] = partialBufferHelper.getOffsetIndex(nodeNr);
+		operations[x + 1] = Beagle.NONE; // no scaling
+		operations[x + 2] = Beagle.NONE;
+		operations[x + 3] = partialBufferHelper.getOffsetIndex(child1);
+		operations[x + 4] = matrixBufferHelper.getOffsetIndex(child1);
+		operations[x + 5] = partialBufferHelper.getOffsetIndex(child2);
+		operations[x + 6] = matrixBufferHelper.getOffsetIndex(child2);
+	}
+
+	/** cached pattern and block log likelihoods from a full update **/
+	private void refreshCachedLogLikelihoods() {
+		if (cachedPatternLogLikelihoods == null) {
+			return;
+		}
+		cachedLogLikelihoodsAreCurrent = !useScaleFactors && !useAutoScaling && getConstantPattern() == null && !ascertainedSitePatterns;
+		if (!cachedLogLikelihoodsAreCurrent) {
+			return;
+		}
+		beagle.getSiteLogLikelihoods(cachedPatternLogLikelihoods);
+		cachedLogP = logP;
+		for (int b = 0; b < blockCount; b++) {
+			sumBlock(b);
+		}
+	}
+
+	private void sumBlock(int b) {
+		int end = Math.min((b + 1) * blockSize, patternCount);
+		double logL = 0;
+		for (int k = b * blockSize; k < end; k++) {
+			logL += cachedPatternLogLikelihoods[k] * getCachedPatternWeight(k);
+		}
+		blockLogLikelihoods[b] = logL;
+	}
+
+	private void clearUpdatedBlocks() {
+		if (blockCount == 0) {
+			return;
+		}
+		for (int i = 0; i < updatedBlockCount; i++) {
+			blockIsUpdated[updatedBlocks[i]] = false;
+		}
+		updatedBlockCount = 0;
+		Arrays.fill(nodeIsAffected, false);
+	}
 	
 	
-	private List<Integer> dirtySequences = new ArrayList<>();
+	// alignment column indices of tips to update, the first dirtySequenceCount entries are valid
+	private int[] dirtySequences;
+	private int dirtySequenceCount;
 	
 	private void updateAlignment() {
-        dirtySequences.clear();
-        for (Integer i : alignment.getDirtySequenceIndices()) {
-        	dirtySequences.add(i);
-        }
-        updateTipData();
+        dirtySequenceCount = alignment.getDirtySequenceIndices(dirtySequences);
+        updateTipData(true);
+        updatePatternWeights();
 	}
 
-	private void updateTipData() {
-        TreeInterface tree = treeInput.get();
-    	int patternCount = alignment.getPatternCount();
-        int stateCount = alignment.getDataType().getStateCount();
-		for (int taxonIndex : dirtySequences) {
+	/** weights of compressed patterns change with the alignment **/
+	private void updatePatternWeights() {
+		if (cachedPatternWeights == null) {
+			return;
+		}
+		for (int i = 0; i < cachedPatternWeights.length; i++) {
+			cachedPatternWeights[i] = alignment.getPatternWeight(i);
+		}
+		beagle.setPatternWeights(cachedPatternWeights);
+	}
+
+	/**
+	 * Encode dirty sequences and set them in BEAGLE. With flip, tips that did not switch
+	 * buffers since store() do so first, so restore() can switch them back.
+	 */
+	private void updateTipData(boolean flip) {
+		for (int d = 0; d < dirtySequenceCount; d++) {
+			int taxonIndex = dirtySequences[d];
 			// dirtySequences holds alignment column indices.
 			int nodeNr = alignmentIdxToTreeNodeNr[taxonIndex];
-    		Node node = tree.getNode(nodeNr);
-
-            if (m_useAmbiguities.get()) {
-	            int k = 0;
-	            for (int patternIndex_ = 0; patternIndex_ < patternCount; patternIndex_++) {
-	                double[] tipLikelihoods = alignment.getTipLikelihoods(taxonIndex, patternIndex_);
-	                if (tipLikelihoods != null) {
-	                	for (int state = 0; state < stateCount; state++) {
-	                		cachedPartials[k++] = tipLikelihoods[state];
-	                	}
-	                } else {
-	                	int statex = alignment.getPattern(taxonIndex, patternIndex_);
-		                boolean[] stateSet = alignment.getStateSet(statex);
-		                for (int state = 0; state < stateCount; state++) {
-		                	 cachedPartials[k++] = (stateSet[state] ? 1.0 : 0.0);
-		                }
-	                }
-	            }
-	            beagle.setPartials(nodeNr, cachedPartials);
-	            
-            } else {
-                DataType dataType = alignment.getDataType();
-                for (int i = 0; i < patternCount; i++) {
-                    int code = alignment.getPattern(taxonIndex, i);
-                    int[] statesForCode = dataType.getStatesForCode(code);
-                    if (statesForCode.length==1)
-                        cachedStates[i] = statesForCode[0];
-                    else
-                        cachedStates[i] = code; // Causes ambiguous states to be ignored.
+			if (flip && !tipIsFlipped[nodeNr]) {
+				tipBufferHelper.flipOffset(nodeNr);
+				tipIsFlipped[nodeNr] = true;
+			}
+			encodeTip(taxonIndex, tipBufferHelper.getOffsetIndex(nodeNr));
+			uploadTip(nodeNr);
+		}
+	}
+
+	/** encode the sequence of the taxon into tip buffer **/
+	private void encodeTip(int taxonIndex, int buffer) {
+    	int patternCount = alignment.getPatternCount();
+        int stateCount = alignment.getDataType().getStateCount();
+		alignment.getPatternValuesByTaxon(taxonIndex, cachedCodes);
+
+        if (m_useAmbiguities.get()) {
+        	if (tipPartials[buffer] == null) {
+        		tipPartials[buffer] = new double[patternCount * stateCount];
+        	}
+        	double[] partials = tipPartials[buffer];
+        	tipEncoder.encodePartials(cachedCodes, patternCount, partials);
+            for (int patternIndex_ = 0; patternIndex_ < patternCount; patternIndex_++) {
+                double[] tipLikelihoods = alignment.getTipLikelihoods(taxonIndex, patternIndex_);
+                if (tipLikelihoods != null) {
+                	System.arraycopy(tipLikelihoods, 0, partials, patternIndex_ * stateCount, stateCount);
                 }
-                beagle.setTipStates(nodeNr, cachedStates);
-				tempTipNodes.add(treeNodeNrToAlignmentIdx[nodeNr]);
-                node.makeDirty(Tree.IS_DIRTY);
             }
+        } else {
+        	if (tipStates[buffer] == null) {
+        		tipStates[buffer] = new int[patternCount];
+        	}
+        	tipEncoder.encodeStates(cachedCodes, patternCount, tipStates[buffer]);
         }
-    }
+	}
+
+	/** set tip data of node in BEAGLE from its current tip buffer **/
+	private void uploadTip(int nodeNr) {
+		int buffer = tipBufferHelper.getOffsetIndex(nodeNr);
+        if (m_useAmbiguities.get()) {
+            beagle.setPartials(nodeNr, tipPartials[buffer]);
+        } else {
+            beagle.setTipStates(nodeNr, tipStates[buffer]);
+            treeInput.get().getNode(nodeNr).makeDirty(Tree.IS_DIRTY);
+        }
+	}
+
+	@Override
+	public int getTreeNodeNr(int taxonNr) {
+		return alignmentIdxToTreeNodeNr[taxonNr];
+	}
+
+	@Override
+	public boolean usesTipPartials() {
+		return m_useAmbiguities.get() || m_useTipLikelihoods.get();
+	}
 
 	/*
 	 * returns pattern log likelihoods after setting sequence for node with given nodeNr
 	 * to states encoded in sites
 	 */
+	@Override
 	public double[] getLogProbsForStateSequence(int nodeNr, int[] sites) {
-		// update data for node
-		int patternCount = sites.length;
+		return getLogProbsForStateSequence(nodeNr, sites, new double[sites.length]);
+	}
+
+	@Override
+	public double[] getLogProbsForStateSequence(int nodeNr, int[] sites, double[] out) {
         if (m_useAmbiguities.get()) {
         	throw new IllegalArgumentException("should not use getLogProbsForSequence but getLogProbsForPartialsSequence instead");
         }
-        DataType dataType = alignment.getDataType();
-        for (int i = 0; i < patternCount; i++) {
-            int code = sites[i];
-            int[] statesForCode = dataType.getStatesForCode(code);
-            if (statesForCode.length==1)
-                cachedStates[i] = statesForCode[0];
-            else
-                cachedStates[i] = code; // Causes ambiguous states to be ignored.
+        setProbeStates(nodeNr, sites);
+		tempTipNodes.set(treeNodeNrToAlignmentIdx[nodeNr]);
+
+        return calcPatternLogLikelihoods(nodeNr, out);
+	}
+
+	/**
+	 * Uses the tip conditionals from pre-order partials when possible, which
+	 * give the pattern log likelihoods of every candidate without changing the
+	 * tip. Otherwise, ancestors are flipped to their scratch slot once for all
+	 * candidates.
+	 */
+	@Override
+	public void getLogProbsForStateSequences(int nodeNr, int[][] candidates, double[][] out) {
+        if (m_useAmbiguities.get()) {
+        	throw new IllegalArgumentException("should not use getLogProbsForSequences but getLogProbsForPartialsSequence instead");
         }
-        beagle.setTipStates(nodeNr, cachedStates);
+        int stateCount = alignment.getDataType().getStateCount();
+        if (canUsePreOrderPartials() && stateCount == m_nStateCount) {
+        	if (batchConditionals == null || batchConditionals.length != patternCount * stateCount) {
+        		batchConditionals = new double[patternCount * stateCount];
+        	}
+        	getTipConditionalLogProbs(treeNodeNrToAlignmentIdx[nodeNr], stateCount, batchConditionals);
+        	for (int k = 0; k < candidates.length; k++) {
+        		PreOrderPartials.getCandidateLogLikelihoods(batchConditionals, candidates[k], tipEncoder, stateCount, out[k]);
+        	}
+        	return;
+        }
+		tempTipNodes.set(treeNodeNrToAlignmentIdx[nodeNr]);
+		invalidatePreOrderPartials();
+		flipCount = 0;
+		for (int k = 0; k < candidates.length; k++) {
+			setProbeStates(nodeNr, candidates[k]);
+			// ancestors flipped for earlier candidates are not flipped again
+			calcPatternLogLikelihoodsFlipped(nodeNr);
+			System.arraycopy(patternLogLikelihoods, 0, out[k], 0, patternCount);
+		}
+		unflipAncestors();
+	}
 
-        return calcPatternLogLikelihoods(nodeNr);
+	/** set tip states of node to the states encoded in sites, where ambiguous states are ignored **/
+	private void setProbeStates(int nodeNr, int[] sites) {
+        tipEncoder.encodeStates(sites, sites.length, cachedStates);
+        beagle.setTipStates(nodeNr, cachedStates);
 	}
 
 	/*
 	 * returns pattern log likelihoods after setting sequence for node with given nodeNr
 	 * to states encoded in sites
 	 */
+	@Override
 	public double[] getLogProbsForPartialsSequence(int nodeNr, double[] tipLikelihoods) {
+		return getLogProbsForPartialsSequence(nodeNr, tipLikelihoods, new double[patternCount]);
+	}
+
+	@Override
+	public double[] getLogProbsForPartialsSequence(int nodeNr, double[] tipLikelihoods, double[] out) {
         beagle.setPartials(nodeNr, tipLikelihoods);
-		tempTipNodes.add(treeNodeNrToAlignmentIdx[nodeNr]);
+		tempTipNodes.set(treeNodeNrToAlignmentIdx[nodeNr]);
+
+        return calcPatternLogLikelihoods(nodeNr, out);
+	}
+
+	/**
+	 * Uses pre-order partials when possible, as MATreeLikelihood does. Since BEAGLE
+	 * has no pre-order traversal, partials of siblings and matrices along the path
+	 * from the root are read back from BEAGLE, which is still much cheaper than a
+	 * probe per state when there are many taxa.
+	 */
+	@Override
+	public void getTipConditionalLogProbs(int taxonNr, int stateCount, double [] out) {
+		if (!canUsePreOrderPartials() || stateCount != m_nStateCount) {
+			int patternCount = out.length / stateCount;
+			if (conditionalLogProbs == null || conditionalLogProbs.length != patternCount || conditionalPartials.length != out.length) {
+				conditionalStates = new int[patternCount];
+				conditionalPartials = new double[out.length];
+				conditionalLogProbs = new double[patternCount];
+			}
+			SequenceProbe.super.getTipConditionalLogProbs(taxonNr, stateCount, out, conditionalStates, conditionalPartials, conditionalLogProbs);
+			return;
+		}
+		TreeInterface tree = treeInput.get();
+		Node tip = tree.getNode(alignmentIdxToTreeNodeNr[taxonNr]);
+		Node parent = tip.getParent();
+		updatePreOrderPartials(parent);
+		readSibling(tip);
+		beagle.getTransitionMatrix(matrixBufferHelper.getOffsetIndex(tip.getNr()), childMatrices);
+		PreOrderPartials.calculateTipConditionals(preOrderPartials[parent.getNr()], siblingStates(tip), siblingPartials,
+				siblingMatrices, childMatrices, m_siteModel.getCategoryProportions(tree.getRoot()),
+				categoryCount, patternCount, m_nStateCount, preOrderAbove, out);
+	}
+
+	private boolean canUsePreOrderPartials() {
+		return beagle != null && tempTipNodes.isEmpty() && !useScaleFactors && !useAutoScaling &&
+				getConstantPattern() == null && !ascertainedSitePatterns;
+	}
+
+	/** calculate pre-order partials of node and those of its ancestors that are not current **/
+	private void updatePreOrderPartials(Node node) {
+		if (preOrderPartials == null) {
+			preOrderPartials = new double[m_nNodeCount][];
+			preOrderIsCurrent = new boolean[m_nNodeCount];
+			siblingPartials = new double[categoryCount * patternCount * m_nStateCount];
+			siblingStates = new int[patternCount];
+			siblingMatrices = new double[categoryCount * m_nStateCount * m_nStateCount];
+			childMatrices = new double[categoryCount * m_nStateCount * m_nStateCount];
+			preOrderPath = new Node[m_nNodeCount];
+			preOrderAbove = new double[m_nStateCount];
+		}
+		int pathLength = 0;
+		while (!preOrderIsCurrent[node.getNr()] && !node.isRoot()) {
+			preOrderPath[pathLength++] = node;
+			node = node.getParent();
+		}
+		if (!preOrderIsCurrent[node.getNr()]) {
+			double[] frequencies = rootFrequenciesInput.get() == null ?
+					substitutionModel.getFrequencies() :
+					rootFrequenciesInput.get().getFreqs();
+			PreOrderPartials.setRoot(frequencies, m_nStateCount, preOrderPartialsForUpdate(node.getNr()));
+		}
+		for (int i = pathLength - 1; i >= 0; i--) {
+			Node child = preOrderPath[i];
+			readSibling(child);
+			beagle.getTransitionMatrix(matrixBufferHelper.getOffsetIndex(child.getNr()), childMatrices);
+			PreOrderPartials.calculateChild(preOrderPartials[child.getParent().getNr()], siblingStates(child), siblingPartials,
+					siblingMatrices, childMatrices, categoryCount, patternCount, m_nStateCount, preOrderAbove,
+					preOrderPartialsForUpdate(child.getNr()));
+		}
+	}
+
+	/** read states or partials and matrices of the sibling of node from BEAGLE **/
+	private void readSibling(Node node) {
+		Node sibling = getSibling(node);
+		int siblingNr = sibling.getNr();
+		if (siblingStates(node) != null) {
+			beagle.getTipStates(siblingNr, siblingStates);
+		} else {
+			beagle.getPartials(partialBufferHelper.getOffsetIndex(siblingNr), Beagle.NONE, siblingPartials);
+		}
+		beagle.getTransitionMatrix(matrixBufferHelper.getOffsetIndex(siblingNr), siblingMatrices);
+	}
+
+	/** states of the sibling of node as read by readSibling, or null if BEAGLE holds partials for it **/
+	private int[] siblingStates(Node node) {
+		return getSibling(node).isLeaf() && !m_bUseAmbiguities && !m_bUseTipLikelihoods ? siblingStates : null;
+	}
+
+	private double[] preOrderPartialsForUpdate(int nodeNr) {
+		if (preOrderPartials[nodeNr] == null) {
+			preOrderPartials[nodeNr] = new double[categoryCount * patternCount * m_nStateCount];
+		}
+		preOrderIsCurrent[nodeNr] = true;
+		return preOrderPartials[nodeNr];
+	}
 
-        return calcPatternLogLikelihoods(nodeNr);
+	private void invalidatePreOrderPartials() {
+		if (preOrderIsCurrent != null) {
+			Arrays.fill(preOrderIsCurrent, false);
+		}
+	}
+
+	private static Node getSibling(Node node) {
+		Node parent = node.getParent();
+		return parent.getLeft() == node ? parent.getRight() : parent.getLeft();
 	}
 
 	// Hermetic probe: flips each touched ancestor's partials offset to the
 	// scratch slot before writing, then flips back on exit so the
 	// partialBufferHelper offsets are unchanged on return.
 	// See docs/probe-store-restore.md.
-	private double[] calcPatternLogLikelihoods(int nodeNr) {
-		return calcPatternLogLikelihoods(nodeNr, new HashSet<>());
+	private double[] calcPatternLogLikelihoods(int nodeNr, double[] out) {
+		invalidatePreOrderPartials();
+		flipCount = 0;
+		calcPatternLogLikelihoodsFlipped(nodeNr);
+		unflipAncestors();
+		System.arraycopy(patternLogLikelihoods, 0, out, 0, patternCount);
+		return out;
 	}
 
-	// Inner overload threads the per-call `flipped` set through the rescale
-	// recursion so we still flip each ancestor at most once across attempts
-	// (and flip them all back on the final success path).
-	private double[] calcPatternLogLikelihoods(int nodeNr, Set<Integer> flipped) {
+	/** flip ancestors back so the partials offsets are unchanged on exit **/
+	private void unflipAncestors() {
+		for (int i = 0; i < flipCount; i++) {
+			partialBufferHelper.flipOffset(flipStack[i]);
+			isFlipped[flipStack[i]] = false;
+		}
+		flipCount = 0;
+	}
+
+	// The flipped ancestors (flipStack/isFlipped) are kept across the rescale
+	// recursion so we still flip each ancestor at most once across attempts.
+	private void calcPatternLogLikelihoodsFlipped(int tipNr) {
+		int nodeNr = tipNr;
 
         Node node = treeInput.get().getNode(nodeNr);
         int operationCount = 0;
@@ -199,7 +906,9 @@ public class BeagleMATreeLikelihood extends BeagleTreeLikelihood {
 
 			// Flip to scratch slot so we don't overwrite partials captured by store().
 			// Flip at most once per node per proposal (toggling twice would clobber the stored slot).
-			if (flipped.add(nodeNr)) {
+			if (!isFlipped[nodeNr]) {
+				isFlipped[nodeNr] = true;
+				flipStack[flipCount++] = nodeNr;
 				partialBufferHelper.flipOffset(nodeNr);
 			}
             operations[x] = partialBufferHelper.getOffsetIndex(nodeNr);
@@ -258,7 +967,7 @@ public class BeagleMATreeLikelihood extends BeagleTreeLikelihood {
 
             double[] categoryWeights = m_siteModel.getCategoryProportions(null);
             if (getConstantPattern() != null) {
-	            double [] tmp = new double [categoryWeights.length - 1];
+	            double [] tmp = probeCategoryWeights;
 	            for (int k = 0; k < invariantCategory; k++) {
 	            	tmp[k] = categoryWeights[k];
 	            }
@@ -289,25 +998,26 @@ public class BeagleMATreeLikelihood extends BeagleTreeLikelihood {
 
             // these could be set only when they change but store/restore would need to be considered
             
+            // copy values rather than keep a reference, since probeCategoryWeights is reused
             for (int i = 0; i < categoryWeights.length; i++) {
             	if (categoryWeights[i] != currentCategoryWeights[i]) {
                     beagle.setCategoryWeights(0, categoryWeights);
+                    currentCategoryWeights = categoryWeights.clone();
             		i = categoryWeights.length;
             	}
             }
-            currentCategoryWeights = categoryWeights;
             for (int i = 0; i < frequencies.length; i++) {
             	if (frequencies[i] != currentFreqs[i]) {
                     beagle.setStateFrequencies(0, frequencies);
+                    currentFreqs = frequencies.clone();
             		i = frequencies.length;
             	}
             }
-            currentFreqs = frequencies;
-
-            double[] sumLogLikelihoods = new double[1];
 
-            beagle.calculateRootLogLikelihoods(new int[]{rootIndex}, new int[]{0}, new int[]{0},
-                    new int[]{cumulateScaleBufferIndex}, 1, sumLogLikelihoods);
+            rootIndexArg[0] = rootIndex;
+            cumulateScaleBufferIndexArg[0] = cumulateScaleBufferIndex;
+            beagle.calculateRootLogLikelihoods(rootIndexArg, ZERO_INDEX, ZERO_INDEX,
+                    cumulateScaleBufferIndexArg, 1, sumLogLikelihoods);
 
             logL = sumLogLikelihoods[0];
 
@@ -351,9 +1061,10 @@ public class BeagleMATreeLikelihood extends BeagleTreeLikelihood {
                     // traverse again but without flipping partials indices as we
                     // just want to overwrite the last attempt. We will flip the
                     // scale buffer indices though as we are recomputing them.
-					// Pass `flipped` so the recursion's add() check skips
-					// re-flipping the ancestors we already toggled.
-					return calcPatternLogLikelihoods(nodeNr, flipped);
+					// isFlipped makes the recursion skip re-flipping the
+					// ancestors we already toggled.
+					calcPatternLogLikelihoodsFlipped(tipNr);
+					return;
                 } else {
                     // we have already tried a rescale, not rescaling or always rescaling
                     // so just return the likelihood...
@@ -364,17 +1075,31 @@ public class BeagleMATreeLikelihood extends BeagleTreeLikelihood {
             }
 
         } while (!done);
-
-		// flip ancestors back so the partials offsets are unchanged on exit
-		for (Integer nr : flipped) {
-			partialBufferHelper.flipOffset(nr);
-		}
-
-        return patternLogLikelihoods.clone();
     }
 	@Override
 	public void store() {
-    	dirtySequences.clear();
+		// edits of the alignment were committed without accept()
+		if (sidecarIsPending) {
+			foldSidecar();
+		}
+		// tips updated before store() are part of the stored state, so have
+		// restore() set them again from the alignment
+		for (int k = 0; k < dirtySequenceCount; k++) {
+			tempTipNodes.set(dirtySequences[k]);
+		}
+    	dirtySequenceCount = 0;
+		Arrays.fill(tipIsFlipped, false);
+		tipBufferHelper.storeState();
+		clearUpdatedBlocks();
+		reinitialisedInProposal = false;
+		if (cachedPatternLogLikelihoods != null) {
+			System.arraycopy(cachedPatternLogLikelihoods, 0, storedPatternLogLikelihoods, 0, patternCount);
+			storedCachedLogP = cachedLogP;
+			storedCachedLogLikelihoodsAreCurrent = cachedLogLikelihoodsAreCurrent;
+		}
+		if (blockCount > 0) {
+			System.arraycopy(blockLogLikelihoods, 0, storedBlockLogLikelihoods, 0, blockCount);
+		}
 		// Do NOT clear tempTipNodes here. store() is called by MCMC between
 		// operator.proposal() and calculateLogP() (default
 		// requiresStateInitialisation=true). Tip-state probes happen during
@@ -386,24 +1111,70 @@ public class BeagleMATreeLikelihood extends BeagleTreeLikelihood {
 	
 	@Override
 	public void restore() {
+		if (reinitialisedInProposal) {
+			// stored buffers predate the new pattern count, so start over from the restored alignment
+			reinitialisedInProposal = false;
+			super.restore();
+			reinitialise();
+			calculateLogP();
+			tempTipNodes.clear();
+			return;
+		}
 		super.restore();
-		// Resync every tip we temporarily mutated from the (now-rolled-back)
-		// alignment. dirtySequences was populated during the previous
-		// calculateLogP from alignment.getDirtySequenceIndices(); we can't
-		// re-query that here because alignment.restore() has already cleared
-		// the edit list. Add probe-touched tips (tempTipNodes) since they may
-		// not have been alignment-dirty (e.g. ExchangeGibbsOperator's partials-
-		// fixup leaf).
-		dirtySequences.addAll(tempTipNodes);
-    	updateTipData();
-    	dirtySequences.clear();
+		invalidatePreOrderPartials();
+		// Tips updated by the previous calculateLogP (dirtySequences) switch
+		// back to their stored encoding, which only needs setting in BEAGLE.
+		tipBufferHelper.restoreState();
+		for (int k = 0; k < dirtySequenceCount; k++) {
+			int nodeNr = alignmentIdxToTreeNodeNr[dirtySequences[k]];
+			if (tipIsFlipped[nodeNr] && !tempTipNodes.get(dirtySequences[k])) {
+				uploadTip(nodeNr);
+			}
+		}
+		Arrays.fill(tipIsFlipped, false);
+		// Resync tips touched by probes (tempTipNodes) from the (now-rolled-back)
+		// alignment, since they may not have been alignment-dirty (e.g.
+		// ExchangeGibbsOperator's partials-fixup leaf). We can't re-query the
+		// alignment for dirty sequences here because alignment.restore() has
+		// already cleared the edit list.
+		dirtySequenceCount = 0;
+		for (int i = tempTipNodes.nextSetBit(0); i >= 0; i = tempTipNodes.nextSetBit(i + 1)) {
+			dirtySequences[dirtySequenceCount++] = i;
+		}
+    	updateTipData(false);
+    	updatePatternWeights();
+    	dirtySequenceCount = 0;
 		tempTipNodes.clear();
+		// blocks updated in place are recalculated from the restored tips
+		if (blockCount > 0) {
+			updateBlockPartials();
+			clearUpdatedBlocks();
+			double[] tmp = blockLogLikelihoods;
+			blockLogLikelihoods = storedBlockLogLikelihoods;
+			storedBlockLogLikelihoods = tmp;
+		}
+		// a pending sidecar evaluation did not change BEAGLE, so is simply dropped
+		sidecarIsPending = false;
+		sidecarMatricesAreCurrent = false;
+		if (cachedPatternLogLikelihoods != null) {
+			double[] tmp = cachedPatternLogLikelihoods;
+			cachedPatternLogLikelihoods = storedPatternLogLikelihoods;
+			storedPatternLogLikelihoods = tmp;
+			cachedLogP = storedCachedLogP;
+			cachedLogLikelihoodsAreCurrent = storedCachedLogLikelihoodsAreCurrent;
+		}
 	}
 
 	@Override
 	protected void accept() {
-    	dirtySequences.clear();
+		if (sidecarIsPending) {
+			foldSidecar();
+		}
+		reinitialisedInProposal = false;
+    	dirtySequenceCount = 0;
+		Arrays.fill(tipIsFlipped, false);
 		tempTipNodes.clear();
+		clearUpdatedBlocks();
 		alignment.accept();
 		super.accept();
 	}
@@ -411,12 +1182,41 @@ public class BeagleMATreeLikelihood extends BeagleTreeLikelihood {
 	@Override
 	protected boolean requiresRecalculation() {
 		boolean isDirty =  super.requiresRecalculation();
+		onlyAlignmentIsDirty = alignment.somethingIsDirty() && !treeInput.get().somethingIsDirty() &&
+				!m_siteModel.isDirtyCalculation() &&
+				(branchRateModelInput.get() == null || !branchRateModelInput.get().isDirtyCalculation()) &&
+				!(substitutionModel instanceof CalculationNode && ((CalculationNode) substitutionModel).isDirtyCalculation()) &&
+				(rootFrequenciesInput.get() == null || !rootFrequenciesInput.get().isDirtyCalculation());
 		if (alignment.somethingIsDirty()) {
 			alignmentNeedsUpdate = true;
             hasDirt = Tree.IS_DIRTY;
 			isDirty = true;
 		}
+		if (cachedStates.length != alignment.getPatternCount()) {
+			// a compressing alignment ran out of pattern slots and added some
+			reinitialise();
+			reinitialisedInProposal = true;
+			isDirty = true;
+		}
 		return isDirty;
 	}
+
+	/** rebuild the BEAGLE instance and all buffers for the current pattern count of the alignment **/
+	private void reinitialise() {
+		if (beagle != null) {
+			try {
+				beagle.finalize();
+			} catch (Throwable e) {
+				throw new RuntimeException(e);
+			}
+			beagle = null;
+		}
+		sidecar = null;
+		sidecarIsPending = false;
+		// pre-order buffers are sized by the pattern count
+		preOrderPartials = null;
+		initAndValidate();
+		hasDirt = Tree.IS_FILTHY;
+	}
 	
 }
\ No newline at end of file
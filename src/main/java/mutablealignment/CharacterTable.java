@@ -0,0 +1,57 @@
+package mutablealignment;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import beast.base.evolution.datatype.DataType;
+
+/**
+ * Bytes of the character of each code of a data type, looked up once per code
+ * so that formatting an alignment does not create a String per character.
+ * Not thread safe: the table grows when a code is encountered for the first time.
+ **/
+public class CharacterTable {
+	private final DataType dataType;
+	private byte [][] bytes = new byte[0][];
+	private byte [] row = new byte[256];
+	private int rowLength;
+
+	public CharacterTable(DataType dataType) {
+		this.dataType = dataType;
+	}
+
+	public byte [] getBytes(int code) {
+		if (code >= bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(code + 1, bytes.length * 2));
+		}
+		if (bytes[code] == null) {
+			bytes[code] = dataType.getCharacter(code).getBytes(StandardCharsets.UTF_8);
+		}
+		return bytes[code];
+	}
+
+	/** format the first count codes into a row, available through getRow()/getRowLength() **/
+	public void format(int [] codes, int count) {
+		rowLength = 0;
+		for (int i = 0; i < count; i++) {
+			byte [] b = getBytes(codes[i]);
+			if (rowLength + b.length > row.length) {
+				row = Arrays.copyOf(row, Math.max(rowLength + b.length, row.length * 2));
+			}
+			if (b.length == 1) {
+				row[rowLength++] = b[0];
+			} else {
+				System.arraycopy(b, 0, row, rowLength, b.length);
+				rowLength += b.length;
+			}
+		}
+	}
+
+	public byte [] getRow() {
+		return row;
+	}
+
+	public int getRowLength() {
+		return rowLength;
+	}
+}
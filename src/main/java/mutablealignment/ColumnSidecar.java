@@ -0,0 +1,123 @@
+package mutablealignment;
+
+import beast.base.evolution.tree.Node;
+
+/**
+ * Pattern log likelihoods of a few columns, calculated with plain loops from
+ * tip states and transition matrices, without scaling. BeagleMATreeLikelihood
+ * uses it for proposals that change only a few patterns, so that BEAGLE only
+ * needs updating once such a proposal is accepted.
+ *
+ * Partials are indexed (l * capacity + h) * stateCount + i for category l,
+ * column h and state i, and matrices l * stateCount * stateCount + i * stateCount + j,
+ * as returned by BEAGLE. A tip state of stateCount or more is missing data.
+ **/
+final class ColumnSidecar {
+	private final int stateCount;
+	private final int categoryCount;
+	private final int capacity;
+	private final int[][] tipStates;
+	private final double[][] matrices;
+	private final double[][] partials;
+
+	/**
+	 * @param capacity maximum number of columns evaluated at once
+	 */
+	ColumnSidecar(int tipCount, int nodeCount, int stateCount, int categoryCount, int capacity) {
+		this.stateCount = stateCount;
+		this.categoryCount = categoryCount;
+		this.capacity = capacity;
+		tipStates = new int[tipCount][capacity];
+		matrices = new double[nodeCount][categoryCount * stateCount * stateCount];
+		partials = new double[nodeCount][];
+		for (int i = tipCount; i < nodeCount; i++) {
+			partials[i] = new double[categoryCount * capacity * stateCount];
+		}
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	/** transition matrices of the branch above node, to be filled in by the caller **/
+	double[] getMatrices(int nodeNr) {
+		return matrices[nodeNr];
+	}
+
+	void setTipState(int nodeNr, int column, int state) {
+		tipStates[nodeNr][column] = state;
+	}
+
+	int getTipState(int nodeNr, int column) {
+		return tipStates[nodeNr][column];
+	}
+
+	/**
+	 * Calculates log likelihoods of the first columnCount columns
+	 * @param out log likelihood per column, unweighted
+	 */
+	void calculateLogLikelihoods(Node root, double[] categoryWeights, double[] frequencies, int columnCount, double[] out) {
+		calculatePartials(root, columnCount);
+		double[] rootPartials = partials[root.getNr()];
+		for (int h = 0; h < columnCount; h++) {
+			double sum = 0;
+			for (int l = 0; l < categoryCount; l++) {
+				int x = (l * capacity + h) * stateCount;
+				double categorySum = 0;
+				for (int i = 0; i < stateCount; i++) {
+					categorySum += frequencies[i] * rootPartials[x + i];
+				}
+				sum += categoryWeights[l] * categorySum;
+			}
+			out[h] = Math.log(sum);
+		}
+	}
+
+	private void calculatePartials(Node node, int columnCount) {
+		Node child1 = node.getLeft();
+		Node child2 = node.getRight();
+		if (!child1.isLeaf()) {
+			calculatePartials(child1, columnCount);
+		}
+		if (!child2.isLeaf()) {
+			calculatePartials(child2, columnCount);
+		}
+		double[] nodePartials = partials[node.getNr()];
+		propagate(child1, columnCount, nodePartials, false);
+		propagate(child2, columnCount, nodePartials, true);
+	}
+
+	/** set, or multiply if multiply is true, partials by those of child propagated along its branch **/
+	private void propagate(Node child, int columnCount, double[] nodePartials, boolean multiply) {
+		int matrixSize = stateCount * stateCount;
+		double[] m = matrices[child.getNr()];
+		if (child.isLeaf()) {
+			int[] states = tipStates[child.getNr()];
+			for (int l = 0; l < categoryCount; l++) {
+				for (int h = 0; h < columnCount; h++) {
+					int x = (l * capacity + h) * stateCount;
+					int state = states[h];
+					for (int i = 0; i < stateCount; i++) {
+						double value = state < stateCount ? m[l * matrixSize + i * stateCount + state] : 1.0;
+						nodePartials[x + i] = multiply ? nodePartials[x + i] * value : value;
+					}
+				}
+			}
+			return;
+		}
+		double[] childPartials = partials[child.getNr()];
+		for (int l = 0; l < categoryCount; l++) {
+			for (int h = 0; h < columnCount; h++) {
+				int x = (l * capacity + h) * stateCount;
+				for (int i = 0; i < stateCount; i++) {
+					int w = l * matrixSize + i * stateCount;
+					double sum = 0;
+					for (int j = 0; j < stateCount; j++) {
+						sum += m[w + j] * childPartials[x + j];
+					}
+					nodePartials[x + i] = multiply ? nodePartials[x + i] * sum : sum;
+				}
+			}
+		}
+	}
+}
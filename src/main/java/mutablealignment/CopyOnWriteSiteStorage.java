@@ -0,0 +1,192 @@
+package mutablealignment;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Site storage using one int per character, split into blocks of consecutive
+ * sites (site-major within a block) that can be shared between copies.
+ *
+ * copy() and assignFrom() only copy references to blocks and bump their
+ * reference counts. A block is duplicated when it is written to while it is
+ * shared, so copies of a state (e.g. for heated chains) only cost memory for
+ * the parts of the alignment where they differ.
+ *
+ * Reference counts are atomic, so copies may be written to from different
+ * threads. A storage that becomes unreachable does not release its blocks,
+ * so the other side may duplicate a block once more than strictly required.
+ **/
+public class CopyOnWriteSiteStorage implements SiteStorage {
+	public final static int DEFAULT_BLOCK_SITES = 64;
+
+	private static class Block {
+		final int [] values;
+		final AtomicInteger refCount = new AtomicInteger(1);
+
+		Block(int [] values) {
+			this.values = values;
+		}
+	}
+
+	private final int taxonCount;
+	private final int siteCount;
+	private final int blockSites;
+	private final Block [] blocks;
+
+	public CopyOnWriteSiteStorage(int taxonCount, int siteCount) {
+		this(taxonCount, siteCount, DEFAULT_BLOCK_SITES);
+	}
+
+	/**
+	 * @param blockSites number of sites per block, the unit of sharing
+	 */
+	public CopyOnWriteSiteStorage(int taxonCount, int siteCount, int blockSites) {
+		this.taxonCount = taxonCount;
+		this.siteCount = siteCount;
+		this.blockSites = blockSites;
+		blocks = new Block[(siteCount + blockSites - 1) / blockSites];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = new Block(new int[sitesInBlock(i) * taxonCount]);
+		}
+	}
+
+	private CopyOnWriteSiteStorage(CopyOnWriteSiteStorage other) {
+		this.taxonCount = other.taxonCount;
+		this.siteCount = other.siteCount;
+		this.blockSites = other.blockSites;
+		blocks = new Block[other.blocks.length];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = other.blocks[i];
+			blocks[i].refCount.incrementAndGet();
+		}
+	}
+
+	/** a copy that shares all blocks with this storage **/
+	public CopyOnWriteSiteStorage copy() {
+		return new CopyOnWriteSiteStorage(this);
+	}
+
+	/**
+	 * Share all blocks of other, which should have the same dimensions and block size
+	 * @throws IllegalArgumentException if other is not compatible
+	 */
+	public void assignFrom(CopyOnWriteSiteStorage other) {
+		if (other.taxonCount != taxonCount || other.siteCount != siteCount || other.blockSites != blockSites) {
+			throw new IllegalArgumentException("Cannot share blocks of a " + other.taxonCount + " x " + other.siteCount
+					+ " storage with a " + taxonCount + " x " + siteCount + " storage");
+		}
+		for (int i = 0; i < blocks.length; i++) {
+			if (blocks[i] != other.blocks[i]) {
+				blocks[i].refCount.decrementAndGet();
+				blocks[i] = other.blocks[i];
+				blocks[i].refCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Give up all blocks, so that other storages sharing them do not need to duplicate
+	 * them on their next write. This storage should not be used afterwards.
+	 */
+	public void release() {
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i].refCount.decrementAndGet();
+		}
+	}
+
+	/** number of blocks that are shared with another storage **/
+	public int getSharedBlockCount() {
+		int count = 0;
+		for (Block block : blocks) {
+			if (block.refCount.get() > 1) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public int getBlockCount() {
+		return blocks.length;
+	}
+
+	@Override
+	public int getTaxonCount() {
+		return taxonCount;
+	}
+
+	@Override
+	public int getSiteCount() {
+		return siteCount;
+	}
+
+	@Override
+	public int getSiteValue(int taxonNr, int siteNr) {
+		return blocks[siteNr / blockSites].values[(siteNr % blockSites) * taxonCount + taxonNr];
+	}
+
+	@Override
+	public void setSiteValue(int taxonNr, int siteNr, int value) {
+		writable(siteNr / blockSites)[(siteNr % blockSites) * taxonCount + taxonNr] = value;
+	}
+
+	@Override
+	public void getSiteValuesBySite(int siteNr, int[] dest) {
+		System.arraycopy(blocks[siteNr / blockSites].values, (siteNr % blockSites) * taxonCount, dest, 0, taxonCount);
+	}
+
+	@Override
+	public void setSiteValuesBySite(int siteNr, int[] values) {
+		System.arraycopy(values, 0, writable(siteNr / blockSites), (siteNr % blockSites) * taxonCount, taxonCount);
+	}
+
+	@Override
+	public void getSiteValuesByTaxon(int taxonNr, int[] dest) {
+		int siteNr = 0;
+		for (Block block : blocks) {
+			int [] values = block.values;
+			for (int k = taxonNr; k < values.length; k += taxonCount) {
+				dest[siteNr++] = values[k];
+			}
+		}
+	}
+
+	@Override
+	public void setSiteValuesByTaxon(int taxonNr, int[] values) {
+		int siteNr = 0;
+		for (int i = 0; i < blocks.length; i++) {
+			int [] blockValues = writable(i);
+			for (int k = taxonNr; k < blockValues.length; k += taxonCount) {
+				blockValues[k] = values[siteNr++];
+			}
+		}
+	}
+
+	/**
+	 * Heap use of the block table plus this storage's share of every block,
+	 * so that summing over all copies gives the total used by the blocks.
+	 */
+	@Override
+	public long getMemoryFootprint() {
+		long bytes = IntArraySiteStorage.align(16L + 4L * blocks.length);
+		for (Block block : blocks) {
+			long blockBytes = 32 + IntArraySiteStorage.align(16L + 4L * block.values.length);
+			bytes += blockBytes / Math.max(block.refCount.get(), 1);
+		}
+		return bytes;
+	}
+
+	/** values of block blockNr, duplicating the block first if it is shared **/
+	private int [] writable(int blockNr) {
+		Block block = blocks[blockNr];
+		if (block.refCount.get() > 1) {
+			Block copy = new Block(block.values.clone());
+			block.refCount.decrementAndGet();
+			blocks[blockNr] = copy;
+			return copy.values;
+		}
+		return block.values;
+	}
+
+	private int sitesInBlock(int blockNr) {
+		return Math.min(blockSites, siteCount - blockNr * blockSites);
+	}
+}
@@ -0,0 +1,181 @@
+package mutablealignment;
+
+import java.util.Arrays;
+
+import mutablealignment.MutableAlignment.EditType;
+
+/**
+ * Journal of edits to the alignment, used to restore an alignment if necessary.
+ *
+ * Edits are stored as a struct of int arrays, with the old and new values of
+ * bulk edits (whole site, whole taxon, whole alignment) in a shared int pool.
+ * Arrays only grow, so once the journal has seen the largest proposal,
+ * recording and rolling back edits does not allocate.
+ **/
+public class EditJournal {
+	private final static EditType [] TYPES = EditType.values();
+	private final static int INITIAL_CAPACITY = 16;
+
+	private int size = 0;
+	private int [] type = new int[INITIAL_CAPACITY];
+	private int [] siteNr = new int[INITIAL_CAPACITY];
+	private int [] taxonNr = new int[INITIAL_CAPACITY];
+	private int [] oldValue = new int[INITIAL_CAPACITY];
+	private int [] newValue = new int[INITIAL_CAPACITY];
+	private int [] poolOffset = new int[INITIAL_CAPACITY];
+	private int [] poolLength = new int[INITIAL_CAPACITY];
+
+	/** old values of a bulk edit at poolOffset, followed by the new values **/
+	private int [] pool = new int[INITIAL_CAPACITY];
+	private int poolSize = 0;
+
+	/** number of edits in the journal **/
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+		poolSize = 0;
+	}
+
+	public EditType getType(int editNr) {
+		return TYPES[type[editNr]];
+	}
+
+	/** site of the edit, -1 for allSites and all edits **/
+	public int getSiteNr(int editNr) {
+		return siteNr[editNr];
+	}
+
+	/** taxon of the edit, -1 for allTaxa and all edits **/
+	public int getTaxonNr(int editNr) {
+		return taxonNr[editNr];
+	}
+
+	/** old value of a singleSite edit **/
+	public int getOldValue(int editNr) {
+		return oldValue[editNr];
+	}
+
+	/** new value of a singleSite edit **/
+	public int getNewValue(int editNr) {
+		return newValue[editNr];
+	}
+
+	/** number of values in a bulk edit **/
+	public int getLength(int editNr) {
+		return poolLength[editNr];
+	}
+
+	/** copy old values of a bulk edit into dest **/
+	public void getOldValues(int editNr, int [] dest) {
+		System.arraycopy(pool, poolOffset[editNr], dest, 0, poolLength[editNr]);
+	}
+
+	/** copy new values of a bulk edit into dest **/
+	public void getNewValues(int editNr, int [] dest) {
+		System.arraycopy(pool, poolOffset[editNr] + poolLength[editNr], dest, 0, poolLength[editNr]);
+	}
+
+	/** the shared pool, with old values of edit editNr at getOldValuesOffset(editNr) **/
+	public int [] getPool() {
+		return pool;
+	}
+
+	public int getOldValuesOffset(int editNr) {
+		return poolOffset[editNr];
+	}
+
+	public int getNewValuesOffset(int editNr) {
+		return poolOffset[editNr] + poolLength[editNr];
+	}
+
+	public void addSingleSite(int siteNr, int taxonNr, int oldValue, int newValue) {
+		int i = add(EditType.singleSite, siteNr, taxonNr);
+		this.oldValue[i] = oldValue;
+		this.newValue[i] = newValue;
+		poolLength[i] = 0;
+	}
+
+	/** old and new values are copied into the pool **/
+	public void addAllTaxa(int siteNr, int [] oldValues, int [] newValues, int taxonCount) {
+		int i = add(EditType.allTaxa, siteNr, -1);
+		addToPool(i, oldValues, newValues, taxonCount);
+	}
+
+	public void addAllSites(int taxonNr, int [] oldValues, int [] newValues, int siteCount) {
+		int i = add(EditType.allSites, -1, taxonNr);
+		addToPool(i, oldValues, newValues, siteCount);
+	}
+
+	/**
+	 * Start an edit of the whole alignment. Old values are added site by site through
+	 * addAllOldValues() followed by the new values through addAllNewValues().
+	 */
+	public void addAll(int siteCount, int taxonCount) {
+		int i = add(EditType.all, -1, -1);
+		int length = siteCount * taxonCount;
+		ensurePoolCapacity(poolSize + 2 * length);
+		poolOffset[i] = poolSize;
+		poolLength[i] = length;
+		poolSize += 2 * length;
+	}
+
+	/**
+	 * Add an edit of the whole alignment that is rolled back by swapping
+	 * storage buffers, so no values are kept
+	 */
+	public void addSwap() {
+		int i = add(EditType.all, -1, -1);
+		poolOffset[i] = poolSize;
+		poolLength[i] = 0;
+	}
+
+	/** whether edit editNr was added by addSwap() **/
+	public boolean isSwap(int editNr) {
+		return type[editNr] == EditType.all.ordinal() && poolLength[editNr] == 0;
+	}
+
+	/** set old values for site siteNr of the last edit, which should be of type all **/
+	public void addAllOldValues(int siteNr, int [] oldValues, int taxonCount) {
+		System.arraycopy(oldValues, 0, pool, poolOffset[size - 1] + siteNr * taxonCount, taxonCount);
+	}
+
+	public void addAllNewValues(int siteNr, int [] newValues, int taxonCount) {
+		int i = size - 1;
+		System.arraycopy(newValues, 0, pool, poolOffset[i] + poolLength[i] + siteNr * taxonCount, taxonCount);
+	}
+
+	private int add(EditType editType, int siteNr, int taxonNr) {
+		if (size == type.length) {
+			int capacity = size * 2;
+			type = Arrays.copyOf(type, capacity);
+			this.siteNr = Arrays.copyOf(this.siteNr, capacity);
+			this.taxonNr = Arrays.copyOf(this.taxonNr, capacity);
+			oldValue = Arrays.copyOf(oldValue, capacity);
+			newValue = Arrays.copyOf(newValue, capacity);
+			poolOffset = Arrays.copyOf(poolOffset, capacity);
+			poolLength = Arrays.copyOf(poolLength, capacity);
+		}
+		type[size] = editType.ordinal();
+		this.siteNr[size] = siteNr;
+		this.taxonNr[size] = taxonNr;
+		return size++;
+	}
+
+	private void addToPool(int i, int [] oldValues, int [] newValues, int length) {
+		ensurePoolCapacity(poolSize + 2 * length);
+		poolOffset[i] = poolSize;
+		poolLength[i] = length;
+		System.arraycopy(oldValues, 0, pool, poolSize, length);
+		System.arraycopy(newValues, 0, pool, poolSize + length, length);
+		poolSize += 2 * length;
+	}
+
+	private void ensurePoolCapacity(int capacity) {
+		if (capacity > pool.length) {
+			pool = Arrays.copyOf(pool, Math.max(capacity, pool.length * 2));
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package mutablealignment;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Operator;
+import beast.base.util.Randomizer;
+
+@Description("Gibbs operator that resamples the whole sequence of a random taxon from its full conditional "
+		+ "given the tree likelihood. Conditionals for all sites are obtained in one go from the likelihood. "
+		+ "Characters that cannot change according to the mutability mask of the alignment are kept. "
+		+ "Assumes the alignment has a uniform prior, so the tree likelihood is the only term depending on it.")
+public class GibbsSequenceOperator extends Operator {
+	final public Input<MutableAlignment> mutableAlignmentInput = new Input<>("mutableAlignment", "alignment to operate on", Validate.REQUIRED);
+	final public Input<SequenceProbe> likelihoodInput = new Input<>("likelihood", "tree likelihood of the alignment, "
+			+ "either MATreeLikelihood or BeagleMATreeLikelihood", Validate.REQUIRED);
+
+	private MutableAlignment alignment;
+	private SequenceProbe likelihood;
+	private int stateCount;
+
+	// log likelihood per pattern and state, pattern-major
+	private double [] patternLogProbs;
+	// log likelihood per site and state, site-major
+	private double [] siteLogProbs;
+	private int [] sequence;
+	// unnormalised probabilities of states at a site
+	private double [] p;
+
+	@Override
+	public void initAndValidate() {
+		alignment = mutableAlignmentInput.get();
+		likelihood = likelihoodInput.get();
+		stateCount = alignment.getDataType().getStateCount();
+		int patternCount = alignment.getPatternCount();
+		patternLogProbs = new double[patternCount * stateCount];
+		siteLogProbs = new double[alignment.getSiteCount() * stateCount];
+		sequence = new int[alignment.getSiteCount()];
+		p = new double[stateCount];
+	}
+
+	@Override
+	public double proposal() {
+		int taxonNr = Randomizer.nextInt(alignment.getTaxonCount());
+		double [] logProbs = calculateConditionals(taxonNr);
+
+		for (int j = 0; j < sequence.length; j++) {
+			if (!alignment.isMutable(taxonNr, j)) {
+				sequence[j] = alignment.getSiteValue(taxonNr, j);
+				continue;
+			}
+			int offset = j * stateCount;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int s = 0; s < stateCount; s++) {
+				max = Math.max(max, logProbs[offset + s]);
+			}
+			if (max == Double.NEGATIVE_INFINITY) {
+				// no state is possible given the rest of the state
+				return Double.NEGATIVE_INFINITY;
+			}
+			double sum = 0;
+			for (int s = 0; s < stateCount; s++) {
+				p[s] = Math.exp(logProbs[offset + s] - max);
+				sum += p[s];
+			}
+			double u = Randomizer.nextDouble() * sum;
+			int s = 0;
+			while (s < stateCount - 1 && u >= p[s]) {
+				u -= p[s];
+				s++;
+			}
+			sequence[j] = s;
+		}
+		// may add pattern slots to a compressing alignment, after which the likelihood re-initialises
+		alignment.setSiteValuesByTaxon(taxonNr, sequence);
+		return Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Calculates for every site the log likelihood of each state of taxonNr,
+	 * up to a constant per site, from the likelihood of every state at every
+	 * pattern. Since sites are independent, pattern p gives the conditional for
+	 * all sites of pattern p.
+	 * @return log likelihoods, with stateCount values per site; this array is reused by the next call
+	 */
+	public double [] calculateConditionals(int taxonNr) {
+		if (patternLogProbs.length < alignment.getPatternCount() * stateCount) {
+			// a compressing alignment added pattern slots
+			patternLogProbs = new double[alignment.getPatternCount() * stateCount];
+		}
+		likelihood.getTipConditionalLogProbs(taxonNr, stateCount, patternLogProbs);
+		int siteCount = alignment.getSiteCount();
+		for (int j = 0; j < siteCount; j++) {
+			System.arraycopy(patternLogProbs, alignment.getPatternIndex(j) * stateCount, siteLogProbs, j * stateCount, stateCount);
+		}
+		return siteLogProbs;
+	}
+
+}
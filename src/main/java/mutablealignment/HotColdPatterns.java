@@ -0,0 +1,138 @@
+package mutablealignment;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pattern layout of a MutableAlignment with a mutability mask.
+ *
+ * Sites without mutable characters are cold: they never change, so they are
+ * compressed into patterns once, as for a normal alignment. Sites with
+ * mutable characters are hot: each has a pattern of its own that is read from
+ * the storage, so edits only ever touch hot patterns. Cold patterns come
+ * first, followed by hot patterns in site order.
+ **/
+public class HotColdPatterns {
+	private final int [][] coldPatterns;
+	// site of each hot pattern
+	private final int [] hotSites;
+	// shared with Alignment.patternIndex and Alignment.patternWeight
+	private final int [] patternIndex;
+	private final int [] patternWeight;
+
+	/**
+	 * @param hot sites with mutable characters
+	 * @param siteWeights weights of sites, or null if all sites have weight 1
+	 */
+	public HotColdPatterns(SiteStorage storage, BitSet hot, int [] siteWeights) {
+		int taxonCount = storage.getTaxonCount();
+		int siteCount = storage.getSiteCount();
+		patternIndex = new int[siteCount];
+
+		Map<Column, Integer> columns = new HashMap<>();
+		int [][] patterns = new int[siteCount - hot.cardinality()][];
+		for (int j = hot.nextClearBit(0); j < siteCount; j = hot.nextClearBit(j + 1)) {
+			int [] values = new int[taxonCount];
+			storage.getSiteValuesBySite(j, values);
+			Integer k = columns.get(new Column(values));
+			if (k == null) {
+				k = columns.size();
+				columns.put(new Column(values), k);
+				patterns[k] = values;
+			}
+			patternIndex[j] = k;
+		}
+		coldPatterns = Arrays.copyOf(patterns, columns.size());
+
+		hotSites = hot.stream().toArray();
+		for (int h = 0; h < hotSites.length; h++) {
+			patternIndex[hotSites[h]] = coldPatterns.length + h;
+		}
+
+		patternWeight = new int[coldPatterns.length + hotSites.length];
+		for (int j = 0; j < siteCount; j++) {
+			patternWeight[patternIndex[j]] += siteWeights == null ? 1 : siteWeights[j];
+		}
+	}
+
+	public int [] getPatternIndex() {
+		return patternIndex;
+	}
+
+	public int [] getPatternWeight() {
+		return patternWeight;
+	}
+
+	public int getPatternCount() {
+		return coldPatterns.length + hotSites.length;
+	}
+
+	public int getColdPatternCount() {
+		return coldPatterns.length;
+	}
+
+	/** characters of a cold pattern, which should not be changed **/
+	public int [] getColdPattern(int patternNr) {
+		return coldPatterns[patternNr];
+	}
+
+	/** site of a hot pattern **/
+	public int getHotSite(int patternNr) {
+		return hotSites[patternNr - coldPatterns.length];
+	}
+
+	public int getPattern(SiteStorage storage, int taxonNr, int patternNr) {
+		if (patternNr < coldPatterns.length) {
+			return coldPatterns[patternNr][taxonNr];
+		}
+		return storage.getSiteValue(taxonNr, hotSites[patternNr - coldPatterns.length]);
+	}
+
+	/** copy characters of taxon for all patterns into dest, which should be at least of length getPatternCount() **/
+	public void getPatternValuesByTaxon(SiteStorage storage, int taxonNr, int [] dest) {
+		for (int k = 0; k < coldPatterns.length; k++) {
+			dest[k] = coldPatterns[k][taxonNr];
+		}
+		for (int h = 0; h < hotSites.length; h++) {
+			dest[coldPatterns.length + h] = storage.getSiteValue(taxonNr, hotSites[h]);
+		}
+	}
+
+	/**
+	 * Copy indices of hot patterns of dirty sites into out, in increasing order.
+	 * Cold sites cannot change, so they are ignored even when marked dirty.
+	 * @return number of dirty patterns
+	 */
+	public int getDirtyPatternIndices(BitSet dirtySites, int [] out) {
+		int k = 0;
+		for (int j = dirtySites.nextSetBit(0); j >= 0; j = dirtySites.nextSetBit(j + 1)) {
+			if (patternIndex[j] >= coldPatterns.length) {
+				out[k++] = patternIndex[j];
+			}
+		}
+		return k;
+	}
+
+	/** column of characters as hash key **/
+	private static class Column {
+		final int [] values;
+		final int hash;
+
+		Column(int [] values) {
+			this.values = values;
+			hash = Arrays.hashCode(values);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Column && Arrays.equals(values, ((Column) other).values);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package mutablealignment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Loggable;
+
+@Description("Logs whole mutable alignment to a trace file with a fixed-size record per sample, "
+		+ "so that IndexedAlignmentTraceReader can go to any sample without reading the samples before it")
+public class IndexedAlignmentLogger extends BEASTObject implements Loggable {
+	final public Input<MutableAlignment> alignmentInput = new Input<>("alignment", "mutable alignment to be logged", Validate.REQUIRED);
+	final public Input<String> fileInput = new Input<>("file", "file to write the trace to", Validate.REQUIRED);
+
+	private MutableAlignment alignment;
+	private IndexedAlignmentTraceWriter writer;
+
+	@Override
+	public void initAndValidate() {
+		alignment = alignmentInput.get();
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		// codes are data type states or ambiguities, which fit in a byte for all common data types
+		int maxCode = Math.max(alignment.getMaxStateCount(), alignment.getDataType().getStateCount());
+		SiteStorage storage = alignment.getStorage();
+		for (int i = 0; i < alignment.getTaxonCount(); i++) {
+			for (int j = 0; j < alignment.getSiteCount(); j++) {
+				maxCode = Math.max(maxCode, storage.getSiteValue(i, j));
+			}
+		}
+		try {
+			writer = new IndexedAlignmentTraceWriter(new File(fileInput.get()), alignment.getTaxaNames(),
+					alignment.getSiteCount(), maxCode);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not open " + fileInput.get(), e);
+		}
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		try {
+			writer.write(sample, alignment.getStorage());
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not write to " + fileInput.get(), e);
+		}
+	}
+
+	@Override
+	public void close(PrintStream out) {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not close " + fileInput.get(), e);
+			}
+			writer = null;
+		}
+	}
+
+}
@@ -0,0 +1,232 @@
+package mutablealignment;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import beast.base.evolution.datatype.DataType;
+
+/**
+ * Reads trace files written by IndexedAlignmentTraceWriter by mapping them into
+ * memory. Since records have a fixed size, any sample can be accessed directly,
+ * and getAlignment() returns a read-only alignment on the mapped record rather
+ * than a copy of the characters.
+ *
+ * Samples appended after the reader was opened are not visible, and a record
+ * that was only partially written is ignored. Views should not be used after
+ * the reader is closed.
+ **/
+public class IndexedAlignmentTraceReader implements AutoCloseable {
+	private final static ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+	private final static ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+	private final static ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+	private final Arena arena;
+	private final MemorySegment records;
+	private final int taxonCount;
+	private final int siteCount;
+	private final int cellBytes;
+	private final long recordSize;
+	private final int sampleCount;
+	private final List<String> taxaNames;
+	private final DataType dataType;
+	// shared by all alignments returned by getAlignment()
+	private final int [] patternIndex;
+	private final int [] patternWeight;
+
+	/**
+	 * @param dataType data type of the logged alignment, which the file does not record
+	 */
+	public IndexedAlignmentTraceReader(File file, DataType dataType) throws IOException {
+		this.dataType = dataType;
+		arena = Arena.ofShared();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < IndexedAlignmentTraceWriter.NAMES_OFFSET) {
+				throw new IOException("File " + file.getPath() + " is not an indexed alignment trace");
+			}
+			MemorySegment segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena);
+			if (segment.get(INT, 0) != IndexedAlignmentTraceWriter.MAGIC) {
+				throw new IOException("File " + file.getPath() + " is not an indexed alignment trace");
+			}
+			int version = segment.get(INT, 4);
+			if (version != IndexedAlignmentTraceWriter.VERSION) {
+				throw new IOException("Cannot read indexed alignment trace of version " + version);
+			}
+			taxonCount = segment.get(INT, 8);
+			siteCount = segment.get(INT, 12);
+			cellBytes = segment.get(INT, 16);
+			int dataOffset = segment.get(INT, 20);
+			recordSize = segment.get(LONG, 24);
+			if (recordSize != IndexedAlignmentTraceWriter.recordSize(taxonCount, siteCount, cellBytes) || dataOffset > size) {
+				throw new IOException("Corrupt header in indexed alignment trace " + file.getPath());
+			}
+			List<String> names = new ArrayList<>();
+			long offset = IndexedAlignmentTraceWriter.NAMES_OFFSET;
+			for (int i = 0; i < taxonCount; i++) {
+				int length = segment.get(INT, offset);
+				byte [] name = segment.asSlice(offset + 4, length).toArray(ValueLayout.JAVA_BYTE);
+				names.add(new String(name, StandardCharsets.UTF_8));
+				offset += 4 + length;
+			}
+			taxaNames = Collections.unmodifiableList(names);
+			sampleCount = (int) ((size - dataOffset) / recordSize);
+			records = segment.asSlice(dataOffset, sampleCount * recordSize);
+			patternIndex = new int[siteCount];
+			Arrays.setAll(patternIndex, j -> j);
+			patternWeight = new int[siteCount];
+			Arrays.fill(patternWeight, 1);
+		} catch (IOException | RuntimeException e) {
+			arena.close();
+			throw e;
+		}
+	}
+
+	public List<String> getTaxaNames() {
+		return taxaNames;
+	}
+
+	public int getTaxonCount() {
+		return taxonCount;
+	}
+
+	public int getSiteCount() {
+		return siteCount;
+	}
+
+	public DataType getDataType() {
+		return dataType;
+	}
+
+	/** number of complete records in the file when it was opened **/
+	public int getSampleCount() {
+		return sampleCount;
+	}
+
+	/** sample number of the record at index **/
+	public long getSample(int index) {
+		return records.get(LONG, checkIndex(index) * recordSize);
+	}
+
+	/**
+	 * Index of the record for the given sample number, assuming samples were logged
+	 * in increasing order
+	 * @return -1 if there is no such sample
+	 */
+	public int indexOf(long sample) {
+		int lo = 0, hi = sampleCount - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long s = getSample(mid);
+			if (s < sample) {
+				lo = mid + 1;
+			} else if (s > sample) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Read-only alignment in the record at index, with taxa in the order of
+	 * getTaxaNames(), which can be passed to anything that takes an Alignment
+	 */
+	public ReadOnlyAlignment getAlignment(int index) {
+		SiteStorage view = new RecordView(records.asSlice(checkIndex(index) * recordSize + 8, (long) taxonCount * siteCount * cellBytes));
+		return new ReadOnlyAlignment(view, taxaNames, dataType, patternIndex, patternWeight);
+	}
+
+	/** unmaps the file **/
+	@Override
+	public void close() {
+		arena.close();
+	}
+
+	private long checkIndex(int index) {
+		if (index < 0 || index >= sampleCount) {
+			throw new IndexOutOfBoundsException("Sample index " + index + " out of range for " + sampleCount + " samples");
+		}
+		return index;
+	}
+
+	private class RecordView implements SiteStorage {
+		private final MemorySegment cells;
+
+		RecordView(MemorySegment cells) {
+			this.cells = cells;
+		}
+
+		@Override
+		public int getTaxonCount() {
+			return taxonCount;
+		}
+
+		@Override
+		public int getSiteCount() {
+			return siteCount;
+		}
+
+		@Override
+		public int getSiteValue(int taxonNr, int siteNr) {
+			return get((long) siteNr * taxonCount + taxonNr);
+		}
+
+		@Override
+		public void getSiteValuesBySite(int siteNr, int[] dest) {
+			long index = (long) siteNr * taxonCount;
+			for (int i = 0; i < taxonCount; i++) {
+				dest[i] = get(index + i);
+			}
+		}
+
+		@Override
+		public void getSiteValuesByTaxon(int taxonNr, int[] dest) {
+			long index = taxonNr;
+			for (int i = 0; i < siteCount; i++) {
+				dest[i] = get(index);
+				index += taxonCount;
+			}
+		}
+
+		@Override
+		public void setSiteValue(int taxonNr, int siteNr, int value) {
+			throw new UnsupportedOperationException("Logged samples are read-only");
+		}
+
+		@Override
+		public void setSiteValuesBySite(int siteNr, int[] values) {
+			throw new UnsupportedOperationException("Logged samples are read-only");
+		}
+
+		@Override
+		public void setSiteValuesByTaxon(int taxonNr, int[] values) {
+			throw new UnsupportedOperationException("Logged samples are read-only");
+		}
+
+		/** bytes of the mapped record; nothing is copied onto the heap **/
+		@Override
+		public long getMemoryFootprint() {
+			return cells.byteSize();
+		}
+
+		private int get(long index) {
+			switch (cellBytes) {
+			case 1: return Byte.toUnsignedInt(cells.get(ValueLayout.JAVA_BYTE, index));
+			case 2: return Short.toUnsignedInt(cells.getAtIndex(SHORT, index));
+			default: return cells.getAtIndex(INT, index);
+			}
+		}
+	}
+}
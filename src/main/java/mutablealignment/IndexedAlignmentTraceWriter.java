@@ -0,0 +1,124 @@
+package mutablealignment;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Writes samples of an alignment to a trace file with fixed-size records, so
+ * IndexedAlignmentTraceReader can map the file and go to any sample directly.
+ *
+ * File layout, all integers little-endian:
+ * header: MAGIC, VERSION, taxon count, site count, bytes per cell, offset of
+ * the first record (int), record size (long), then per taxon the length of its
+ * name in bytes and the name in UTF-8, padded to a multiple of 8 bytes;
+ * then per sample a record: sample (long) followed by all cells site by site,
+ * one, two or four bytes per cell as in OffHeapSiteStorage, padded to a multiple of 8 bytes.
+ **/
+public class IndexedAlignmentTraceWriter {
+	/** 'MALI' **/
+	public final static int MAGIC = 0x4D414C49;
+	public final static int VERSION = 1;
+	/** offset of the taxon names in the header **/
+	final static int NAMES_OFFSET = 32;
+
+	private final FileChannel channel;
+	private final int taxonCount;
+	private final int siteCount;
+	private final int cellBytes;
+	private final int maxCode;
+	private final ByteBuffer record;
+	private final int [] site;
+
+	/**
+	 * @param maxCode largest code expected to occur, which determines the number of bytes per cell
+	 */
+	public IndexedAlignmentTraceWriter(File file, List<String> taxaNames, int siteCount, int maxCode) throws IOException {
+		this.taxonCount = taxaNames.size();
+		this.siteCount = siteCount;
+		this.cellBytes = OffHeapSiteStorage.cellBytesFor(maxCode);
+		this.maxCode = OffHeapSiteStorage.maxCodeFor(cellBytes);
+		long recordSize = recordSize(taxonCount, siteCount, cellBytes);
+		if (recordSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Alignment of " + taxonCount + " taxa x " + siteCount + " sites is too large for an indexed trace");
+		}
+		record = ByteBuffer.allocate((int) recordSize).order(ByteOrder.LITTLE_ENDIAN);
+		site = new int[taxonCount];
+
+		int headerSize = NAMES_OFFSET;
+		byte [][] names = new byte[taxonCount][];
+		for (int i = 0; i < taxonCount; i++) {
+			names[i] = taxaNames.get(i).getBytes(StandardCharsets.UTF_8);
+			headerSize += 4 + names[i].length;
+		}
+		headerSize = pad(headerSize);
+		ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(taxonCount);
+		header.putInt(siteCount);
+		header.putInt(cellBytes);
+		header.putInt(headerSize);
+		header.putLong(recordSize);
+		for (byte [] name : names) {
+			header.putInt(name.length);
+			header.put(name);
+		}
+		header.clear();
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		writeFully(header);
+	}
+
+	/**
+	 * Append the current state of storage as the given sample
+	 * @throws IllegalArgumentException if a code is larger than a cell can hold
+	 */
+	public void write(long sample, SiteStorage storage) throws IOException {
+		record.clear();
+		record.putLong(sample);
+		for (int j = 0; j < siteCount; j++) {
+			storage.getSiteValuesBySite(j, site);
+			for (int i = 0; i < taxonCount; i++) {
+				int value = site[i];
+				if (value < 0 || value > maxCode) {
+					throw new IllegalArgumentException("Cannot store code " + value + " in " + cellBytes + " byte(s)");
+				}
+				switch (cellBytes) {
+				case 1: record.put((byte) value); break;
+				case 2: record.putShort((short) value); break;
+				default: record.putInt(value);
+				}
+			}
+		}
+		record.clear();
+		writeFully(record);
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	static long recordSize(int taxonCount, int siteCount, int cellBytes) {
+		return pad(8 + (long) taxonCount * siteCount * cellBytes);
+	}
+
+	private static int pad(int size) {
+		return (size + 7) & ~7;
+	}
+
+	private static long pad(long size) {
+		return (size + 7) & ~7L;
+	}
+}
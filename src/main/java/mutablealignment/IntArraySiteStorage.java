@@ -0,0 +1,83 @@
+package mutablealignment;
+
+/**
+ * Site storage using one int per character, laid out as Alignment.sitePatterns
+ * (#sites x #taxa). The array is shared with the alignment, so that code relying
+ * on getPattern(siteNr) returning the live pattern keeps working.
+ **/
+public class IntArraySiteStorage implements SiteStorage {
+	private final int [][] sitePatterns;
+	private final int taxonCount;
+
+	public IntArraySiteStorage(int [][] sitePatterns, int taxonCount) {
+		this.sitePatterns = sitePatterns;
+		this.taxonCount = taxonCount;
+	}
+
+	/** the underlying #sites x #taxa array -- not a copy **/
+	public int [][] getSitePatterns() {
+		return sitePatterns;
+	}
+
+	@Override
+	public int getTaxonCount() {
+		return taxonCount;
+	}
+
+	@Override
+	public int getSiteCount() {
+		return sitePatterns.length;
+	}
+
+	@Override
+	public int getSiteValue(int taxonNr, int siteNr) {
+		return sitePatterns[siteNr][taxonNr];
+	}
+
+	@Override
+	public void setSiteValue(int taxonNr, int siteNr, int value) {
+		sitePatterns[siteNr][taxonNr] = value;
+	}
+
+	@Override
+	public void getSiteValuesBySite(int siteNr, int[] dest) {
+		System.arraycopy(sitePatterns[siteNr], 0, dest, 0, taxonCount);
+	}
+
+	@Override
+	public void setSiteValuesBySite(int siteNr, int[] values) {
+		System.arraycopy(values, 0, sitePatterns[siteNr], 0, taxonCount);
+	}
+
+	@Override
+	public void getSiteValuesByTaxon(int taxonNr, int[] dest) {
+		for (int i = 0; i < sitePatterns.length; i++) {
+			dest[i] = sitePatterns[i][taxonNr];
+		}
+	}
+
+	@Override
+	public void setSiteValuesByTaxon(int taxonNr, int[] values) {
+		for (int i = 0; i < sitePatterns.length; i++) {
+			sitePatterns[i][taxonNr] = values[i];
+		}
+	}
+
+	@Override
+	public long getMemoryFootprint() {
+		return estimateMemoryFootprint(taxonCount, sitePatterns.length);
+	}
+
+	/**
+	 * Estimate of heap use of an int[siteCount][taxonCount] array, assuming
+	 * 16 byte array headers, compressed references and 8 byte alignment.
+	 */
+	public static long estimateMemoryFootprint(int taxonCount, int siteCount) {
+		long row = align(16L + 4L * taxonCount);
+		return align(16L + 4L * siteCount) + row * siteCount;
+	}
+
+	static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+}
@@ -0,0 +1,331 @@
+package mutablealignment;
+
+import java.util.Arrays;
+
+import beast.base.evolution.likelihood.BeerLikelihoodCore;
+
+/**
+ * Likelihood core that can update a subset of patterns in place.
+ *
+ * Partials of the current buffer are overwritten for the given patterns only;
+ * the old values are kept in an undo log, so a rejected proposal can be rolled
+ * back with undoPatternUpdates() without touching the other patterns.
+ * Scaling is not supported by the pattern-subset methods.
+ *
+ * Tip states and partials are double-buffered: setNodeStatesForUpdate() and
+ * setTipPartialsForUpdate() switch a tip to its other buffer once between
+ * store() and restore(), so restore() gets the old tip data back by switching
+ * buffers instead of setting it again.
+ *
+ * It also keeps pre-order partials: for a node, the probability of all data
+ * outside its subtree given its state, including the root frequencies. These
+ * are calculated on demand from the current partials and matrices, and are
+ * not buffered, so callers should invalidate them whenever those change.
+ **/
+public class MALikelihoodCore extends BeerLikelihoodCore {
+
+	// undo log: node, buffer and pattern of overwritten partials, values in undoValues
+	private int undoCount = 0;
+	private int [] undoNode = new int[16];
+	private int [] undoBuffer = new int[16];
+	private int [] undoPattern = new int[16];
+	private double [] undoValues = new double[16];
+
+	// undo log for tip states set by setNodeState()
+	private int tipUndoCount = 0;
+	private int [] tipUndoNode = new int[16];
+	private int [] tipUndoPattern = new int[16];
+	private int [] tipUndoState = new int[16];
+
+	// other buffer of tip states, and tips that switched buffers since store()
+	private int [][] spareStates;
+	private boolean [] tipIsFlipped;
+
+	// pre-order partials per node, laid out like partials, and whether they are up to date
+	private double [][] preOrderPartials;
+	private boolean [] preOrderIsCurrent;
+	// scratch space for PreOrderPartials
+	private double [] preOrderAbove;
+
+	public MALikelihoodCore(int nrOfStates) {
+		super(nrOfStates);
+	}
+
+	/**
+	 * set state of a tip for a single pattern; the tip should have states, not partials.
+	 * The old state is logged, so it is restored by undoPatternUpdates().
+	 */
+	public void setNodeState(int nodeIndex, int patternIndex, int state) {
+		if (tipUndoCount == tipUndoNode.length) {
+			int capacity = tipUndoCount * 2;
+			tipUndoNode = Arrays.copyOf(tipUndoNode, capacity);
+			tipUndoPattern = Arrays.copyOf(tipUndoPattern, capacity);
+			tipUndoState = Arrays.copyOf(tipUndoState, capacity);
+		}
+		tipUndoNode[tipUndoCount] = nodeIndex;
+		tipUndoPattern[tipUndoCount] = patternIndex;
+		tipUndoState[tipUndoCount++] = states[nodeIndex][patternIndex];
+		states[nodeIndex][patternIndex] = state;
+	}
+
+	/** switch tip to its other states buffer, unless it did so since the last store() **/
+	@Override
+	public void setNodeStatesForUpdate(int nodeIndex) {
+		if (!isFlipped(nodeIndex)) {
+			flipNodeStates(nodeIndex);
+		}
+	}
+
+	/** switch tip to its other partials buffer, unless it did so since the last store() **/
+	public void setTipPartialsForUpdate(int nodeIndex) {
+		if (!isFlipped(nodeIndex)) {
+			setNodePartialsForUpdate(nodeIndex);
+		}
+	}
+
+	/**
+	 * switch tip to its other states buffer unconditionally; probes use this to set
+	 * states temporarily and switch back afterwards
+	 */
+	public void flipNodeStates(int nodeIndex) {
+		if (spareStates == null) {
+			spareStates = new int[nrOfNodes][];
+		}
+		if (spareStates[nodeIndex] == null) {
+			spareStates[nodeIndex] = new int[nrOfPatterns];
+		}
+		int [] tmp = states[nodeIndex];
+		states[nodeIndex] = spareStates[nodeIndex];
+		spareStates[nodeIndex] = tmp;
+	}
+
+	private boolean isFlipped(int nodeIndex) {
+		if (tipIsFlipped == null) {
+			tipIsFlipped = new boolean[nrOfNodes];
+		}
+		boolean flipped = tipIsFlipped[nodeIndex];
+		tipIsFlipped[nodeIndex] = true;
+		return flipped;
+	}
+
+	/** sets partials of a tip in its current buffer, so tips can be double-buffered **/
+	@Override
+	public void setNodePartials(int nodeIndex, double [] partials) {
+		if (this.partials[0][nodeIndex] == null) {
+			createNodePartials(nodeIndex);
+		}
+		double [] current = this.partials[currentPartialsIndex[nodeIndex]][nodeIndex];
+		if (partials.length < partialsSize) {
+			int k = 0;
+			for (int i = 0; i < nrOfMatrices; i++) {
+				System.arraycopy(partials, 0, current, k, partials.length);
+				k += partials.length;
+			}
+		} else {
+			System.arraycopy(partials, 0, current, 0, partials.length);
+		}
+	}
+
+	@Override
+	public void store() {
+		super.store();
+		if (tipIsFlipped != null) {
+			Arrays.fill(tipIsFlipped, false);
+		}
+	}
+
+	/** also switches tips back to the buffers they had at store() **/
+	@Override
+	public void restore() {
+		super.restore();
+		if (tipIsFlipped != null) {
+			for (int i = 0; i < nrOfNodes; i++) {
+				if (tipIsFlipped[i]) {
+					if (states[i] != null) {
+						flipNodeStates(i);
+					}
+					tipIsFlipped[i] = false;
+				}
+			}
+		}
+	}
+
+	public boolean hasStates(int nodeIndex) {
+		return states[nodeIndex] != null;
+	}
+
+	/**
+	 * Recalculate partials of nodeIndex3 for the first patternCount entries of patterns
+	 * in the current partials buffer, logging old values so they can be restored.
+	 */
+	public void calculatePartialsForPatterns(int nodeIndex1, int nodeIndex2, int nodeIndex3, int [] patterns, int patternCount) {
+		int buffer = currentPartialsIndex[nodeIndex3];
+		double [] partials3 = partials[buffer][nodeIndex3];
+		double [] matrices1 = matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1];
+		double [] matrices2 = matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2];
+		int [] states1 = states[nodeIndex1];
+		int [] states2 = states[nodeIndex2];
+		double [] partials1 = states1 == null ? partials[currentPartialsIndex[nodeIndex1]][nodeIndex1] : null;
+		double [] partials2 = states2 == null ? partials[currentPartialsIndex[nodeIndex2]][nodeIndex2] : null;
+
+		for (int p = 0; p < patternCount; p++) {
+			int k = patterns[p];
+			logPartials(nodeIndex3, buffer, k, partials3);
+			for (int l = 0; l < nrOfMatrices; l++) {
+				int u = (l * nrOfPatterns + k) * nrOfStates;
+				int w = l * matrixSize;
+				for (int i = 0; i < nrOfStates; i++) {
+					partials3[u + i] = childPartial(states1, partials1, matrices1, l, k, w)
+							* childPartial(states2, partials2, matrices2, l, k, w);
+					w += nrOfStates;
+				}
+			}
+		}
+	}
+
+	/** contribution of a child for parent state at matrix row w **/
+	private double childPartial(int [] childStates, double [] childPartials, double [] matrices, int l, int k, int w) {
+		if (childStates != null) {
+			int state = childStates[k];
+			return state < nrOfStates ? matrices[w + state] : 1.0;
+		}
+		int v = (l * nrOfPatterns + k) * nrOfStates;
+		double sum = 0;
+		for (int j = 0; j < nrOfStates; j++) {
+			sum += matrices[w + j] * childPartials[v + j];
+		}
+		return sum;
+	}
+
+	/** integrate partials over categories for a subset of patterns, see integratePartials() **/
+	public void integratePartialsForPatterns(int nodeIndex, double [] proportions, double [] outPartials, int [] patterns, int patternCount) {
+		double [] inPartials = partials[currentPartialsIndex[nodeIndex]][nodeIndex];
+		for (int p = 0; p < patternCount; p++) {
+			int k = patterns[p];
+			int u = k * nrOfStates;
+			for (int i = 0; i < nrOfStates; i++) {
+				outPartials[u + i] = inPartials[u + i] * proportions[0];
+			}
+			for (int l = 1; l < nrOfMatrices; l++) {
+				int v = (l * nrOfPatterns + k) * nrOfStates;
+				for (int i = 0; i < nrOfStates; i++) {
+					outPartials[u + i] += inPartials[v + i] * proportions[l];
+				}
+			}
+		}
+	}
+
+	/** log likelihoods for a subset of patterns, see calculateLogLikelihoods() **/
+	public void calculateLogLikelihoodsForPatterns(double [] partials, double [] frequencies, double [] outLogLikelihoods, int [] patterns, int patternCount) {
+		for (int p = 0; p < patternCount; p++) {
+			int k = patterns[p];
+			int v = k * nrOfStates;
+			double sum = 0.0;
+			for (int i = 0; i < nrOfStates; i++) {
+				sum += frequencies[i] * partials[v + i];
+			}
+			outLogLikelihoods[k] = Math.log(sum);
+		}
+	}
+
+	public boolean hasPreOrderPartials(int nodeIndex) {
+		return preOrderIsCurrent != null && preOrderIsCurrent[nodeIndex];
+	}
+
+	/** mark pre-order partials of all nodes out of date **/
+	public void invalidatePreOrderPartials() {
+		if (preOrderIsCurrent != null) {
+			Arrays.fill(preOrderIsCurrent, false);
+		}
+	}
+
+	/** pre-order partials of the root are the root frequencies, for every category and pattern **/
+	public void setRootPreOrderPartials(int rootIndex, double [] frequencies) {
+		PreOrderPartials.setRoot(frequencies, nrOfStates, preOrderPartialsForUpdate(rootIndex));
+	}
+
+	/**
+	 * Pre-order partials of child from those of its parent, the partials of its
+	 * sibling and the matrix of child; the parent should have current pre-order partials
+	 */
+	public void calculatePreOrderPartials(int parentIndex, int siblingIndex, int childIndex) {
+		int [] statesS = states[siblingIndex];
+		PreOrderPartials.calculateChild(preOrderPartials[parentIndex], statesS,
+				statesS == null ? partials[currentPartialsIndex[siblingIndex]][siblingIndex] : null,
+				matrices[currentMatrixIndex[siblingIndex]][siblingIndex], matrices[currentMatrixIndex[childIndex]][childIndex],
+				nrOfMatrices, nrOfPatterns, nrOfStates, preOrderAbove, preOrderPartialsForUpdate(childIndex));
+	}
+
+	/**
+	 * Log likelihood of every pattern for every state of the tip childIndex, with the
+	 * data of all other tips as they are, from the pre-order partials of its parent
+	 * (which should be current), the partials of its sibling and the matrix of the tip.
+	 * @param outLogLikelihoods gets nrOfStates values per pattern
+	 */
+	public void calculateTipConditionals(int parentIndex, int siblingIndex, int childIndex, double [] proportions, double [] outLogLikelihoods) {
+		int [] statesS = states[siblingIndex];
+		PreOrderPartials.calculateTipConditionals(preOrderPartials[parentIndex], statesS,
+				statesS == null ? partials[currentPartialsIndex[siblingIndex]][siblingIndex] : null,
+				matrices[currentMatrixIndex[siblingIndex]][siblingIndex], matrices[currentMatrixIndex[childIndex]][childIndex],
+				proportions, nrOfMatrices, nrOfPatterns, nrOfStates, preOrderAbove, outLogLikelihoods);
+	}
+
+	private double [] preOrderPartialsForUpdate(int nodeIndex) {
+		if (preOrderPartials == null) {
+			preOrderPartials = new double[nrOfNodes][];
+			preOrderIsCurrent = new boolean[nrOfNodes];
+			preOrderAbove = new double[nrOfStates];
+		}
+		if (preOrderPartials[nodeIndex] == null) {
+			preOrderPartials[nodeIndex] = new double[nrOfMatrices * nrOfPatterns * nrOfStates];
+		}
+		preOrderIsCurrent[nodeIndex] = true;
+		return preOrderPartials[nodeIndex];
+	}
+
+	/** write back all partials and tip states overwritten since the last clearPatternUpdates(), latest first **/
+	public void undoPatternUpdates() {
+		for (int e = tipUndoCount - 1; e >= 0; e--) {
+			states[tipUndoNode[e]][tipUndoPattern[e]] = tipUndoState[e];
+		}
+		tipUndoCount = 0;
+		int size = nrOfMatrices * nrOfStates;
+		for (int e = undoCount - 1; e >= 0; e--) {
+			double [] partials3 = partials[undoBuffer[e]][undoNode[e]];
+			int k = undoPattern[e];
+			for (int l = 0; l < nrOfMatrices; l++) {
+				System.arraycopy(undoValues, e * size + l * nrOfStates, partials3, (l * nrOfPatterns + k) * nrOfStates, nrOfStates);
+			}
+		}
+		undoCount = 0;
+	}
+
+	public void clearPatternUpdates() {
+		undoCount = 0;
+		tipUndoCount = 0;
+	}
+
+	public boolean hasPatternUpdates() {
+		return undoCount > 0 || tipUndoCount > 0;
+	}
+
+	private void logPartials(int nodeIndex, int buffer, int k, double [] partials3) {
+		int size = nrOfMatrices * nrOfStates;
+		if (undoCount == undoNode.length) {
+			int capacity = undoCount * 2;
+			undoNode = Arrays.copyOf(undoNode, capacity);
+			undoBuffer = Arrays.copyOf(undoBuffer, capacity);
+			undoPattern = Arrays.copyOf(undoPattern, capacity);
+		}
+		if ((undoCount + 1) * size > undoValues.length) {
+			undoValues = Arrays.copyOf(undoValues, Math.max((undoCount + 1) * size, undoValues.length * 2));
+		}
+		undoNode[undoCount] = nodeIndex;
+		undoBuffer[undoCount] = buffer;
+		undoPattern[undoCount] = k;
+		for (int l = 0; l < nrOfMatrices; l++) {
+			System.arraycopy(partials3, (l * nrOfPatterns + k) * nrOfStates, undoValues, undoCount * size + l * nrOfStates, nrOfStates);
+		}
+		undoCount++;
+	}
+}
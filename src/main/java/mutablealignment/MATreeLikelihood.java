@@ -1,23 +1,30 @@
 package mutablealignment;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.BitSet;
 
 import beast.base.core.Description;
-import beast.base.evolution.datatype.DataType;
+import beast.base.core.Input;
 import beast.base.spec.evolution.likelihood.TreeLikelihood;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.CalculationNode;
 
 @Description("Tree likelihood that can efficiently recalculate changes in a mutable alignment")
-public class MATreeLikelihood extends TreeLikelihood {
-	
+public class MATreeLikelihood extends TreeLikelihood implements SequenceProbe {
+	final public Input<Boolean> siteLocalInput = new Input<>("siteLocal", "when only the alignment changed, "
+			+ "recalculate partials and pattern likelihoods only for patterns that changed. "
+			+ "Not used with ambiguities, tip likelihoods, scaling, invariant sites or ascertainment correction", true);
+
+	// do not bother with the site local path when more than this fraction of patterns changed
+	private final static int SITE_LOCAL_MAX_FRACTION = 4;
+
 	private MutableAlignment alignment;
 	private boolean alignmentNeedsUpdate;
 	private int[] cachedStates;
+	// characters of the taxon being updated, read in one go from the alignment
+	private int[] cachedCodes;
 	private double[] cachedPartials;
 
 	// Mapping from alignment column index to tree leaf node number, and
@@ -29,10 +36,43 @@ public class MATreeLikelihood extends TreeLikelihood {
 	// Tracks tip nodes whose states were transiently overwritten by
 	// getLogProbs*Sequence during a proposal, so restore()/accept() can re-sync
 	// them from the (post-store/restore) alignment. Tip states are
-	// single-buffered in BeerLikelihoodCore -- there is no flip-back trick
-	// available -- so this resync mechanism is unavoidable.
+	// single-buffered in BeerLikelihoodCore, so this resync mechanism is
+	// needed when siteLocal is false; MALikelihoodCore double-buffers tips,
+	// so probes leave them unchanged and restore() only switches buffers.
+	// Also holds tips updated before store().
 	// Stored as alignment column indices, matching dirtySequences.
-	private final Set<Integer> tempTipNodes = new HashSet<>();
+	private final BitSet tempTipNodes = new BitSet();
+	// ancestors flipped to their scratch slot by a probe, the first flipCount entries are valid
+	private int[] flipStack;
+	private TipEncoder tipEncoder;
+	// tip conditionals for batched probes, allocated on first use
+	private double[] batchConditionals;
+	// scratch space for getTipConditionalLogProbs, so that it does not allocate
+	private Node[] preOrderPath;
+	private int[] conditionalStates;
+	private double[] conditionalPartials;
+	private double[] conditionalLogProbs;
+
+	// site local updates, only used if siteLocalInput is true
+	private MALikelihoodCore maCore;
+	private boolean onlyAlignmentIsDirty;
+	private int[] dirtyPatterns;
+	private int dirtyPatternCount;
+	private boolean[] nodeIsAffected;
+	// false if patternLogLikelihoods may not match the current partials,
+	// e.g. after restoring a full update or after a probe
+	private boolean patternLogLikelihoodsAreCurrent;
+	private boolean siteLocalUpdateInProposal;
+	private boolean fullUpdateInProposal;
+	// pattern weights that logP was calculated with; these change when the alignment compresses patterns
+	private int[] weightsUsed;
+	// undo log for patternLogLikelihoods and weightsUsed changed by site local updates
+	private int[] undoPattern;
+	private double[] undoPatternLogLikelihood;
+	private int[] undoWeight;
+	private int undoCount;
+	// set when the alignment grew its pattern slots during the proposal, so buffers were rebuilt
+	private boolean reinitialisedInProposal;
 
 	@Override
 	public void initAndValidate() {
@@ -51,9 +91,27 @@ public class MATreeLikelihood extends TreeLikelihood {
 		int patternCount = alignment.getPatternCount();
 		int stateCount = alignment.getDataType().getStateCount();
 		cachedStates = new int[patternCount];
+		flipStack = new int[treeInput.get().getNodeCount()];
+		tipEncoder = new TipEncoder(alignment);
+		cachedCodes = new int[patternCount];
+		dirtySequences = new int[alignment.getTaxonCount()];
+		dirtySequenceCount = 0;
 		cachedPartials = new double[patternCount * stateCount];
 
 		buildTaxonIndexMaps();
+
+		if (siteLocalInput.get()) {
+			maCore = new MALikelihoodCore(alignment.getMaxStateCount());
+			likelihoodCore = maCore;
+			initCore();
+			dirtyPatterns = new int[patternCount];
+			nodeIsAffected = new boolean[treeInput.get().getNodeCount()];
+			weightsUsed = new int[patternCount];
+			undoPattern = new int[patternCount];
+			undoPatternLogLikelihood = new double[patternCount];
+			undoWeight = new int[patternCount];
+		}
+		patternLogLikelihoodsAreCurrent = false;
 	}
 
 	private void buildTaxonIndexMaps() {
@@ -74,119 +132,382 @@ public class MATreeLikelihood extends TreeLikelihood {
 		
 	@Override
 	public double calculateLogP() {
+		if (maCore != null) {
+			maCore.invalidatePreOrderPartials();
+		}
 		if (alignmentNeedsUpdate) {
-			updateAlignment();
 			alignmentNeedsUpdate = false;
+			if (canUpdateSiteLocally()) {
+				updateSiteLocally();
+				return logP;
+			}
+			updateAlignment();
 		}
 		logP = super.calculateLogP();
+		fullUpdateInProposal = true;
+		// we cannot tell whether super recalculated everything, so assume the worst
+		patternLogLikelihoodsAreCurrent = false;
 		return logP;
 	}
+
+	private boolean canUpdateSiteLocally() {
+		if (maCore == null || !onlyAlignmentIsDirty || m_useAmbiguities.get() || m_useTipLikelihoods.get() ||
+				maCore.getUseScaling() || getConstantPattern() != null || alignment.isAscertained) {
+			return false;
+		}
+		dirtyPatternCount = alignment.getDirtyPatternIndices(dirtyPatterns);
+		// with a mutability mask, dirty patterns are all hot and the site local path
+		// leaves the cold patterns alone, which pays off when there are enough of them
+		return dirtyPatternCount * SITE_LOCAL_MAX_FRACTION <= alignment.getPatternCount() ||
+				dirtyPatternCount <= alignment.getColdPatternCount();
+	}
+
+	/**
+	 * Update tips, partials of their ancestors, root partials and pattern log likelihoods
+	 * for dirty patterns only, and update logP by the difference. Partials are overwritten
+	 * in place; maCore keeps the old values for restore().
+	 */
+	private void updateSiteLocally() {
+		if (!patternLogLikelihoodsAreCurrent) {
+			refreshPatternLogLikelihoods();
+		}
+		siteLocalUpdateInProposal = true;
+		TreeInterface tree = treeInput.get();
+
+		// update tips for dirty patterns
+		dirtySequenceCount = alignment.getDirtySequenceIndices(dirtySequences);
+		for (int d = 0; d < dirtySequenceCount; d++) {
+			int taxonIndex = dirtySequences[d];
+			int nodeNr = alignmentIdxToTreeNodeNr[taxonIndex];
+			for (int p = 0; p < dirtyPatternCount; p++) {
+				int k = dirtyPatterns[p];
+                maCore.setNodeState(nodeNr, k, tipEncoder.getState(alignment.getPattern(taxonIndex, k)));
+			}
+			Node node = tree.getNode(nodeNr);
+			while (node != null && !nodeIsAffected[node.getNr()]) {
+				nodeIsAffected[node.getNr()] = true;
+				node = node.getParent();
+			}
+		}
+
+		// ancestors, in post-order
+		Node root = tree.getRoot();
+		if (nodeIsAffected[root.getNr()]) {
+			updatePartialsForPatterns(root);
+		}
+
+		// root
+        final double[] proportions = m_siteModel.getCategoryProportions(root);
+        maCore.integratePartialsForPatterns(root.getNr(), proportions, m_fRootPartials, dirtyPatterns, dirtyPatternCount);
+		double delta = 0;
+		for (int p = 0; p < dirtyPatternCount; p++) {
+			int k = dirtyPatterns[p];
+			if (undoCount == undoPattern.length) {
+				undoPattern = Arrays.copyOf(undoPattern, undoCount * 2);
+				undoPatternLogLikelihood = Arrays.copyOf(undoPatternLogLikelihood, undoCount * 2);
+				undoWeight = Arrays.copyOf(undoWeight, undoCount * 2);
+			}
+			undoPattern[undoCount] = k;
+			undoWeight[undoCount] = weightsUsed[k];
+			undoPatternLogLikelihood[undoCount++] = patternLogLikelihoods[k];
+			delta -= patternLogLikelihoods[k] * weightsUsed[k];
+		}
+        maCore.calculateLogLikelihoodsForPatterns(m_fRootPartials, getRootFrequencies(), patternLogLikelihoods, dirtyPatterns, dirtyPatternCount);
+		for (int p = 0; p < dirtyPatternCount; p++) {
+			int k = dirtyPatterns[p];
+			weightsUsed[k] = alignment.getPatternWeight(k);
+			delta += patternLogLikelihoods[k] * weightsUsed[k];
+		}
+		logP += delta;
+	}
+
+	private void updatePartialsForPatterns(Node node) {
+		nodeIsAffected[node.getNr()] = false;
+		if (node.isLeaf()) {
+			return;
+		}
+		Node left = node.getLeft();
+		Node right = node.getRight();
+		if (nodeIsAffected[left.getNr()]) {
+			updatePartialsForPatterns(left);
+		}
+		if (nodeIsAffected[right.getNr()]) {
+			updatePartialsForPatterns(right);
+		}
+		maCore.calculatePartialsForPatterns(left.getNr(), right.getNr(), node.getNr(), dirtyPatterns, dirtyPatternCount);
+	}
+
+	/** recalculate root partials, pattern log likelihoods and logP from current partials **/
+	private void refreshPatternLogLikelihoods() {
+		Node root = treeInput.get().getRoot();
+        final double[] proportions = m_siteModel.getCategoryProportions(root);
+        likelihoodCore.integratePartials(root.getNr(), proportions, m_fRootPartials);
+        likelihoodCore.calculateLogLikelihoods(m_fRootPartials, getRootFrequencies(), patternLogLikelihoods);
+        logP = 0;
+        for (int k = 0; k < alignment.getPatternCount(); k++) {
+        	weightsUsed[k] = alignment.getPatternWeight(k);
+        	logP += patternLogLikelihoods[k] * weightsUsed[k];
+        }
+		patternLogLikelihoodsAreCurrent = true;
+	}
+
+	/**
+	 * Uses pre-order partials when possible, so that the conditionals cost one
+	 * pass over the patterns for the tip instead of a probe of all its ancestors
+	 * per state. Pre-order partials are calculated on demand for the ancestors
+	 * of the tip that do not have them yet since the last calculation.
+	 */
+	@Override
+	public void getTipConditionalLogProbs(int taxonNr, int stateCount, double [] out) {
+		if (!canUsePreOrderPartials()) {
+			int patternCount = out.length / stateCount;
+			if (conditionalLogProbs == null || conditionalLogProbs.length != patternCount || conditionalPartials.length != out.length) {
+				conditionalStates = new int[patternCount];
+				conditionalPartials = new double[out.length];
+				conditionalLogProbs = new double[patternCount];
+			}
+			SequenceProbe.super.getTipConditionalLogProbs(taxonNr, stateCount, out, conditionalStates, conditionalPartials, conditionalLogProbs);
+			return;
+		}
+		TreeInterface tree = treeInput.get();
+		Node tip = tree.getNode(alignmentIdxToTreeNodeNr[taxonNr]);
+		Node parent = tip.getParent();
+		updatePreOrderPartials(parent);
+		maCore.calculateTipConditionals(parent.getNr(), getSibling(tip).getNr(), tip.getNr(),
+				m_siteModel.getCategoryProportions(tree.getRoot()), out);
+	}
+
+	/** calculate pre-order partials of node and those of its ancestors that are not current **/
+	private void updatePreOrderPartials(Node node) {
+		if (preOrderPath == null) {
+			preOrderPath = new Node[treeInput.get().getNodeCount()];
+		}
+		int pathLength = 0;
+		while (!maCore.hasPreOrderPartials(node.getNr()) && !node.isRoot()) {
+			preOrderPath[pathLength++] = node;
+			node = node.getParent();
+		}
+		if (!maCore.hasPreOrderPartials(node.getNr())) {
+			maCore.setRootPreOrderPartials(node.getNr(), getRootFrequencies());
+		}
+		for (int i = pathLength - 1; i >= 0; i--) {
+			Node child = preOrderPath[i];
+			maCore.calculatePreOrderPartials(child.getParent().getNr(), getSibling(child).getNr(), child.getNr());
+		}
+	}
+
+	private static Node getSibling(Node node) {
+		Node parent = node.getParent();
+		return parent.getLeft() == node ? parent.getRight() : parent.getLeft();
+	}
+
+	private double[] getRootFrequencies() {
+        double[] rootFrequencies = substitutionModel.getFrequencies();
+        if (rootFrequenciesInput.get() != null) {
+            rootFrequencies = rootFrequenciesInput.get().getFreqs();
+        }
+        return rootFrequencies;
+	}
+
+	private void setStates(int nodeNr, int[] codes) {
+        tipEncoder.encodeStates(codes, cachedStates.length, cachedStates);
+        likelihoodCore.setNodeStates(nodeNr, cachedStates);
+	}
 	
 	
-	private List<Integer> dirtySequences = new ArrayList<>();
+	// alignment column indices of tips to update, the first dirtySequenceCount entries are valid
+	private int[] dirtySequences;
+	private int dirtySequenceCount;
 	
 	private void updateAlignment() {
-        dirtySequences.clear();
-        for (Integer i : alignment.getDirtySequenceIndices()) {
-        	dirtySequences.add(i);
-        }
-        updateTipData();
+        dirtySequenceCount = alignment.getDirtySequenceIndices(dirtySequences);
+        updateTipData(true);
 	}
 
-	private void updateTipData() {
+	private void updateTipData(boolean makeDirty) {
         TreeInterface tree = treeInput.get();
     	int patternCount = alignment.getPatternCount();
         int stateCount = alignment.getDataType().getStateCount();
-		for (int taxonIndex: dirtySequences) {
+		for (int d = 0; d < dirtySequenceCount; d++) {
+			int taxonIndex = dirtySequences[d];
 			// dirtySequences holds alignment column indices.
 			int nodeNr = alignmentIdxToTreeNodeNr[taxonIndex];
     		Node node = tree.getNode(nodeNr);
+    		alignment.getPatternValuesByTaxon(taxonIndex, cachedCodes);
 
             if (m_useAmbiguities.get()) {
-	            int k = 0;
+            	tipEncoder.encodePartials(cachedCodes, patternCount, cachedPartials);
 	            for (int patternIndex_ = 0; patternIndex_ < patternCount; patternIndex_++) {
 	                double[] tipLikelihoods = alignment.getTipLikelihoods(taxonIndex, patternIndex_);
 	                if (tipLikelihoods != null) {
-	                	for (int state = 0; state < stateCount; state++) {
-	                		cachedPartials[k++] = tipLikelihoods[state];
-	                	}
-	                } else {
-	                	int statex = alignment.getPattern(taxonIndex, patternIndex_);
-		                boolean[] stateSet = alignment.getStateSet(statex);
-		                for (int state = 0; state < stateCount; state++) {
-		                	 cachedPartials[k++] = (stateSet[state] ? 1.0 : 0.0);
-		                }
+	                	System.arraycopy(tipLikelihoods, 0, cachedPartials, patternIndex_ * stateCount, stateCount);
 	                }
 	            }
+	            if (maCore != null) {
+	            	maCore.setTipPartialsForUpdate(nodeNr);
+	            }
 	            likelihoodCore.setNodePartials(nodeNr, cachedPartials);
 	            
             } else {
-                DataType dataType = alignment.getDataType();
-                for (int i = 0; i < patternCount; i++) {
-                    int code = alignment.getPattern(taxonIndex, i);
-                    int[] statesForCode = dataType.getStatesForCode(code);
-                    if (statesForCode.length==1)
-                        cachedStates[i] = statesForCode[0];
-                    else
-                        cachedStates[i] = code; // Causes ambiguous states to be ignored.
-                }
+                tipEncoder.encodeStates(cachedCodes, patternCount, cachedStates);
+                likelihoodCore.setNodeStatesForUpdate(nodeNr);
                 likelihoodCore.setNodeStates(nodeNr, cachedStates);
-                node.makeDirty(Tree.IS_DIRTY);
+                if (makeDirty) {
+                	node.makeDirty(Tree.IS_DIRTY);
+                }
             }
         }
     }
 
+	@Override
+	public int getTreeNodeNr(int taxonNr) {
+		return alignmentIdxToTreeNodeNr[taxonNr];
+	}
+
+	@Override
+	public boolean usesTipPartials() {
+		return m_useAmbiguities.get() || m_useTipLikelihoods.get();
+	}
+
 	/*
 	 * returns pattern log likelihoods after setting sequence for node with given nodeNr
 	 * to states encoded in sites
 	 */
+	@Override
 	public double [] getLogProbsForStateSequence(int nodeNr, int [] sites) {
+		return getLogProbsForStateSequence(nodeNr, sites, new double[sites.length]);
+	}
+
+	@Override
+	public double [] getLogProbsForStateSequence(int nodeNr, int [] sites, double [] out) {
 		// update data for node
 		int patternCount = sites.length;
         if (m_useAmbiguities.get()) {
         	throw new IllegalArgumentException("should not use getLogProbsForSequence but getLogProbsForPartialsSequence instead");
         }
-        DataType dataType = alignment.getDataType();
-        for (int i = 0; i < patternCount; i++) {
-            int code = sites[i];
-            int[] statesForCode = dataType.getStatesForCode(code);
-            if (statesForCode.length==1)
-                cachedStates[i] = statesForCode[0];
-            else
-                cachedStates[i] = code; // Causes ambiguous states to be ignored.
+        tipEncoder.encodeStates(sites, patternCount, cachedStates);
+        if (maCore != null) {
+        	// use the other buffer of the tip, so the tip is unchanged afterwards
+        	maCore.flipNodeStates(nodeNr);
+        	likelihoodCore.setNodeStates(nodeNr, cachedStates);
+        	calcPatternLogLikelihoods(nodeNr, out);
+        	maCore.flipNodeStates(nodeNr);
+        	return out;
         }
         likelihoodCore.setNodeStates(nodeNr, cachedStates);
-		tempTipNodes.add(treeNodeNrToAlignmentIdx[nodeNr]);
+		tempTipNodes.set(treeNodeNrToAlignmentIdx[nodeNr]);
 
-        return calcPatternLogLikelihoods(nodeNr);
+        return calcPatternLogLikelihoods(nodeNr, out);
 	}
 
 	/*
 	 * returns pattern log likelihoods after setting sequence for node with given nodeNr
 	 * to states encoded in sites
 	 */
+	@Override
 	public double [] getLogProbsForPartialsSequence(int nodeNr, double [] tipLikelihoods) {
+		return getLogProbsForPartialsSequence(nodeNr, tipLikelihoods, new double[alignment.getPatternCount()]);
+	}
+
+	@Override
+	public double [] getLogProbsForPartialsSequence(int nodeNr, double [] tipLikelihoods, double [] out) {
+        if (maCore != null) {
+        	// use the other buffer of the tip, so the tip is unchanged afterwards
+        	likelihoodCore.setNodePartialsForUpdate(nodeNr);
+        	likelihoodCore.setNodePartials(nodeNr, tipLikelihoods);
+        	calcPatternLogLikelihoods(nodeNr, out);
+        	likelihoodCore.setNodePartialsForUpdate(nodeNr);
+        	return out;
+        }
         likelihoodCore.setNodePartials(nodeNr, tipLikelihoods);
-		tempTipNodes.add(treeNodeNrToAlignmentIdx[nodeNr]);
+		tempTipNodes.set(treeNodeNrToAlignmentIdx[nodeNr]);
+
+        return calcPatternLogLikelihoods(nodeNr, out);
+	}
+
+	/**
+	 * Uses the tip conditionals from pre-order partials when possible, which
+	 * give the pattern log likelihoods of every candidate without changing the
+	 * tip. Otherwise, ancestors are flipped to their scratch slot once for all
+	 * candidates.
+	 */
+	@Override
+	public void getLogProbsForStateSequences(int nodeNr, int [][] candidates, double [][] out) {
+        if (m_useAmbiguities.get()) {
+        	throw new IllegalArgumentException("should not use getLogProbsForSequences but getLogProbsForPartialsSequence instead");
+        }
+        int stateCount = alignment.getDataType().getStateCount();
+        if (canUsePreOrderPartials()) {
+        	if (batchConditionals == null || batchConditionals.length != alignment.getPatternCount() * stateCount) {
+        		batchConditionals = new double[alignment.getPatternCount() * stateCount];
+        	}
+        	getTipConditionalLogProbs(treeNodeNrToAlignmentIdx[nodeNr], stateCount, batchConditionals);
+        	for (int k = 0; k < candidates.length; k++) {
+        		PreOrderPartials.getCandidateLogLikelihoods(batchConditionals, candidates[k], tipEncoder, stateCount, out[k]);
+        	}
+        	return;
+        }
+		if (maCore != null) {
+			maCore.flipNodeStates(nodeNr);
+		} else {
+			tempTipNodes.set(treeNodeNrToAlignmentIdx[nodeNr]);
+		}
+		int flipCount = flipAncestors(nodeNr);
+		for (int k = 0; k < candidates.length; k++) {
+			setStates(nodeNr, candidates[k]);
+			calcProbeLogLikelihoods(flipCount, out[k]);
+		}
+		unflipAncestors(flipCount);
+		if (maCore != null) {
+			maCore.flipNodeStates(nodeNr);
+		}
+	}
 
-        return calcPatternLogLikelihoods(nodeNr);
+	private boolean canUsePreOrderPartials() {
+		return maCore != null && tempTipNodes.isEmpty() && !maCore.getUseScaling() &&
+				getConstantPattern() == null && !alignment.isAscertained;
 	}
 
     // Hermetic probe: flips each touched ancestor's partials index to the
 	// scratch slot before writing, then flips back on exit so the partials
 	// indices are unchanged on return. See docs/probe-store-restore.md.
-	private double [] calcPatternLogLikelihoods(int nodeNr) {
-		// calculate partials up to the root, flipping each ancestor to its
-		// scratch slot so we don't overwrite the stored state
-		final List<Integer> flipped = new ArrayList<>();
-        Node node = treeInput.get().getNode(nodeNr);
-        do {
-        	node = node.getParent();
-			final int parentNr = node.getNr();
-			likelihoodCore.setNodePartialsForUpdate(parentNr);
-			flipped.add(parentNr);
-			likelihoodCore.calculatePartials(node.getLeft().getNr(), node.getRight().getNr(), parentNr);
-        } while (!node.isRoot());
+	// With maCore, the tip is switched back too, so current partials and
+	// pre-order partials are not affected by the probe.
+	private double [] calcPatternLogLikelihoods(int nodeNr, double [] out) {
+		int flipCount = flipAncestors(nodeNr);
+		calcProbeLogLikelihoods(flipCount, out);
+		unflipAncestors(flipCount);
+		return out;
+	}
+
+	/**
+	 * flip the ancestors of nodeNr to their scratch slot so we don't overwrite the stored state
+	 * @return number of ancestors, which are in flipStack from the parent up to the root
+	 */
+	private int flipAncestors(int nodeNr) {
+		int flipCount = 0;
+		for (Node node = treeInput.get().getNode(nodeNr).getParent(); node != null; node = node.getParent()) {
+			likelihoodCore.setNodePartialsForUpdate(node.getNr());
+			flipStack[flipCount++] = node.getNr();
+		}
+		return flipCount;
+	}
+
+	/** flip ancestors back so the partials indices are unchanged on exit **/
+	private void unflipAncestors(int flipCount) {
+		for (int i = 0; i < flipCount; i++) {
+			likelihoodCore.setNodePartialsForUpdate(flipStack[i]);
+		}
+	}
+
+	/** calculate partials of the flipped ancestors up to the root and pattern log likelihoods **/
+	private void calcProbeLogLikelihoods(int flipCount, double [] out) {
+		TreeInterface tree = treeInput.get();
+		Node node = null;
+		for (int i = 0; i < flipCount; i++) {
+			node = tree.getNode(flipStack[i]);
+			likelihoodCore.calculatePartials(node.getLeft().getNr(), node.getRight().getNr(), node.getNr());
+		}
 
         // do fiddly bits at the root
         final double[] proportions = m_siteModel.getCategoryProportions(node);
@@ -201,24 +522,22 @@ public class MATreeLikelihood extends TreeLikelihood {
         }
 
         // combine with root frequencies
-        double[] rootFrequencies = substitutionModel.getFrequencies();
-        if (rootFrequenciesInput.get() != null) {
-            rootFrequencies = rootFrequenciesInput.get().getFreqs();
-        }
-        likelihoodCore.calculateLogLikelihoods(m_fRootPartials, rootFrequencies, patternLogLikelihoods);
-
-		// flip ancestors back so the partials indices are unchanged on exit
-		for (Integer nr : flipped) {
-			likelihoodCore.setNodePartialsForUpdate(nr);
-		}
-
-		return getPatternLogLikelihoods();
+        likelihoodCore.calculateLogLikelihoods(m_fRootPartials, getRootFrequencies(), patternLogLikelihoods);
+        patternLogLikelihoodsAreCurrent = false;
+		System.arraycopy(patternLogLikelihoods, 0, out, 0, patternLogLikelihoods.length);
 	}
 
 
 	@Override
 	public void store() {
-		dirtySequences.clear();
+		// tips updated before store() are part of the stored state, so have
+		// restore() set them again from the alignment
+		for (int k = 0; k < dirtySequenceCount; k++) {
+			tempTipNodes.set(dirtySequences[k]);
+		}
+		dirtySequenceCount = 0;
+		clearSiteLocalUpdates();
+		reinitialisedInProposal = false;
 		// Do NOT clear tempTipNodes here. store() is called by MCMC between
 		// operator.proposal() and calculateLogP() (default
 		// requiresStateInitialisation=true). Tip-state probes happen during
@@ -230,24 +549,67 @@ public class MATreeLikelihood extends TreeLikelihood {
 	
 	@Override
 	public void restore() {
+		if (reinitialisedInProposal) {
+			// stored buffers predate the new pattern count, so start over from the restored alignment
+			reinitialisedInProposal = false;
+			super.restore();
+			reinitialise();
+			calculateLogP();
+			tempTipNodes.clear();
+			return;
+		}
+		boolean restoreTipsOnly = siteLocalUpdateInProposal && !fullUpdateInProposal;
+		if (maCore != null) {
+			maCore.undoPatternUpdates();
+			maCore.invalidatePreOrderPartials();
+		}
+		for (int i = undoCount - 1; i >= 0; i--) {
+			patternLogLikelihoods[undoPattern[i]] = undoPatternLogLikelihood[i];
+			weightsUsed[undoPattern[i]] = undoWeight[i];
+		}
+		if (fullUpdateInProposal) {
+			patternLogLikelihoodsAreCurrent = false;
+		}
+		clearSiteLocalUpdates();
 		super.restore();
 
-		// Resync every tip we temporarily mutated from the (now-rolled-back)
-		// alignment. dirtySequences was populated during the previous
-		// calculateLogP from alignment.getDirtySequenceIndices(); we can't
-		// re-query that here because alignment.restore() has already cleared
-		// the edit list. Add probe-touched tips (tempTipNodes) since they may
-		// not have been alignment-dirty (e.g. ExchangeGibbsOperator's partials-
-		// fixup leaf).
-		dirtySequences.addAll(tempTipNodes);
-    	updateTipData();
-    	dirtySequences.clear();
+		// With maCore, tips are double-buffered and maCore switched them back
+		// to their stored buffer. Otherwise, resync every tip we mutated from
+		// the (now-rolled-back) alignment. dirtySequences was populated during
+		// the previous calculateLogP from alignment.getDirtySequenceIndices();
+		// we can't re-query that here because alignment.restore() has already
+		// cleared the edit list. Add probe-touched tips (tempTipNodes) since
+		// they may not have been alignment-dirty (e.g. ExchangeGibbsOperator's
+		// partials-fixup leaf).
+		if (maCore == null) {
+			for (int k = 0; k < dirtySequenceCount; k++) {
+				tempTipNodes.set(dirtySequences[k]);
+			}
+		}
+		dirtySequenceCount = 0;
+		for (int i = tempTipNodes.nextSetBit(0); i >= 0; i = tempTipNodes.nextSetBit(i + 1)) {
+			dirtySequences[dirtySequenceCount++] = i;
+		}
+    	updateTipData(!restoreTipsOnly);
+    	dirtySequenceCount = 0;
 		tempTipNodes.clear();
 	}
 
+	private void clearSiteLocalUpdates() {
+		if (maCore != null) {
+			maCore.clearPatternUpdates();
+		}
+		undoCount = 0;
+		siteLocalUpdateInProposal = false;
+		fullUpdateInProposal = false;
+		onlyAlignmentIsDirty = false;
+	}
+
 	@Override
 	protected void accept() {
-    	dirtySequences.clear();
+		reinitialisedInProposal = false;
+    	dirtySequenceCount = 0;
+		clearSiteLocalUpdates();
 		tempTipNodes.clear();
 		alignment.accept();
 		super.accept();
@@ -256,12 +618,29 @@ public class MATreeLikelihood extends TreeLikelihood {
 	@Override
 	protected boolean requiresRecalculation() {
 		boolean isDirty =  super.requiresRecalculation();
+		onlyAlignmentIsDirty = alignment.somethingIsDirty() && !treeInput.get().somethingIsDirty() &&
+				!m_siteModel.isDirtyCalculation() &&
+				(branchRateModelInput.get() == null || !branchRateModelInput.get().isDirtyCalculation()) &&
+				!(substitutionModel instanceof CalculationNode && ((CalculationNode) substitutionModel).isDirtyCalculation()) &&
+				(rootFrequenciesInput.get() == null || !rootFrequenciesInput.get().isDirtyCalculation());
 		if (alignment.somethingIsDirty()) {
 			alignmentNeedsUpdate = true;
             hasDirt = Tree.IS_DIRTY;
 			isDirty = true;
 		}
+		if (cachedStates.length != alignment.getPatternCount()) {
+			// a compressing alignment ran out of pattern slots and added some
+			reinitialise();
+			reinitialisedInProposal = true;
+			isDirty = true;
+		}
 		return isDirty;
 	}
 
+	/** rebuild all buffers for the current pattern count of the alignment, and recalculate everything next time **/
+	private void reinitialise() {
+		initAndValidate();
+		hasDirt = Tree.IS_FILTHY;
+	}
+
 }
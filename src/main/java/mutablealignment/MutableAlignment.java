@@ -2,14 +2,15 @@ package mutablealignment;
 
 
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Set;
 
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 import beast.base.core.Description;
@@ -22,34 +23,174 @@ import beast.base.inference.StateNode;
 
 @Description("Alignment that can be sampled by MCMC")
 public class MutableAlignment extends Alignment implements MutableAlignmentInterface {
+	public enum StorageType {intArray, packed, offHeap, copyOnWrite}
+	public enum StateEncoding {text, binary}
+	
+	final public Input<StorageType> storageInput = new Input<>("storage", "how characters are stored in memory: "
+			+ "intArray uses one int per character, packed uses only as many bits as the data type needs "
+			+ "(4 bits for nucleotides) at the cost of some bit shifting on every access, "
+			+ "offHeap uses a byte per character outside the Java heap so it does not add to garbage collection, "
+			+ "copyOnWrite uses an int per character in blocks of sites that are shared with copies of the alignment "
+			+ "until either side changes them, which makes copy() and assignFrom() cheap", 
+			StorageType.intArray, StorageType.values());
+	final public Input<String> matrixFileInput = new Input<>("matrixFile", "file to map offHeap storage to. "
+			+ "If the file exists, characters are taken from the file instead of from the sequences, "
+			+ "otherwise it is created. An existing file should have been created from the same taxa and sequences, "
+			+ "otherwise initialisation fails. Changes are written through to the file. "
+			+ "Ignored for other types of storage");
+	final public Input<Boolean> taxonMajorMirrorInput = new Input<>("taxonMajorMirror", "keep a taxon-major copy of the characters "
+			+ "in sync with the storage, so per-taxon reads and writes (sequence proposals, tip updates) are contiguous. "
+			+ "Costs an extra int per character", false);
+	final public Input<Boolean> compressPatternsInput = new Input<>("compressPatterns", "keep identical sites compressed into patterns "
+			+ "while the alignment changes, so likelihoods only need to evaluate distinct columns. "
+			+ "Cannot be combined with stripping invariant sites", false);
+	final public Input<Integer> patternCapacityInput = new Input<>("patternCapacity", "maximum number of patterns when compressing patterns. "
+			+ "Likelihoods evaluate all of them, so this should not be much larger than the number of distinct columns. "
+			+ "When a proposal needs more, the capacity grows by at least half and likelihoods re-initialise. "
+			+ "If not specified, the number of distinct columns in the data plus half of that (at least 16), "
+			+ "but no more than twice the number of sites, is used");
+	final public Input<Boolean> doubleBufferInput = new Input<>("doubleBuffer", "keep a second copy of the characters, so that "
+			+ "setting the whole alignment writes into the standby copy and restoring swaps back, instead of "
+			+ "journaling old and new values. Doubles the memory used for characters. "
+			+ "Cannot be combined with matrixFile", false);
+	final public Input<StateEncoding> stateEncodingInput = new Input<>("stateEncoding", "how the alignment is stored in the state file: "
+			+ "text has a line with characters per taxon, "
+			+ "binary has the characters bit-packed, deflated and base64 encoded, which is much faster to write and read for large alignments. "
+			+ "Both encodings can always be read", StateEncoding.text, StateEncoding.values());
+	final public Input<String> mutableSitesInput = new Input<>("mutableSites", "sites that can change, as comma separated site numbers "
+			+ "or ranges of sites starting at 1, e.g. 1-100,150. Other sites are compressed into patterns once, and likelihoods "
+			+ "only re-evaluate patterns of mutable sites when the alignment changes. By default, all sites can change. "
+			+ "Cannot be combined with compressPatterns or stripping invariant sites");
+	final public Input<Boolean> mutableAmbiguitiesOnlyInput = new Input<>("mutableAmbiguitiesOnly", "only characters that are "
+			+ "missing or ambiguous in the data can change, e.g. for imputation, so sites without such characters are "
+			+ "treated as not mutable (see mutableSites)", false);
+
+	/** holds the characters; for intArray storage this shares sitePatterns **/
+	protected SiteStorage storage;
+	// scratch space for one site (all taxa) and one taxon (all sites)
+	private int [] siteBuffer;
+	private int [] taxonBuffer;
+	// maintains patterns if compressPatternsInput is true, null otherwise
+	protected PatternCompressor compressor;
+	// pattern layout if a mutability mask is used, null otherwise
+	protected HotColdPatterns hotColdPatterns;
+	// mutability mask: sites with mutable characters, and if not all characters
+	// at those sites are mutable, a bit per character (taxon-major); null if not used
+	private BitSet mutableSites;
+	private BitSet mutableCharacters;
+	// standby copy of the characters if doubleBufferInput is true, null otherwise
+	private SiteStorage standbyStorage;
+	// for intArray storage, the array shared with standbyStorage
+	private int [][] standbySitePatterns;
+	// whether storage and standbyStorage were swapped since the last store/accept/restore
+	private boolean hasSwapped;
+	// alignment being copied by the copy constructor, so copyOnWrite storage can share its blocks
+	private MutableAlignment copySource;
+	// characters for log(), created on first use
+	private CharacterTable characterTable;
 	
 	public MutableAlignment() {
 	}
 	
 	public MutableAlignment(Alignment other) {
 		for (Input<?> input : other.listInputs()) {
-			setInputValue(input.getName(), input.get());
+			// a copy should not write through to the same file
+			if (!input.getName().equals(matrixFileInput.getName())) {
+				setInputValue(input.getName(), input.get());
+			}
+		}
+		if (other instanceof MutableAlignment) {
+			copySource = (MutableAlignment) other;
 		}
 		initAndValidate();
+		copySource = null;
+	}
+
+	/**
+	 * Copy of other that shares storage blocks with it, as well as everything set up from
+	 * the sequences that does not change while sampling, so nothing is parsed or logged
+	 */
+	private MutableAlignment(MutableAlignment other, CopyOnWriteSiteStorage shared) {
+		for (Input<?> input : other.listInputs()) {
+			if (!input.getName().equals(matrixFileInput.getName())) {
+				setInputValue(input.getName(), input.get());
+			}
+		}
+		taxaNames = other.taxaNames;
+		stateCounts = other.stateCounts;
+		counts = other.counts;
+		m_dataType = other.m_dataType;
+		maxStateCount = other.maxStateCount;
+		siteWeights = other.siteWeights;
+		tipLikelihoods = other.tipLikelihoods;
+
+		storage = shared;
+		if (other.standbyStorage != null) {
+			standbyStorage = shared.copy();
+		}
+		if (taxonMajorMirrorInput.get()) {
+			storage = new TaxonMajorMirrorSiteStorage(storage);
+			if (standbyStorage != null) {
+				standbyStorage = new TaxonMajorMirrorSiteStorage(standbyStorage);
+			}
+		}
+		int taxonCount = shared.getTaxonCount();
+		int siteCount = shared.getSiteCount();
+		siteBuffer = new int[taxonCount];
+		taxonBuffer = new int[siteCount];
+		initDirty(taxonCount, siteCount);
+
+		mutableSites = other.mutableSites;
+		mutableCharacters = other.mutableCharacters;
+		hotColdPatterns = other.hotColdPatterns;
+		if (other.compressor != null) {
+			initCompressor(false);
+		} else {
+			patternIndex = other.patternIndex;
+			patternWeight = other.patternWeight;
+		}
 	}
 	
 	
 	@Override
 	public void initAndValidate() {
 		super.initAndValidate();
+		Log.info.println("MutableAlignment uses " + storageInput.get() + " storage"
+				+ (taxonMajorMirrorInput.get() ? " with taxon-major mirror" : "")
+				+ (standbyStorage != null ? ", double buffered" : "") + ": "
+				+ (storage.getMemoryFootprint() + (standbyStorage != null ? standbyStorage.getMemoryFootprint() : 0)) + " bytes"
+				+ (storageInput.get() == StorageType.offHeap ? " off-heap" : "")
+				+ " (int[][] would use " + IntArraySiteStorage.estimateMemoryFootprint(getTaxonCount(), getSiteCount()) + " bytes)");
+	}
+	
+	public SiteStorage getStorage() {
+		return storage;
 	}
 	
 	/**
 	 * Set 1 character in the alignment at a specific taxon and site
 	 */
 	public void setSiteValue(int taxonNr, int siteNr, int newValue) {
+		if (mutableSites != null && !isMutable(taxonNr, siteNr)) {
+			throw new IllegalArgumentException("Character of taxon " + taxonNr + " at site " + siteNr + " cannot be changed");
+		}
+		if (compressor != null) {
+			System.arraycopy(sitePatterns[patternIndex[siteNr]], 0, siteBuffer, 0, siteBuffer.length);
+			siteBuffer[taxonNr] = newValue;
+			reservePatterns(compressor.reserve(siteBuffer));
+		}
 		startEditing(null);
-		editList.add(new Edit(siteNr, taxonNr, sitePatterns[siteNr][taxonNr], newValue));
-		sitePatterns[siteNr][taxonNr] = newValue;
+		editJournal.addSingleSite(siteNr, taxonNr, storage.getSiteValue(taxonNr, siteNr), newValue);
+		storage.setSiteValue(taxonNr, siteNr, newValue);
+		markDirty(taxonNr, siteNr, siteNr + 1);
+		dirtySites.set(siteNr);
+		if (compressor != null) {
+			compressor.updateSite(siteNr, siteBuffer);
+		}
 	}
 
 	public int getSiteValue(int taxonNr, int siteNr) {
-		return sitePatterns[siteNr][taxonNr];
+		return storage.getSiteValue(taxonNr, siteNr);
 	}
 
 
@@ -57,25 +198,45 @@ public class MutableAlignment extends Alignment implements MutableAlignmentInter
 	 * Set characters in the alignment at a specific taxon for all sites
 	 */
 	public void setSiteValuesByTaxon(int taxonNr, int [] newValues) {
+		if (compressor != null) {
+			reservePatterns(compressor.reserveForTaxon(taxonNr, newValues));
+		}
 		startEditing(null);
-		int [] oldValues = new int[newValues.length];
-		for (int i = 0; i < newValues.length; i++) {
-			oldValues[i] = sitePatterns[i][taxonNr]; 
+		storage.getSiteValuesByTaxon(taxonNr, taxonBuffer);
+		if (mutableSites != null) {
+			for (int i = 0; i < newValues.length; i++) {
+				checkMutable(taxonNr, i, taxonBuffer[i], newValues[i]);
+			}
 		}
-		editList.add(new Edit(oldValues, taxonNr, newValues));
-		for (int i = 0; i < newValues.length; i++) {
-			sitePatterns[i][taxonNr] = newValues[i];
+		editJournal.addAllSites(taxonNr, taxonBuffer, newValues, taxonBuffer.length);
+		storage.setSiteValuesByTaxon(taxonNr, newValues);
+		markDirty(taxonNr, 0, taxonBuffer.length);
+		dirtySites.set(0, taxonBuffer.length);
+		if (compressor != null) {
+			for (int i = 0; i < newValues.length; i++) {
+				if (taxonBuffer[i] != newValues[i]) {
+					System.arraycopy(sitePatterns[patternIndex[i]], 0, siteBuffer, 0, siteBuffer.length);
+					siteBuffer[taxonNr] = newValues[i];
+					compressor.updateSite(i, siteBuffer);
+				}
+			}
 		}
 	}
 
 	public int [] getSiteValuesByTaxon(int taxonNr) {
-		int [] seq = new int[sitePatterns.length];
-		for (int i = 0; i < seq.length; i++) {
-			seq[i] = sitePatterns[i][taxonNr];
-		}
+		int [] seq = new int[storage.getSiteCount()];
+		storage.getSiteValuesByTaxon(taxonNr, seq);
 		return seq;
 	}
 
+	/**
+	 * Copy characters of a specific taxon for all sites into dest,
+	 * which should be at least of length getSiteCount()
+	 */
+	public void getSiteValuesByTaxon(int taxonNr, int [] dest) {
+		storage.getSiteValuesByTaxon(taxonNr, dest);
+	}
+
 	@Override
 	public void startEditing(Operator operator) {
 		super.startEditing(operator);
@@ -86,13 +247,34 @@ public class MutableAlignment extends Alignment implements MutableAlignmentInter
 	 * Set characters in the alignment at a specific site for all taxa
 	 */
 	public void setSiteValuesBySite(int siteNr, int [] newValues) {
+		if (compressor != null) {
+			reservePatterns(compressor.reserve(newValues));
+		}
 		startEditing(null);
-		editList.add(new Edit(siteNr, sitePatterns[siteNr].clone(), newValues));
-		System.arraycopy(newValues, 0, sitePatterns[siteNr], 0, sitePatterns[siteNr].length);
+		storage.getSiteValuesBySite(siteNr, siteBuffer);
+		if (mutableSites != null) {
+			for (int i = 0; i < newValues.length; i++) {
+				checkMutable(i, siteNr, siteBuffer[i], newValues[i]);
+			}
+		}
+		editJournal.addAllTaxa(siteNr, siteBuffer, newValues, siteBuffer.length);
+		storage.setSiteValuesBySite(siteNr, newValues);
+		for (int i = 0; i < siteBuffer.length; i++) {
+			markDirty(i, siteNr, siteNr + 1);
+		}
+		dirtySites.set(siteNr);
+		if (compressor != null) {
+			compressor.updateSite(siteNr, newValues);
+		}
 	}
 
 	public int [] getSiteValuesBySite(int siteNr) {
-		return getPattern(siteNr);
+		if (compressor == null && hotColdPatterns == null) {
+			return getPattern(siteNr);
+		}
+		int [] values = new int[storage.getTaxonCount()];
+		storage.getSiteValuesBySite(siteNr, values);
+		return values;
 	}
 
 
@@ -100,15 +282,48 @@ public class MutableAlignment extends Alignment implements MutableAlignmentInter
 	 * Set all characters in the alignment 
 	 */
 	public void setSiteValues(int [][] newValues) {
+		if (compressor != null) {
+			reservePatterns(compressor.reserveAll(newValues));
+		}
 		startEditing(null);
-		int n = newValues[0].length;
-		int [][] oldValues = new int[newValues.length][n];
-		for (int i = 0; i < oldValues.length; i++) {
-			System.arraycopy(sitePatterns[i], 0, oldValues[i], 0, n);
+		int taxonCount = siteBuffer.length;
+		if (mutableSites != null) {
+			for (int j = 0; j < newValues.length; j++) {
+				storage.getSiteValuesBySite(j, siteBuffer);
+				for (int i = 0; i < taxonCount; i++) {
+					checkMutable(i, j, siteBuffer[i], newValues[j][i]);
+				}
+			}
+		}
+		if (hasSwapped) {
+			// standby holds the values to restore, so the active copy can be overwritten
+			for (int i = 0; i < newValues.length; i++) {
+				storage.setSiteValuesBySite(i, newValues[i]);
+			}
+		} else if (standbyStorage != null) {
+			for (int i = 0; i < newValues.length; i++) {
+				standbyStorage.setSiteValuesBySite(i, newValues[i]);
+			}
+			swapStorage();
+			editJournal.addSwap();
+			hasSwapped = true;
+		} else {
+			editJournal.addAll(newValues.length, taxonCount);
+			for (int i = 0; i < newValues.length; i++) {
+				storage.getSiteValuesBySite(i, siteBuffer);
+				editJournal.addAllOldValues(i, siteBuffer, taxonCount);
+				editJournal.addAllNewValues(i, newValues[i], taxonCount);
+				storage.setSiteValuesBySite(i, newValues[i]);
+			}
+		}
+		for (int i = 0; i < taxonCount; i++) {
+			markDirty(i, 0, newValues.length);
 		}
-		editList.add(new Edit(oldValues, newValues));
-		for (int i = 0; i < newValues.length; i++) {
-			System.arraycopy(newValues[i], 0, sitePatterns[i], 0, sitePatterns[i].length);
+		dirtySites.set(0, newValues.length);
+		if (compressor != null) {
+			for (int i = 0; i < newValues.length; i++) {
+				compressor.updateSite(i, newValues[i]);
+			}
 		}
 	}
 	
@@ -116,16 +331,124 @@ public class MutableAlignment extends Alignment implements MutableAlignmentInter
 	
 	/** reset site patterns to previous values **/
 	public void resetSitePatterns(int siteNr, int taxonNr, int oldValue) {
-		sitePatterns[siteNr][taxonNr] = oldValue;
+		storage.setSiteValue(taxonNr, siteNr, oldValue);
 	}
 
 	public void resetSitePatterns(int siteNr, int[] oldValues) {
-		System.arraycopy(oldValues, 0, sitePatterns[siteNr], 0, sitePatterns[siteNr].length);
+		storage.setSiteValuesBySite(siteNr, oldValues);
+	}
+
+	public void resetSiteValuesByTaxon(int taxonNr, int[] oldValues) {
+		storage.setSiteValuesByTaxon(taxonNr, oldValues);
 	}
 
 	public void resetSitePatterns(int[][] oldValues) {
 		for (int i = 0; i < oldValues.length; i++) {
-			System.arraycopy(oldValues[i], 0, sitePatterns[i], 0, sitePatterns[i].length);
+			storage.setSiteValuesBySite(i, oldValues[i]);
+		}
+	}
+	
+	
+	/** Alignment methods that normally access sitePatterns directly **/
+	@Override
+	public int getPatternCount() {
+		if (compressor != null) {
+			return compressor.getCapacity();
+		}
+		if (hotColdPatterns != null) {
+			return hotColdPatterns.getPatternCount();
+		}
+		return storage.getSiteCount();
+	}
+
+	/**
+	 * With intArray storage or compressed patterns this returns the live pattern, 
+	 * otherwise a copy, so changes to the returned array should go through setSiteValuesBySite()
+	 */
+	@Override
+	public int[] getPattern(int patternIndex) {
+		if (sitePatterns != null) {
+			return sitePatterns[patternIndex];
+		}
+		if (hotColdPatterns != null) {
+			if (patternIndex < hotColdPatterns.getColdPatternCount()) {
+				return hotColdPatterns.getColdPattern(patternIndex);
+			}
+			patternIndex = hotColdPatterns.getHotSite(patternIndex);
+		}
+		int [] pattern = new int[storage.getTaxonCount()];
+		storage.getSiteValuesBySite(patternIndex, pattern);
+		return pattern;
+	}
+
+	@Override
+	public int getPattern(int taxonIndex, int patternIndex) {
+		if (compressor != null) {
+			return sitePatterns[patternIndex][taxonIndex];
+		}
+		if (hotColdPatterns != null) {
+			return hotColdPatterns.getPattern(storage, taxonIndex, patternIndex);
+		}
+		return storage.getSiteValue(taxonIndex, patternIndex);
+	}
+
+	/**
+	 * Copy characters of a specific taxon for all patterns into dest,
+	 * which should be at least of length getPatternCount()
+	 */
+	public void getPatternValuesByTaxon(int taxonNr, int [] dest) {
+		if (hotColdPatterns != null) {
+			hotColdPatterns.getPatternValuesByTaxon(storage, taxonNr, dest);
+			return;
+		}
+		if (compressor == null) {
+			storage.getSiteValuesByTaxon(taxonNr, dest);
+			return;
+		}
+		for (int i = 0; i < sitePatterns.length; i++) {
+			dest[i] = sitePatterns[i][taxonNr];
+		}
+	}
+
+	public boolean isCompressingPatterns() {
+		return compressor != null;
+	}
+
+	/** whether the character of taxon at site can change, which is always the case without a mutability mask **/
+	public boolean isMutable(int taxonNr, int siteNr) {
+		if (mutableSites == null) {
+			return true;
+		}
+		return mutableSites.get(siteNr) &&
+				(mutableCharacters == null || mutableCharacters.get(taxonNr * storage.getSiteCount() + siteNr));
+	}
+
+	/** whether some characters cannot change **/
+	public boolean hasMutabilityMask() {
+		return mutableSites != null;
+	}
+
+	/** whether only some characters at sites that can change may change, as with mutableAmbiguitiesOnly **/
+	public boolean hasCharacterMask() {
+		return mutableCharacters != null;
+	}
+
+	/** whether any character at site can change **/
+	public boolean isMutableSite(int siteNr) {
+		return mutableSites == null || mutableSites.get(siteNr);
+	}
+
+	/**
+	 * Number of patterns of sites that cannot change, which come before the patterns
+	 * of mutable sites and are never dirty; 0 without a mutability mask
+	 */
+	public int getColdPatternCount() {
+		return hotColdPatterns == null ? 0 : hotColdPatterns.getColdPatternCount();
+	}
+
+	private void checkMutable(int taxonNr, int siteNr, int oldValue, int newValue) {
+		if (oldValue != newValue && !isMutable(taxonNr, siteNr)) {
+			throw new IllegalArgumentException("Character of taxon " + taxonNr + " at site " + siteNr + " cannot be changed");
 		}
 	}
 	
@@ -141,10 +464,13 @@ public class MutableAlignment extends Alignment implements MutableAlignmentInter
 
 	@Override
 	public void log(long sample, PrintStream out) {
+		if (characterTable == null) {
+			characterTable = new CharacterTable(getDataType());
+		}
 		for (int i = 0; i < taxaNames.size(); i++) {
-			for (int j = 0; j < sitePatterns.length; j++) {
-				out.print(getDataType().getCharacter(sitePatterns[j][i]));
-			}
+			storage.getSiteValuesByTaxon(i, taxonBuffer);
+			characterTable.format(taxonBuffer, taxonBuffer.length);
+			out.write(characterTable.getRow(), 0, characterTable.getRowLength());
 			out.print("\t");
 		}
 	}
@@ -156,13 +482,50 @@ public class MutableAlignment extends Alignment implements MutableAlignmentInter
 
 	/** StateNode stuff **/
 	
-	enum EditType {singleSite, allTaxa, allSites, all}
+	public enum EditType {singleSite, allTaxa, allSites, all}
+
+	private final static String BASE64_ENCODING = "base64";
 	
-	protected List<Edit> editList = new ArrayList<>();
+	protected EditJournal editJournal = new EditJournal();
+
+	/** gets edits that are kept, just before they are removed from the journal **/
+	public interface EditListener {
+		public void editsAccepted(EditJournal journal);
+	}
+
+	private final List<EditListener> editListeners = new ArrayList<>();
+
+	public void addEditListener(EditListener listener) {
+		editListeners.add(listener);
+	}
+
+	public void removeEditListener(EditListener listener) {
+		editListeners.remove(listener);
+	}
+
+	/** journal of edits since the last store/accept/restore **/
+	public EditJournal getEditJournal() {
+		return editJournal;
+	}
+
+	private void notifyEditsAccepted() {
+		if (editJournal.size() > 0) {
+			for (EditListener listener : editListeners) {
+				listener.editsAccepted(editJournal);
+			}
+		}
+	}
 	
 	@Override
 	protected void store() {
-		editList.clear();
+		// edits still in the journal were accepted without a call to accept()
+		notifyEditsAccepted();
+		editJournal.clear();
+		hasSwapped = false;
+		if (compressor != null) {
+			compressor.commit();
+		}
+		clearDirty();
 		hasStartedEditing = false;
 		super.store();
 	}
@@ -171,21 +534,71 @@ public class MutableAlignment extends Alignment implements MutableAlignmentInter
 	@Override
 	protected void accept() {
 		hasStartedEditing = false;
-		editList.clear();
+		notifyEditsAccepted();
+		editJournal.clear();
+		hasSwapped = false;
+		if (compressor != null) {
+			compressor.commit();
+		}
+		clearDirty();
 		super.accept();
 	}
 	
 	@Override
 	public void restore() {
 		
-		for (int i = editList.size()-1; i>=0; i--) {
-			editList.get(i).undo(this);
+		for (int i = editJournal.size()-1; i>=0; i--) {
+			undo(i);
 		}
-		editList.clear();
+		editJournal.clear();
+		hasSwapped = false;
+		if (compressor != null) {
+			compressor.undo();
+		}
+		clearDirty();
 		hasStartedEditing = false;
 		super.restore();
 	}
 
+	private void undo(int editNr) {
+		switch (editJournal.getType(editNr)) {
+		case singleSite:
+			resetSitePatterns(editJournal.getSiteNr(editNr), editJournal.getTaxonNr(editNr), editJournal.getOldValue(editNr));
+			break;
+		case allTaxa:
+			editJournal.getOldValues(editNr, siteBuffer);
+			resetSitePatterns(editJournal.getSiteNr(editNr), siteBuffer);
+			break;
+		case allSites:
+			editJournal.getOldValues(editNr, taxonBuffer);
+			resetSiteValuesByTaxon(editJournal.getTaxonNr(editNr), taxonBuffer);
+			break;
+		case all:
+			if (editJournal.isSwap(editNr)) {
+				swapStorage();
+				break;
+			}
+			int [] pool = editJournal.getPool();
+			int offset = editJournal.getOldValuesOffset(editNr);
+			for (int i = 0; i < storage.getSiteCount(); i++) {
+				System.arraycopy(pool, offset + i * siteBuffer.length, siteBuffer, 0, siteBuffer.length);
+				resetSitePatterns(i, siteBuffer);
+			}
+			break;
+		}
+	}
+
+	private void swapStorage() {
+		SiteStorage tmp = storage;
+		storage = standbyStorage;
+		standbyStorage = tmp;
+		if (standbySitePatterns != null) {
+			int [][] tmpPatterns = sitePatterns;
+			sitePatterns = standbySitePatterns;
+			standbySitePatterns = tmpPatterns;
+		}
+	}
+
 	/**
 	 * calculate patterns from sequence data *
 	 */
@@ -193,14 +606,134 @@ public class MutableAlignment extends Alignment implements MutableAlignmentInter
 		int taxonCount = counts.size();
 		int siteCount = counts.get(0).size();
 
-		// convert data to transposed int array
-		sitePatterns = new int[siteCount][taxonCount];
-		for (int i = 0; i < taxonCount; i++) {
-			List<Integer> sites = counts.get(i);
-			for (int j = 0; j < siteCount; j++) {
-				sitePatterns[j][i] = sites.get(j);
+		// determine maximum state count
+		// Usually, the state count is equal for all sites,
+		// though for SnAP analysis, this is typically not the case.
+		maxStateCount = 0;
+		for (int m_nStateCount1 : stateCounts) {
+			maxStateCount = Math.max(maxStateCount, m_nStateCount1);
+		}
+
+		// convert data to transposed storage
+		standbyStorage = null;
+		standbySitePatterns = null;
+		switch (storageInput.get()) {
+		case packed:
+			sitePatterns = null;
+			BitSet codes = new BitSet();
+			for (List<Integer> sites : counts) {
+				for (int code : sites) {
+					codes.set(code);
+				}
+			}
+			storage = new PackedSiteStorage(taxonCount, siteCount, maxStateCount, codes.stream().toArray());
+			copyCountsToStorage();
+			if (doubleBufferInput.get()) {
+				standbyStorage = new PackedSiteStorage(taxonCount, siteCount, maxStateCount, codes.stream().toArray());
+			}
+			break;
+		case offHeap:
+			sitePatterns = null;
+			// one pass over the data for the largest code and, for a matrix file, its checksum
+			int maxCode = maxStateCount;
+			long checksum = 1;
+			for (int i = 0; i < taxonCount; i++) {
+				checksum = 31 * checksum + taxaNames.get(i).hashCode();
+				for (int code : counts.get(i)) {
+					maxCode = Math.max(maxCode, code);
+					checksum = 31 * checksum + code;
+				}
+			}
+			if (doubleBufferInput.get()) {
+				if (matrixFileInput.get() != null) {
+					throw new IllegalArgumentException("Cannot double buffer storage that is mapped to a file");
+				}
+				standbyStorage = new OffHeapSiteStorage(taxonCount, siteCount, maxCode);
+			}
+			if (matrixFileInput.get() != null) {
+				OffHeapSiteStorage offHeapStorage;
+				try {
+					offHeapStorage = new OffHeapSiteStorage(taxonCount, siteCount, maxCode, checksum, new File(matrixFileInput.get()));
+				} catch (IOException e) {
+					throw new IllegalArgumentException("Could not map " + matrixFileInput.get() + ": " + e.getMessage(), e);
+				}
+				storage = offHeapStorage;
+				if (offHeapStorage.isInitialised()) {
+					if (log) {
+						Log.info.println("Taking characters from " + matrixFileInput.get());
+					}
+				} else {
+					copyCountsToStorage();
+				}
+			} else {
+				storage = new OffHeapSiteStorage(taxonCount, siteCount, maxCode);
+				copyCountsToStorage();
+			}
+			break;
+		case copyOnWrite:
+			sitePatterns = null;
+			CopyOnWriteSiteStorage source = copySource == null ? null : copyOnWriteStorage(copySource.storage);
+			if (source != null && source.getTaxonCount() == taxonCount && source.getSiteCount() == siteCount) {
+				storage = source.copy();
+			} else {
+				storage = new CopyOnWriteSiteStorage(taxonCount, siteCount);
+				copyCountsToStorage();
+			}
+			if (doubleBufferInput.get()) {
+				// blocks are duplicated as the standby copy is written to
+				standbyStorage = ((CopyOnWriteSiteStorage) storage).copy();
+			}
+			break;
+		case intArray:
+		default:
+			int [][] siteValues = new int[siteCount][taxonCount];
+			for (int i = 0; i < taxonCount; i++) {
+				List<Integer> sites = counts.get(i);
+				for (int j = 0; j < siteCount; j++) {
+					siteValues[j][i] = sites.get(j);
+				}
+			}
+			// with compressed patterns, sitePatterns holds the patterns instead
+			sitePatterns = compressPatternsInput.get() ? null : siteValues;
+			storage = new IntArraySiteStorage(siteValues, taxonCount);
+			if (doubleBufferInput.get()) {
+				int [][] standbyValues = new int[siteCount][taxonCount];
+				standbySitePatterns = compressPatternsInput.get() ? null : standbyValues;
+				standbyStorage = new IntArraySiteStorage(standbyValues, taxonCount);
+			}
+		}
+		if (taxonMajorMirrorInput.get()) {
+			storage = new TaxonMajorMirrorSiteStorage(storage);
+			if (standbyStorage != null) {
+				standbyStorage = new TaxonMajorMirrorSiteStorage(standbyStorage);
+			}
+		}
+		hasSwapped = false;
+		siteBuffer = new int[taxonCount];
+		taxonBuffer = new int[siteCount];
+		initDirty(taxonCount, siteCount);
+
+		initMutabilityMask(taxonCount, siteCount);
+		if (mutableSites != null) {
+			if (compressPatternsInput.get()) {
+				throw new IllegalArgumentException("Cannot compress patterns with a mutability mask, which compresses sites that cannot change already");
+			}
+			if (stripInvariantSitesInput.get()) {
+				throw new IllegalArgumentException("Cannot strip invariant sites with a mutability mask");
+			}
+			initHotColdPatterns(log);
+			return;
+		}
+		hotColdPatterns = null;
+
+		if (compressPatternsInput.get()) {
+			if (stripInvariantSitesInput.get()) {
+				throw new IllegalArgumentException("Cannot strip invariant sites when compressing patterns");
 			}
+			initCompressor(log);
+			return;
 		}
+		compressor = null;
 		int patterns = siteCount;
 		
 		// reserve memory for patterns
@@ -220,13 +753,6 @@ public class MutableAlignment extends Alignment implements MutableAlignmentInter
 			}
 		}
 
-		// determine maximum state count
-		// Usually, the state count is equal for all sites,
-		// though for SnAP analysis, this is typically not the case.
-		maxStateCount = 0;
-		for (int m_nStateCount1 : stateCounts) {
-			maxStateCount = Math.max(maxStateCount, m_nStateCount1);
-		}
 		// report some statistics
 		if (log && taxaNames.size() < 30) {
 			for (int i = 0; i < taxaNames.size(); i++) {
@@ -240,8 +766,9 @@ public class MutableAlignment extends Alignment implements MutableAlignmentInter
 				Log.info.println("Stripping invariant sites");
 
 			int removedSites = 0;
+			int[] pattern = new int[taxonCount];
 			for (int i = 0; i < patterns; i++) {
-				int[] pattern = sitePatterns[i];
+				storage.getSiteValuesBySite(i, pattern);
 				int value = pattern[0];
 				boolean isInvariant = true;
 				for (int k = 1; k < pattern.length; k++) {
@@ -263,23 +790,236 @@ public class MutableAlignment extends Alignment implements MutableAlignmentInter
 		}
 	} // calcPatterns
 
-	public Integer [] getDirtySequenceIndices() {
-		Set<Integer> dirtySequences = new HashSet<>();
-		for (Edit edit : editList) {
-			switch (edit.type) {
-			case all:
-			case allTaxa:
-				for (int i = 0; i < getTaxonCount(); i++) {
-					dirtySequences.add(i);
+	/** storage as CopyOnWriteSiteStorage, or null if it is not one **/
+	private static CopyOnWriteSiteStorage copyOnWriteStorage(SiteStorage storage) {
+		if (storage instanceof TaxonMajorMirrorSiteStorage) {
+			storage = ((TaxonMajorMirrorSiteStorage) storage).getPrimary();
+		}
+		return storage instanceof CopyOnWriteSiteStorage ? (CopyOnWriteSiteStorage) storage : null;
+	}
+
+	private void initCompressor(boolean log) {
+		int taxonCount = storage.getTaxonCount();
+		int siteCount = storage.getSiteCount();
+		int distinct = PatternCompressor.countPatterns(storage);
+		int capacity = patternCapacityInput.get() != null ? patternCapacityInput.get() :
+			Math.min(2 * siteCount, distinct + Math.max(16, distinct / 2));
+		if (capacity < distinct) {
+			throw new IllegalArgumentException("patternCapacity (" + capacity + ") should be at least the number of distinct columns (" + distinct + ")");
+		}
+		compressor = new PatternCompressor(taxonCount, siteCount, capacity, siteWeights, dirtyTaxa);
+		compressor.init(storage);
+		sitePatterns = compressor.getPatterns();
+		patternIndex = compressor.getPatternIndex();
+		patternWeight = compressor.getPatternWeight();
+		if (log) {
+			Log.info.println("Compressed " + siteCount + " sites into " + distinct + " patterns, with room for " + capacity + " patterns");
+		}
+	}
+
+	/**
+	 * Pick up slots added by the compressor while reserving room for an edit,
+	 * which is done before anything changes. Likelihoods notice that the
+	 * pattern count changed and re-initialise.
+	 */
+	private void reservePatterns(boolean grew) {
+		if (grew) {
+			sitePatterns = compressor.getPatterns();
+			patternWeight = compressor.getPatternWeight();
+			Log.warning.println("Pattern capacity of " + getID() + " increased to " + compressor.getCapacity() + " patterns");
+		}
+	}
+
+	/** compress all sites again, e.g. after reading a state, which may add slots **/
+	private void recompress() {
+		compressor.init(storage);
+		sitePatterns = compressor.getPatterns();
+		patternWeight = compressor.getPatternWeight();
+	}
+
+	/** set up mutableSites and mutableCharacters from the inputs, leaving them null if all characters can change **/
+	private void initMutabilityMask(int taxonCount, int siteCount) {
+		mutableSites = null;
+		mutableCharacters = null;
+		if (mutableSitesInput.get() == null && !mutableAmbiguitiesOnlyInput.get()) {
+			return;
+		}
+		mutableSites = new BitSet(siteCount);
+		if (mutableSitesInput.get() == null) {
+			mutableSites.set(0, siteCount);
+		} else {
+			for (String range : mutableSitesInput.get().split(",")) {
+				String [] bounds = range.trim().split("-");
+				try {
+					int from = Integer.parseInt(bounds[0].trim());
+					int to = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : from;
+					if (bounds.length > 2 || from < 1 || to > siteCount || from > to) {
+						throw new NumberFormatException();
+					}
+					mutableSites.set(from - 1, to);
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Expected site numbers or ranges from 1 to " + siteCount
+							+ " in mutableSites, not '" + range.trim() + "'");
+				}
+			}
+		}
+		if (mutableAmbiguitiesOnlyInput.get()) {
+			// ambiguities in the data as given, not in a state taken from a matrix file,
+			// where they may have been resolved already
+			DataType dataType = getDataType();
+			mutableCharacters = new BitSet(taxonCount * siteCount);
+			BitSet sites = new BitSet(siteCount);
+			for (int i = 0; i < taxonCount; i++) {
+				List<Integer> sequence = counts.get(i);
+				for (int j = mutableSites.nextSetBit(0); j >= 0; j = mutableSites.nextSetBit(j + 1)) {
+					if (dataType.isAmbiguousCode(sequence.get(j))) {
+						mutableCharacters.set(i * siteCount + j);
+						sites.set(j);
+					}
 				}
-				break;
-			case allSites:
-			case singleSite:
-				dirtySequences.add(edit.taxonNr);
-				break;
 			}
+			mutableSites = sites;
 		}
-		return dirtySequences.toArray(new Integer[] {});
+	}
+
+	private void initHotColdPatterns(boolean log) {
+		// patterns are not shared with the storage
+		sitePatterns = null;
+		standbySitePatterns = null;
+		hotColdPatterns = new HotColdPatterns(storage, mutableSites, siteWeights);
+		patternIndex = hotColdPatterns.getPatternIndex();
+		patternWeight = hotColdPatterns.getPatternWeight();
+		if (log) {
+			Log.info.println(mutableSites.cardinality() + " of " + storage.getSiteCount() + " sites can change, the others are compressed into "
+					+ hotColdPatterns.getColdPatternCount() + " patterns");
+		}
+	}
+
+	private void copyCountsToStorage() {
+		for (int i = 0; i < counts.size(); i++) {
+			List<Integer> sites = counts.get(i);
+			for (int j = 0; j < sites.size(); j++) {
+				storage.setSiteValue(i, j, sites.get(j));
+			}
+		}
+	}
+
+	/** 
+	 * Dirty tracking: which taxa and sites were edited since the last store/accept/restore.
+	 * Maintained as edits happen, so querying does not require walking the edit journal.
+	 */
+	private BitSet dirtyTaxa;
+	private BitSet dirtySites;
+	// per taxon range of dirty sites, from (inclusive) to (exclusive), empty if from >= to
+	private int [] dirtySiteFrom;
+	private int [] dirtySiteTo;
+
+	private void markDirty(int taxonNr, int from, int to) {
+		dirtyTaxa.set(taxonNr);
+		dirtySiteFrom[taxonNr] = Math.min(dirtySiteFrom[taxonNr], from);
+		dirtySiteTo[taxonNr] = Math.max(dirtySiteTo[taxonNr], to);
+	}
+
+	private void clearDirty() {
+		for (int i = dirtyTaxa.nextSetBit(0); i >= 0; i = dirtyTaxa.nextSetBit(i + 1)) {
+			dirtySiteFrom[i] = Integer.MAX_VALUE;
+			dirtySiteTo[i] = 0;
+		}
+		dirtyTaxa.clear();
+		dirtySites.clear();
+	}
+
+	private void initDirty(int taxonCount, int siteCount) {
+		dirtyTaxa = new BitSet(taxonCount);
+		dirtySites = new BitSet(siteCount);
+		dirtySiteFrom = new int[taxonCount];
+		dirtySiteTo = new int[taxonCount];
+		Arrays.fill(dirtySiteFrom, Integer.MAX_VALUE);
+	}
+
+	/** @deprecated allocates; use getDirtySequenceIndices(int[]) instead **/
+	@Deprecated
+	public Integer [] getDirtySequenceIndices() {
+		Integer [] dirtySequences = new Integer[dirtyTaxa.cardinality()];
+		int k = 0;
+		for (int i = dirtyTaxa.nextSetBit(0); i >= 0; i = dirtyTaxa.nextSetBit(i + 1)) {
+			dirtySequences[k++] = i;
+		}
+		return dirtySequences;
+	}
+
+	/**
+	 * Copy indices of taxa edited since the last store/accept/restore into out,
+	 * which should be at least of length getTaxonCount()
+	 * @return number of dirty taxa
+	 */
+	public int getDirtySequenceIndices(int [] out) {
+		int k = 0;
+		for (int i = dirtyTaxa.nextSetBit(0); i >= 0; i = dirtyTaxa.nextSetBit(i + 1)) {
+			out[k++] = i;
+		}
+		return k;
+	}
+
+	public int getDirtySequenceCount() {
+		return dirtyTaxa.cardinality();
+	}
+
+	public boolean isDirtySequence(int taxonNr) {
+		return dirtyTaxa.get(taxonNr);
+	}
+
+	/** first dirty site of a taxon, getSiteCount() or more if the taxon is clean **/
+	public int getDirtySiteFrom(int taxonNr) {
+		return dirtySiteFrom[taxonNr];
+	}
+
+	/** one beyond the last dirty site of a taxon, 0 if the taxon is clean **/
+	public int getDirtySiteTo(int taxonNr) {
+		return dirtySiteTo[taxonNr];
+	}
+
+	/**
+	 * Copy indices of sites edited since the last store/accept/restore into out,
+	 * which should be at least of length getSiteCount()
+	 * @return number of dirty sites
+	 */
+	public int getDirtySiteIndices(int [] out) {
+		int k = 0;
+		for (int i = dirtySites.nextSetBit(0); i >= 0; i = dirtySites.nextSetBit(i + 1)) {
+			out[k++] = i;
+		}
+		return k;
+	}
+
+	/**
+	 * Copy indices of patterns affected by edits since the last store/accept/restore into out,
+	 * which should be at least of length getPatternCount(). These are the dirty sites when
+	 * patterns are not compressed, the patterns that changed content or weight when they are,
+	 * and the hot patterns of dirty sites with a mutability mask.
+	 * @return number of dirty patterns
+	 */
+	public int getDirtyPatternIndices(int [] out) {
+		if (hotColdPatterns != null) {
+			return hotColdPatterns.getDirtyPatternIndices(dirtySites, out);
+		}
+		if (compressor == null) {
+			return getDirtySiteIndices(out);
+		}
+		BitSet dirtyPatterns = compressor.getDirtyPatterns();
+		int k = 0;
+		for (int i = dirtyPatterns.nextSetBit(0); i >= 0; i = dirtyPatterns.nextSetBit(i + 1)) {
+			out[k++] = i;
+		}
+		return k;
+	}
+
+	public int getDirtySiteCount() {
+		return dirtySites.cardinality();
+	}
+
+	public boolean isDirtySite(int siteNr) {
+		return dirtySites.get(siteNr);
 	}
 
 	@Override
@@ -295,7 +1035,7 @@ public class MutableAlignment extends Alignment implements MutableAlignmentInter
 		for (int i = 0; i < taxonCount; i++) {
 			b.append(getTaxaNames().get(i) + ": ");
 			for (int j = 0; j < siteCount; j++) {
-				b.append(getDataType().getCharacter(getPattern(i, j)));
+				b.append(getDataType().getCharacter(storage.getSiteValue(i, j)));
 			}
 			b.append("\n");
 		}
@@ -304,6 +1044,13 @@ public class MutableAlignment extends Alignment implements MutableAlignmentInter
 
 	@Override
 	public String toXML() {
+		if (stateEncodingInput.get() == StateEncoding.binary) {
+			StringBuilder b = new StringBuilder();
+			b.append("<statenode id='").append(normalise(getID())).append("' encoding='" + BASE64_ENCODING + "'>");
+			AlignmentStateCodec.writeBase64(storage, getTaxaNames(), b);
+			b.append("</statenode>\n");
+			return b.toString();
+		}
         return "<statenode id='" + normalise(getID()) + "'>" +
                 normalise(toString()) +
                 "</statenode>\n";
@@ -324,6 +1071,17 @@ public class MutableAlignment extends Alignment implements MutableAlignmentInter
 
 	@Override
 	public void fromXML(Node node) {
+		if (node instanceof Element && BASE64_ENCODING.equals(((Element) node).getAttribute("encoding"))) {
+			try {
+				AlignmentStateCodec.readBase64(node.getTextContent(), storage, getTaxaNames());
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Could not read state of " + getID() + ": " + e.getMessage(), e);
+			}
+			if (compressor != null) {
+				recompress();
+			}
+			return;
+		}
 		String str = node.getTextContent();
 		String [] strs = str.split("\n");
 		for (String s : strs) {
@@ -334,24 +1092,52 @@ public class MutableAlignment extends Alignment implements MutableAlignmentInter
 			int [] seq = dataType.stringToEncoding(sequences).stream().mapToInt(i->i).toArray();
 			int taxonNr = getTaxonIndex(taxon);
 			for (int siteNr = 0; siteNr < seq.length; siteNr++) {
-				sitePatterns[siteNr][taxonNr] = seq[siteNr];
+				storage.setSiteValue(taxonNr, siteNr, seq[siteNr]);
 			}
 		}
+		if (compressor != null) {
+			recompress();
+		}
 	}
 
+	/**
+	 * Copy with the current characters. With copyOnWrite storage the copy shares
+	 * blocks of sites with this alignment and skips setting up from the sequences.
+	 */
 	@Override
 	public StateNode copy() {
-		return new MutableAlignment(this);
+		CopyOnWriteSiteStorage source = copyOnWriteStorage(storage);
+		if (source != null && !isAscertained) {
+			return new MutableAlignment(this, source.copy());
+		}
+		MutableAlignment copy = new MutableAlignment(this);
+		if (copyOnWriteStorage(copy.storage) == null) {
+			copy.assignFromFragile(this);
+		}
+		return copy;
 	}
 	
 	@Override
 	public void assignFromFragile(StateNode other) {
 		MutableAlignment src = (MutableAlignment)other;
-		if (this.getPatternCount() != src.getPatternCount()) {
-			throw new IllegalArgumentException("assignFromFragile() Expected replacement to be of equal number of patterns (this is realy fragile)");
+		if (this.getSiteCount() != src.getSiteCount()) {
+			throw new IllegalArgumentException("assignFromFragile() Expected replacement to be of equal number of sites (this is realy fragile)");
+		}
+		CopyOnWriteSiteStorage source = copyOnWriteStorage(src.storage);
+		if (storage instanceof CopyOnWriteSiteStorage && source != null && source.getTaxonCount() == storage.getTaxonCount()) {
+			// share blocks instead of copying sites
+			((CopyOnWriteSiteStorage) storage).assignFrom(source);
+			if (compressor != null) {
+				recompress();
+			}
+			return;
+		}
+		for (int i = 0; i < src.getSiteCount(); i++) {
+			src.storage.getSiteValuesBySite(i, siteBuffer);
+			resetSitePatterns(i, siteBuffer);
 		}
-		for (int i = 0; i < src.getPatternCount(); i++) {
-			resetSitePatterns(i, src.getPattern(i));			
+		if (compressor != null) {
+			recompress();
 		}
 	}
 
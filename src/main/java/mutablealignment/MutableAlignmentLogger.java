@@ -1,6 +1,9 @@
 package mutablealignment;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.util.List;
 
 import beast.base.core.BEASTObject;
@@ -8,46 +11,130 @@ import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Loggable;
 import beast.base.core.Input.Validate;
+import beast.base.inference.Logger;
 
 @Description("Logs whole mutable alignment")
 public class MutableAlignmentLogger extends BEASTObject implements Loggable {
 	final public Input<MutableAlignment> alignmentInput = new Input<>("alignment", "mutable alignment to be logged", Validate.REQUIRED);
+	final public Input<String> binaryFileInput = new Input<>("binaryFile", "if specified, the alignment is written to this file "
+			+ "as a binary trace, with a full copy every keyframeInterval samples and only the characters that changed otherwise, "
+			+ "instead of a column per character in the log. When resuming, samples are appended to the trace. "
+			+ "Use AlignmentTraceReader to read it back");
+	final public Input<Integer> keyframeIntervalInput = new Input<>("keyframeInterval", "number of samples between full copies "
+			+ "of the alignment in the binary trace", 100);
+	final public Input<String> sequenceFileInput = new Input<>("sequenceFile", "if specified, sequences are written to this file "
+			+ "by a background thread, as a tab separated line per sample with the sample number followed by a sequence per taxon, "
+			+ "instead of a column per character in the log");
+	final public Input<Integer> queueSizeInput = new Input<>("queueSize", "number of samples that can wait to be written "
+			+ "to sequenceFile before MCMC blocks", 4);
+	final public Input<Boolean> compressInput = new Input<>("compress", "gzip sequenceFile", false);
 
 	private MutableAlignment alignment;
-	
+	private AlignmentTraceWriter writer;
+	private AsyncAlignmentWriter asyncWriter;
+
 	@Override
 	public void initAndValidate() {
 		alignment = alignmentInput.get();
+		if (keyframeIntervalInput.get() < 1) {
+			throw new IllegalArgumentException("keyframeInterval should be at least 1");
+		}
+		if (queueSizeInput.get() < 1) {
+			throw new IllegalArgumentException("queueSize should be at least 1");
+		}
+		if (binaryFileInput.get() != null && sequenceFileInput.get() != null) {
+			throw new IllegalArgumentException("Specify either binaryFile or sequenceFile, not both");
+		}
 	}
-	
-	
+
+
 	@Override
 	public void init(PrintStream out) {
+		if (binaryFileInput.get() != null) {
+			try {
+				writer = new AlignmentTraceWriter(new File(binaryFileInput.get()), alignment.getTaxaNames(),
+						alignment.getSiteCount(), alignment.getMaxStateCount(), keyframeIntervalInput.get(),
+						Logger.FILE_MODE == Logger.LogFileMode.resume);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not open " + binaryFileInput.get(), e);
+			}
+			alignment.addEditListener(writer);
+			return;
+		}
+		if (sequenceFileInput.get() != null) {
+			try {
+				asyncWriter = new AsyncAlignmentWriter(new File(sequenceFileInput.get()), alignment.getTaxaNames(),
+						alignment.getSiteCount(), alignment.getDataType(), queueSizeInput.get(), compressInput.get());
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not open " + sequenceFileInput.get(), e);
+			}
+			return;
+		}
+
 		int siteCount = alignment.getSiteCount();
 		int taxonCount = alignment.getTaxonCount();
 		List<String> taxaNames = alignment.getTaxaNames();
-		
+
 		for (int i = 0; i < taxonCount; i++) {
 			for (int j = 0; j < siteCount; j++) {
-				out.append(taxaNames.get(i) + j + "\t");
+				out.print(taxaNames.get(i));
+				out.print(j);
+				out.print('\t');
 			}
 		}
 	}
 
 	@Override
 	public void log(long sample, PrintStream out) {
+		if (writer != null) {
+			// edits of the last proposal are only passed on by the next store()
+			writer.editsAccepted(alignment.getEditJournal());
+			try {
+				writer.write(sample, alignment.getStorage());
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not write to " + binaryFileInput.get(), e);
+			}
+			return;
+		}
+		if (asyncWriter != null) {
+			try {
+				asyncWriter.write(sample, alignment.getStorage());
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not write to " + sequenceFileInput.get(), e);
+			}
+			return;
+		}
+
 		int siteCount = alignment.getSiteCount();
 		int taxonCount = alignment.getTaxonCount();
-		
+
 		for (int i = 0; i < taxonCount; i++) {
 			for (int j = 0; j < siteCount; j++) {
-				out.append(alignment.getPattern(i, j) + "\t");
+				out.print(alignment.getSiteValue(i, j));
+				out.print('\t');
 			}
 		}
 	}
 
 	@Override
 	public void close(PrintStream out) {
+		if (writer != null) {
+			alignment.removeEditListener(writer);
+			try {
+				writer.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not close " + binaryFileInput.get(), e);
+			}
+			writer = null;
+		}
+		if (asyncWriter != null) {
+			try {
+				asyncWriter.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not close " + sequenceFileInput.get(), e);
+			}
+			asyncWriter = null;
+		}
 	}
 
 }
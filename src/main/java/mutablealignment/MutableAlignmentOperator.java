@@ -1,5 +1,8 @@
 package mutablealignment;
 
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.inference.Operator;
@@ -12,6 +15,12 @@ public class MutableAlignmentOperator extends Operator {
     private int numStates;
     private int numSites;
     private int numTaxa;
+    // sites with characters that can change, or null if all can
+    private int[] mutableSites;
+    // taxon and site of each character that can change if only some characters
+    // at mutable sites can, null otherwise
+    private int[] mutableTaxa;
+    private int[] mutableCharacterSites;
 
     public MutableAlignmentOperator() {}
 
@@ -22,13 +31,57 @@ public class MutableAlignmentOperator extends Operator {
         numStates = mutableAlignment.getDataType().getStateCount();
         numSites = mutableAlignment.getSiteCount();
         numTaxa = mutableAlignment.getTaxonCount();
+        mutableSites = null;
+        mutableTaxa = null;
+        mutableCharacterSites = null;
+        if (!mutableAlignment.hasMutabilityMask()) {
+            return;
+        }
+        if (!mutableAlignment.hasCharacterMask()) {
+            // every taxon can change at a mutable site, so pick a site first, then a taxon
+            mutableSites = IntStream.range(0, numSites).filter(mutableAlignment::isMutableSite).toArray();
+            if (mutableSites.length == 0) {
+                throw new IllegalArgumentException("None of the characters of " + mutableAlignment.getID() + " can change");
+            }
+            return;
+        }
+        int count = 0;
+        int[] taxa = new int[16];
+        int[] sites = new int[16];
+        for (int site = 0; site < numSites; site++) {
+            if (!mutableAlignment.isMutableSite(site)) {
+                continue;
+            }
+            for (int taxon = 0; taxon < numTaxa; taxon++) {
+                if (mutableAlignment.isMutable(taxon, site)) {
+                    if (count == taxa.length) {
+                        taxa = Arrays.copyOf(taxa, count * 2);
+                        sites = Arrays.copyOf(sites, count * 2);
+                    }
+                    taxa[count] = taxon;
+                    sites[count++] = site;
+                }
+            }
+        }
+        if (count == 0) {
+            throw new IllegalArgumentException("None of the characters of " + mutableAlignment.getID() + " can change");
+        }
+        mutableTaxa = Arrays.copyOf(taxa, count);
+        mutableCharacterSites = Arrays.copyOf(sites, count);
     }
 
 
     @Override
     public double proposal() {
-        int taxa = Randomizer.nextInt(numTaxa);
-        int site = Randomizer.nextInt(numSites);
+        int taxa, site;
+        if (mutableTaxa != null) {
+            int k = Randomizer.nextInt(mutableTaxa.length);
+            taxa = mutableTaxa[k];
+            site = mutableCharacterSites[k];
+        } else {
+            site = mutableSites != null ? mutableSites[Randomizer.nextInt(mutableSites.length)] : Randomizer.nextInt(numSites);
+            taxa = Randomizer.nextInt(numTaxa);
+        }
         int oldState = mutableAlignment.getSiteValue(taxa, site);
         int newState;
         do {
@@ -0,0 +1,217 @@
+package mutablealignment;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Site storage that keeps the characters outside the Java heap in a MemorySegment,
+ * one byte per character (two or four bytes for data types with many codes),
+ * laid out site-major like Alignment.sitePatterns.
+ *
+ * The segment can either be allocated in native memory, or be a mapping of a file.
+ * A mapped file starts with a small header (see HEADER_SIZE) followed by the cells.
+ * Edits are written straight into the mapping, so the file always reflects the
+ * current state of the alignment, and opening a large file does not require
+ * reading it into memory first. The header records a checksum of the data the
+ * file was created from, so a file left by a run on other data is not used.
+ *
+ * Memory is released when the storage becomes unreachable.
+ **/
+public class OffHeapSiteStorage implements SiteStorage {
+	/** 'MALN' **/
+	public final static int MAGIC = 0x4D414C4E;
+	public final static int VERSION = 2;
+	/** magic, version, taxon count, site count, bytes per cell, unused int, checksum of the data (long) **/
+	public final static long HEADER_SIZE = 32;
+
+	private final int taxonCount;
+	private final int siteCount;
+	private final int cellBytes;
+	private final int maxCode;
+	private final MemorySegment cells;
+	private final boolean isMapped;
+	private final boolean isInitialised;
+
+	/**
+	 * Allocate native memory for the matrix
+	 * @param maxCode largest code that needs to be stored
+	 */
+	public OffHeapSiteStorage(int taxonCount, int siteCount, int maxCode) {
+		this.taxonCount = taxonCount;
+		this.siteCount = siteCount;
+		this.cellBytes = cellBytesFor(maxCode);
+		this.maxCode = maxCodeFor(cellBytes);
+		cells = Arena.ofAuto().allocate((long) taxonCount * siteCount * cellBytes, cellBytes);
+		isMapped = false;
+		isInitialised = false;
+	}
+
+	/**
+	 * Map the matrix to file. If the file exists, it should have been created
+	 * by this class for an alignment of the same dimensions and checksum, and its
+	 * content is used as is. Otherwise, a new file is created with all cells set to 0.
+	 * @param maxCode largest code that needs to be stored
+	 * @param checksum identifies the data the matrix is created from
+	 * @throws IOException if the file is not a matrix file, or was created for other data
+	 */
+	public OffHeapSiteStorage(int taxonCount, int siteCount, int maxCode, long checksum, File file) throws IOException {
+		this.taxonCount = taxonCount;
+		this.siteCount = siteCount;
+		boolean exists = file.exists() && file.length() > 0;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			if (exists) {
+				MemorySegment header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE, Arena.ofAuto());
+				if (header.get(ValueLayout.JAVA_INT, 0) != MAGIC) {
+					throw new IOException("File " + file.getPath() + " is not an alignment matrix file");
+				}
+				if (header.get(ValueLayout.JAVA_INT, 4) != VERSION) {
+					throw new IOException("File " + file.getPath() + " has version " + header.get(ValueLayout.JAVA_INT, 4)
+						+ " of the matrix format, but expected version " + VERSION + "; remove it to start from the data");
+				}
+				if (header.get(ValueLayout.JAVA_INT, 8) != taxonCount || header.get(ValueLayout.JAVA_INT, 12) != siteCount) {
+					throw new IOException("File " + file.getPath() + " contains a matrix of " +
+						header.get(ValueLayout.JAVA_INT, 8) + " taxa x " + header.get(ValueLayout.JAVA_INT, 12) + " sites" +
+						" but expected " + taxonCount + " taxa x " + siteCount + " sites");
+				}
+				if (header.get(ValueLayout.JAVA_LONG_UNALIGNED, 24) != checksum) {
+					throw new IOException("File " + file.getPath() + " was created for other data; "
+						+ "remove it to start from the data, or use another file");
+				}
+				this.cellBytes = header.get(ValueLayout.JAVA_INT, 16);
+				if (maxCode > maxCodeFor(cellBytes)) {
+					throw new IOException("File " + file.getPath() + " uses " + cellBytes + " bytes per character, which cannot hold code " + maxCode);
+				}
+			} else {
+				this.cellBytes = cellBytesFor(maxCode);
+			}
+			this.maxCode = maxCodeFor(cellBytes);
+			long size = HEADER_SIZE + (long) taxonCount * siteCount * cellBytes;
+			MemorySegment segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size, Arena.ofAuto());
+			if (!exists) {
+				segment.set(ValueLayout.JAVA_INT, 0, MAGIC);
+				segment.set(ValueLayout.JAVA_INT, 4, VERSION);
+				segment.set(ValueLayout.JAVA_INT, 8, taxonCount);
+				segment.set(ValueLayout.JAVA_INT, 12, siteCount);
+				segment.set(ValueLayout.JAVA_INT, 16, cellBytes);
+				segment.set(ValueLayout.JAVA_LONG_UNALIGNED, 24, checksum);
+			}
+			cells = segment.asSlice(HEADER_SIZE);
+		}
+		isMapped = true;
+		isInitialised = exists;
+	}
+
+	/** true if the matrix was mapped from an existing file, so the content should not be overwritten **/
+	public boolean isInitialised() {
+		return isInitialised;
+	}
+
+	/** flush changes to a mapped file to disk **/
+	public void force() {
+		if (isMapped) {
+			cells.force();
+		}
+	}
+
+	@Override
+	public int getTaxonCount() {
+		return taxonCount;
+	}
+
+	@Override
+	public int getSiteCount() {
+		return siteCount;
+	}
+
+	@Override
+	public int getSiteValue(int taxonNr, int siteNr) {
+		return get((long) siteNr * taxonCount + taxonNr);
+	}
+
+	@Override
+	public void setSiteValue(int taxonNr, int siteNr, int value) {
+		set((long) siteNr * taxonCount + taxonNr, value);
+	}
+
+	@Override
+	public void getSiteValuesBySite(int siteNr, int[] dest) {
+		long index = (long) siteNr * taxonCount;
+		for (int i = 0; i < taxonCount; i++) {
+			dest[i] = get(index + i);
+		}
+	}
+
+	@Override
+	public void setSiteValuesBySite(int siteNr, int[] values) {
+		long index = (long) siteNr * taxonCount;
+		for (int i = 0; i < taxonCount; i++) {
+			set(index + i, values[i]);
+		}
+	}
+
+	@Override
+	public void getSiteValuesByTaxon(int taxonNr, int[] dest) {
+		long index = taxonNr;
+		for (int i = 0; i < siteCount; i++) {
+			dest[i] = get(index);
+			index += taxonCount;
+		}
+	}
+
+	@Override
+	public void setSiteValuesByTaxon(int taxonNr, int[] values) {
+		long index = taxonNr;
+		for (int i = 0; i < siteCount; i++) {
+			set(index, values[i]);
+			index += taxonCount;
+		}
+	}
+
+	/** off-heap bytes used by the matrix; the heap only holds this object **/
+	@Override
+	public long getMemoryFootprint() {
+		return cells.byteSize();
+	}
+
+	private int get(long index) {
+		switch (cellBytes) {
+		case 1: return Byte.toUnsignedInt(cells.get(ValueLayout.JAVA_BYTE, index));
+		case 2: return Short.toUnsignedInt(cells.getAtIndex(ValueLayout.JAVA_SHORT_UNALIGNED, index));
+		default: return cells.getAtIndex(ValueLayout.JAVA_INT_UNALIGNED, index);
+		}
+	}
+
+	private void set(long index, int value) {
+		if (value < 0 || value > maxCode) {
+			throw new IllegalArgumentException("Cannot store code " + value + " in " + cellBytes + " byte(s)");
+		}
+		switch (cellBytes) {
+		case 1: cells.set(ValueLayout.JAVA_BYTE, index, (byte) value); break;
+		case 2: cells.setAtIndex(ValueLayout.JAVA_SHORT_UNALIGNED, index, (short) value); break;
+		default: cells.setAtIndex(ValueLayout.JAVA_INT_UNALIGNED, index, value);
+		}
+	}
+
+	static int cellBytesFor(int maxCode) {
+		if (maxCode < 256) {
+			return 1;
+		}
+		if (maxCode < 65536) {
+			return 2;
+		}
+		return 4;
+	}
+
+	static int maxCodeFor(int cellBytes) {
+		switch (cellBytes) {
+		case 1: return 255;
+		case 2: return 65535;
+		default: return Integer.MAX_VALUE;
+		}
+	}
+}
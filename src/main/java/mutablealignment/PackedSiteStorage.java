@@ -0,0 +1,233 @@
+package mutablealignment;
+
+import java.util.Arrays;
+
+/**
+ * Site storage that packs characters into longs, site-major, using as few bits
+ * per character as the data requires.
+ *
+ * Data type codes are mapped onto a dense dictionary of symbols first, so the
+ * width depends on the number of distinct codes rather than on the largest code:
+ * nucleotides with gaps and a handful of ambiguity codes fit in 4 bits or less,
+ * amino acids in 5 bits and anything up to 256 codes in a byte. A character is
+ * never split over two longs, so with 5 bits only 60 bits of each long are used.
+ * When a code is set that does not fit in the current width, the matrix is
+ * repacked at a larger width.
+ **/
+public class PackedSiteStorage implements SiteStorage {
+	private final static int MAX_BITS = 16;
+
+	private final int taxonCount;
+	private final int siteCount;
+
+	private int bitsPerValue;
+	private int valuesPerWord;
+	private int wordsPerSite;
+	private long mask;
+	private long [] words;
+
+	// code -> symbol, -1 if the code is not in the dictionary yet
+	private int [] codeToSymbol;
+	// symbol -> code
+	private int [] symbolToCode;
+	private int symbolCount;
+
+	/**
+	 * @param stateCount number of states of the data type; codes 0...stateCount-1
+	 * are added to the dictionary up front, so setting unambiguous states never
+	 * leads to repacking
+	 * @param codes other codes expected to occur, e.g. those in the initial data
+	 */
+	public PackedSiteStorage(int taxonCount, int siteCount, int stateCount, int... codes) {
+		this.taxonCount = taxonCount;
+		this.siteCount = siteCount;
+		codeToSymbol = new int[Math.max(stateCount, 1)];
+		Arrays.fill(codeToSymbol, -1);
+		symbolToCode = new int[2];
+		for (int code = 0; code < stateCount; code++) {
+			addSymbol(code);
+		}
+		for (int code : codes) {
+			if (symbolOf(code) < 0) {
+				addSymbol(code);
+			}
+		}
+		// symbol 0 is the code all characters start with
+		if (symbolCount == 0) {
+			addSymbol(0);
+		}
+		setWidth(bitsFor(symbolCount));
+		words = new long[siteCount * wordsPerSite];
+	}
+
+	/** number of bits used per character **/
+	public int getBitsPerValue() {
+		return bitsPerValue;
+	}
+
+	@Override
+	public int getTaxonCount() {
+		return taxonCount;
+	}
+
+	@Override
+	public int getSiteCount() {
+		return siteCount;
+	}
+
+	@Override
+	public int getSiteValue(int taxonNr, int siteNr) {
+		long word = words[siteNr * wordsPerSite + taxonNr / valuesPerWord];
+		int shift = (taxonNr % valuesPerWord) * bitsPerValue;
+		return symbolToCode[(int) ((word >>> shift) & mask)];
+	}
+
+	@Override
+	public void setSiteValue(int taxonNr, int siteNr, int value) {
+		long symbol = symbolFor(value);
+		int index = siteNr * wordsPerSite + taxonNr / valuesPerWord;
+		int shift = (taxonNr % valuesPerWord) * bitsPerValue;
+		words[index] = (words[index] & ~(mask << shift)) | (symbol << shift);
+	}
+
+	@Override
+	public void getSiteValuesBySite(int siteNr, int[] dest) {
+		int index = siteNr * wordsPerSite;
+		int taxonNr = 0;
+		while (taxonNr < taxonCount) {
+			long word = words[index++];
+			int end = Math.min(taxonNr + valuesPerWord, taxonCount);
+			while (taxonNr < end) {
+				dest[taxonNr++] = symbolToCode[(int) (word & mask)];
+				word >>>= bitsPerValue;
+			}
+		}
+	}
+
+	@Override
+	public void setSiteValuesBySite(int siteNr, int[] values) {
+		// make sure the width does not change half way through the site
+		for (int i = 0; i < taxonCount; i++) {
+			symbolFor(values[i]);
+		}
+		int index = siteNr * wordsPerSite;
+		int taxonNr = 0;
+		while (taxonNr < taxonCount) {
+			int end = Math.min(taxonNr + valuesPerWord, taxonCount);
+			long word = 0;
+			for (int i = end - 1; i >= taxonNr; i--) {
+				word = (word << bitsPerValue) | codeToSymbol[values[i]];
+			}
+			words[index++] = word;
+			taxonNr = end;
+		}
+	}
+
+	@Override
+	public void getSiteValuesByTaxon(int taxonNr, int[] dest) {
+		int index = taxonNr / valuesPerWord;
+		int shift = (taxonNr % valuesPerWord) * bitsPerValue;
+		for (int i = 0; i < siteCount; i++) {
+			dest[i] = symbolToCode[(int) ((words[index] >>> shift) & mask)];
+			index += wordsPerSite;
+		}
+	}
+
+	@Override
+	public void setSiteValuesByTaxon(int taxonNr, int[] values) {
+		for (int i = 0; i < siteCount; i++) {
+			symbolFor(values[i]);
+		}
+		int index = taxonNr / valuesPerWord;
+		int shift = (taxonNr % valuesPerWord) * bitsPerValue;
+		long clear = ~(mask << shift);
+		for (int i = 0; i < siteCount; i++) {
+			words[index] = (words[index] & clear) | ((long) codeToSymbol[values[i]] << shift);
+			index += wordsPerSite;
+		}
+	}
+
+	@Override
+	public long getMemoryFootprint() {
+		return IntArraySiteStorage.align(16L + 8L * words.length)
+				+ IntArraySiteStorage.align(16L + 4L * codeToSymbol.length)
+				+ IntArraySiteStorage.align(16L + 4L * symbolToCode.length);
+	}
+
+	/**
+	 * Estimate of heap use of the packed matrix for a given number of bits per character
+	 */
+	public static long estimateMemoryFootprint(int taxonCount, int siteCount, int bitsPerValue) {
+		int valuesPerWord = 64 / bitsPerValue;
+		long wordsPerSite = (taxonCount + valuesPerWord - 1) / valuesPerWord;
+		return IntArraySiteStorage.align(16L + 8L * wordsPerSite * siteCount);
+	}
+
+	private int symbolOf(int code) {
+		return code >= 0 && code < codeToSymbol.length ? codeToSymbol[code] : -1;
+	}
+
+	/** returns symbol for code, adding it to the dictionary and repacking if required **/
+	private int symbolFor(int code) {
+		int symbol = symbolOf(code);
+		if (symbol >= 0) {
+			return symbol;
+		}
+		if (code < 0) {
+			throw new IllegalArgumentException("Cannot store negative code " + code);
+		}
+		symbol = addSymbol(code);
+		if (symbolCount > (1 << bitsPerValue)) {
+			repack(bitsFor(symbolCount));
+		}
+		return symbol;
+	}
+
+	private int addSymbol(int code) {
+		if (code >= codeToSymbol.length) {
+			int oldLength = codeToSymbol.length;
+			codeToSymbol = Arrays.copyOf(codeToSymbol, Math.max(code + 1, oldLength * 2));
+			Arrays.fill(codeToSymbol, oldLength, codeToSymbol.length, -1);
+		}
+		if (symbolCount == symbolToCode.length) {
+			symbolToCode = Arrays.copyOf(symbolToCode, symbolCount * 2);
+		}
+		codeToSymbol[code] = symbolCount;
+		symbolToCode[symbolCount] = code;
+		return symbolCount++;
+	}
+
+	private void setWidth(int bits) {
+		if (bits > MAX_BITS) {
+			throw new IllegalArgumentException("Too many distinct codes (" + symbolCount + ") for packed storage");
+		}
+		bitsPerValue = bits;
+		valuesPerWord = 64 / bits;
+		wordsPerSite = (taxonCount + valuesPerWord - 1) / valuesPerWord;
+		mask = (1L << bits) - 1;
+	}
+
+	private void repack(int bits) {
+		int oldBits = bitsPerValue, oldValuesPerWord = valuesPerWord, oldWordsPerSite = wordsPerSite;
+		long oldMask = mask;
+		long [] oldWords = words;
+		setWidth(bits);
+		words = new long[siteCount * wordsPerSite];
+		for (int siteNr = 0; siteNr < siteCount; siteNr++) {
+			for (int taxonNr = 0; taxonNr < taxonCount; taxonNr++) {
+				long word = oldWords[siteNr * oldWordsPerSite + taxonNr / oldValuesPerWord];
+				long symbol = (word >>> ((taxonNr % oldValuesPerWord) * oldBits)) & oldMask;
+				int index = siteNr * wordsPerSite + taxonNr / valuesPerWord;
+				words[index] |= symbol << ((taxonNr % valuesPerWord) * bitsPerValue);
+			}
+		}
+	}
+
+	private static int bitsFor(int symbolCount) {
+		int bits = 1;
+		while ((1 << bits) < symbolCount) {
+			bits++;
+		}
+		return bits;
+	}
+}
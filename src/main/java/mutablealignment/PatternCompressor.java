@@ -0,0 +1,439 @@
+package mutablealignment;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Keeps sites of a MutableAlignment compressed into patterns while the alignment changes.
+ *
+ * Patterns live in a fixed number of slots, so that likelihoods can size their
+ * buffers once. When an edit needs more slots than are free, the slots grow, and
+ * the pattern count of the alignment changes with them. A slot is either in use, with weight equal to the (weighted) number
+ * of sites referring to it, or free, with weight zero. An open addressing hash
+ * table maps columns to slots in use. When a site changes, it moves from its old
+ * slot to the slot with the new column, which is taken from the free slots if the
+ * column is new; a slot that loses its last site is retired.
+ *
+ * Moves are journaled, so they can be rolled back by undo(). Slots retired during
+ * a proposal are only reused after commit(), so their content is still there when
+ * a move is rolled back. Edits call reserve() before changing anything, so that
+ * slots grow between edits rather than halfway through one.
+ **/
+public class PatternCompressor {
+	private final static int MOVE_ALLOCATED = 1;
+	private final static int MOVE_RETIRED = 2;
+
+	private final int taxonCount;
+	private final int siteCount;
+	private int capacity;
+
+	// #slots x #taxa, shared with Alignment.sitePatterns
+	private int [][] patterns;
+	// shared with Alignment.patternIndex and Alignment.patternWeight
+	private final int [] patternIndex;
+	private int [] patternWeight;
+	private final int [] siteWeights;
+	private int [] refCount;
+
+	// hash table of slot+1 for slots in use, 0 for empty entries
+	private int [] table;
+	private int mask;
+	private int [] slotHash;
+
+	// free slots, used as a stack
+	private int [] freeSlots;
+	private int freeCount;
+	// slots retired since the last commit
+	private int [] retiredSlots;
+	private int retiredCount;
+
+	// journal of moves, with previous content of allocated slots in pool
+	private int moveCount;
+	private int [] moveSite = new int[16];
+	private int [] moveFrom = new int[16];
+	private int [] moveTo = new int[16];
+	private int [] moveFlags = new int[16];
+	private int [] pool = new int[16];
+	private int poolSize;
+
+	// hashes of new columns counted by reserve(), as an open addressing set with 0 for empty entries
+	private long [] newColumns = new long[16];
+	private int newColumnCount;
+	private final int [] columnBuffer;
+
+	// slots that changed content or weight since the last commit/undo
+	private final BitSet dirtyPatterns;
+	// taxa that differ between old and new content of allocated slots, shared with MutableAlignment
+	private final BitSet dirtyTaxa;
+
+	/**
+	 * @param siteWeights weights of sites, or null if all sites have weight 1
+	 * @param dirtyTaxa set of dirty taxa to be updated when slots get new content
+	 */
+	public PatternCompressor(int taxonCount, int siteCount, int capacity, int [] siteWeights, BitSet dirtyTaxa) {
+		this.taxonCount = taxonCount;
+		this.siteCount = siteCount;
+		this.capacity = capacity;
+		this.siteWeights = siteWeights;
+		this.dirtyTaxa = dirtyTaxa;
+		patterns = new int[capacity][taxonCount];
+		patternIndex = new int[siteCount];
+		patternWeight = new int[capacity];
+		refCount = new int[capacity];
+		int tableSize = Integer.highestOneBit(Math.max(2 * capacity - 1, 1)) << 1;
+		table = new int[tableSize];
+		mask = tableSize - 1;
+		slotHash = new int[capacity];
+		freeSlots = new int[capacity];
+		retiredSlots = new int[capacity];
+		dirtyPatterns = new BitSet(capacity);
+		columnBuffer = new int[taxonCount];
+	}
+
+	/** number of distinct columns in storage **/
+	public static int countPatterns(SiteStorage storage) {
+		PatternCompressor compressor = new PatternCompressor(storage.getTaxonCount(), storage.getSiteCount(), storage.getSiteCount(), null, new BitSet());
+		compressor.init(storage);
+		return compressor.getPatternsInUse();
+	}
+
+	/** compress all sites in storage, discarding any previous state **/
+	public void init(SiteStorage storage) {
+		Arrays.fill(table, 0);
+		Arrays.fill(refCount, 0);
+		Arrays.fill(patternWeight, 0);
+		freeCount = 0;
+		for (int i = capacity - 1; i >= 0; i--) {
+			freeSlots[freeCount++] = i;
+		}
+		retiredCount = 0;
+		moveCount = 0;
+		poolSize = 0;
+
+		for (int siteNr = 0; siteNr < siteCount; siteNr++) {
+			storage.getSiteValuesBySite(siteNr, columnBuffer);
+			int hash = hash(columnBuffer);
+			int slot = find(columnBuffer, hash);
+			if (slot < 0) {
+				slot = allocate();
+				System.arraycopy(columnBuffer, 0, patterns[slot], 0, taxonCount);
+				slotHash[slot] = hash;
+				insert(slot);
+			}
+			patternIndex[siteNr] = slot;
+			refCount[slot]++;
+			patternWeight[slot] += siteWeight(siteNr);
+		}
+		// free slots get a valid column, so likelihoods can evaluate them
+		for (int i = 0; i < freeCount; i++) {
+			System.arraycopy(patterns[patternIndex[0]], 0, patterns[freeSlots[i]], 0, taxonCount);
+		}
+		dirtyPatterns.clear();
+	}
+
+	public int [][] getPatterns() {
+		return patterns;
+	}
+
+	public int [] getPatternIndex() {
+		return patternIndex;
+	}
+
+	public int [] getPatternWeight() {
+		return patternWeight;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getPatternsInUse() {
+		return capacity - freeCount - retiredCount;
+	}
+
+	/** slots that changed content or weight since the last commit/undo **/
+	public BitSet getDirtyPatterns() {
+		return dirtyPatterns;
+	}
+
+	/**
+	 * Make sure column can be written without running out of slots
+	 * @return whether the slots grew
+	 */
+	public boolean reserve(int [] column) {
+		return ensureFree(find(column, hash(column)) < 0 ? 1 : 0);
+	}
+
+	/**
+	 * Make sure the characters of taxon can be set to newValues without running out of slots
+	 * @return whether the slots grew
+	 */
+	public boolean reserveForTaxon(int taxonNr, int [] newValues) {
+		clearNewColumns();
+		for (int siteNr = 0; siteNr < siteCount; siteNr++) {
+			int [] pattern = patterns[patternIndex[siteNr]];
+			if (pattern[taxonNr] != newValues[siteNr]) {
+				System.arraycopy(pattern, 0, columnBuffer, 0, taxonCount);
+				columnBuffer[taxonNr] = newValues[siteNr];
+				countNewColumn(columnBuffer);
+			}
+		}
+		return ensureFree(newColumnCount);
+	}
+
+	/**
+	 * Make sure all sites can be set to newValues, indexed by site, without running out of slots
+	 * @return whether the slots grew
+	 */
+	public boolean reserveAll(int [][] newValues) {
+		clearNewColumns();
+		for (int siteNr = 0; siteNr < siteCount; siteNr++) {
+			countNewColumn(newValues[siteNr]);
+		}
+		return ensureFree(newColumnCount);
+	}
+
+	/**
+	 * Move site to the pattern with the given column, creating the pattern if required.
+	 * Slots grow if all are in use, so reserve() should have been called first.
+	 */
+	public void updateSite(int siteNr, int [] column) {
+		int from = patternIndex[siteNr];
+		int hash = hash(column);
+		int to = find(column, hash);
+		if (to == from) {
+			return;
+		}
+		int flags = 0;
+		if (to < 0) {
+			to = allocate();
+			ensurePoolCapacity(poolSize + taxonCount);
+			int [] pattern = patterns[to];
+			System.arraycopy(pattern, 0, pool, poolSize, taxonCount);
+			poolSize += taxonCount;
+			for (int i = 0; i < taxonCount; i++) {
+				if (pattern[i] != column[i]) {
+					pattern[i] = column[i];
+					dirtyTaxa.set(i);
+				}
+			}
+			slotHash[to] = hash;
+			insert(to);
+			flags |= MOVE_ALLOCATED;
+		}
+
+		int weight = siteWeight(siteNr);
+		refCount[from]--;
+		patternWeight[from] -= weight;
+		refCount[to]++;
+		patternWeight[to] += weight;
+		patternIndex[siteNr] = to;
+		if (refCount[from] == 0) {
+			remove(from);
+			retiredSlots[retiredCount++] = from;
+			flags |= MOVE_RETIRED;
+		}
+		dirtyPatterns.set(from);
+		dirtyPatterns.set(to);
+		addMove(siteNr, from, to, flags);
+	}
+
+	/** roll back all moves since the last commit **/
+	public void undo() {
+		for (int m = moveCount - 1; m >= 0; m--) {
+			int siteNr = moveSite[m], from = moveFrom[m], to = moveTo[m], flags = moveFlags[m];
+			if ((flags & MOVE_RETIRED) != 0) {
+				retiredCount--;
+				insert(from);
+			}
+			int weight = siteWeight(siteNr);
+			refCount[to]--;
+			patternWeight[to] -= weight;
+			refCount[from]++;
+			patternWeight[from] += weight;
+			patternIndex[siteNr] = from;
+			if ((flags & MOVE_ALLOCATED) != 0) {
+				remove(to);
+				poolSize -= taxonCount;
+				System.arraycopy(pool, poolSize, patterns[to], 0, taxonCount);
+				freeSlots[freeCount++] = to;
+			}
+		}
+		moveCount = 0;
+		poolSize = 0;
+		dirtyPatterns.clear();
+	}
+
+	/** keep all moves since the last commit, and make retired slots available again **/
+	public void commit() {
+		for (int i = 0; i < retiredCount; i++) {
+			freeSlots[freeCount++] = retiredSlots[i];
+		}
+		retiredCount = 0;
+		moveCount = 0;
+		poolSize = 0;
+		dirtyPatterns.clear();
+	}
+
+	private int siteWeight(int siteNr) {
+		return siteWeights == null ? 1 : siteWeights[siteNr];
+	}
+
+	private int allocate() {
+		// reserve() tells distinct new columns apart by hash only, and a column
+		// retired earlier in the proposal may come back, so this can still happen
+		ensureFree(1);
+		return freeSlots[--freeCount];
+	}
+
+	/** @return whether the slots grew **/
+	private boolean ensureFree(int count) {
+		if (freeCount >= count) {
+			return false;
+		}
+		grow(capacity + Math.max(count - freeCount, capacity / 2));
+		return true;
+	}
+
+	/** add slots, which become free slots with a valid column **/
+	private void grow(int newCapacity) {
+		int oldCapacity = capacity;
+		capacity = newCapacity;
+		patterns = Arrays.copyOf(patterns, capacity);
+		for (int i = oldCapacity; i < capacity; i++) {
+			patterns[i] = patterns[patternIndex[0]].clone();
+		}
+		patternWeight = Arrays.copyOf(patternWeight, capacity);
+		refCount = Arrays.copyOf(refCount, capacity);
+		slotHash = Arrays.copyOf(slotHash, capacity);
+		retiredSlots = Arrays.copyOf(retiredSlots, capacity);
+		freeSlots = Arrays.copyOf(freeSlots, capacity);
+		for (int i = capacity - 1; i >= oldCapacity; i--) {
+			freeSlots[freeCount++] = i;
+		}
+
+		int tableSize = Integer.highestOneBit(2 * capacity - 1) << 1;
+		table = new int[tableSize];
+		mask = tableSize - 1;
+		for (int slot = 0; slot < oldCapacity; slot++) {
+			if (refCount[slot] > 0) {
+				insert(slot);
+			}
+		}
+	}
+
+	private void clearNewColumns() {
+		if (newColumnCount > 0) {
+			Arrays.fill(newColumns, 0);
+			newColumnCount = 0;
+		}
+	}
+
+	/** count column if it is not in use and was not counted before **/
+	private void countNewColumn(int [] column) {
+		int hash = hash(column);
+		if (find(column, hash) >= 0) {
+			return;
+		}
+		if (2 * (newColumnCount + 1) > newColumns.length) {
+			long [] old = newColumns;
+			newColumns = new long[old.length * 2];
+			for (long key : old) {
+				if (key != 0) {
+					addNewColumn(key);
+				}
+			}
+		}
+		if (addNewColumn((hash & 0xffffffffL) | (1L << 32))) {
+			newColumnCount++;
+		}
+	}
+
+	/** @return whether key was not in newColumns yet **/
+	private boolean addNewColumn(long key) {
+		int m = newColumns.length - 1;
+		int i = (int) key & m;
+		while (newColumns[i] != 0) {
+			if (newColumns[i] == key) {
+				return false;
+			}
+			i = (i + 1) & m;
+		}
+		newColumns[i] = key;
+		return true;
+	}
+
+	private int hash(int [] column) {
+		int h = 1;
+		for (int i = 0; i < taxonCount; i++) {
+			h = 31 * h + column[i];
+		}
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/** slot in use with given column, or -1 if there is none **/
+	private int find(int [] column, int hash) {
+		int i = hash & mask;
+		while (table[i] != 0) {
+			int slot = table[i] - 1;
+			if (slotHash[slot] == hash && Arrays.equals(patterns[slot], column)) {
+				return slot;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void insert(int slot) {
+		int i = slotHash[slot] & mask;
+		while (table[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		table[i] = slot + 1;
+	}
+
+	/** remove slot from table, shifting back entries in the same probe sequence **/
+	private void remove(int slot) {
+		int i = slotHash[slot] & mask;
+		while (table[i] != slot + 1) {
+			i = (i + 1) & mask;
+		}
+		table[i] = 0;
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (table[j] == 0) {
+				return;
+			}
+			int k = slotHash[table[j] - 1] & mask;
+			// move entry at j to the gap at i, unless its home k lies cyclically in (i, j]
+			if ((j > i && (k <= i || k > j)) || (j < i && k <= i && k > j)) {
+				table[i] = table[j];
+				table[j] = 0;
+				i = j;
+			}
+		}
+	}
+
+	private void addMove(int siteNr, int from, int to, int flags) {
+		if (moveCount == moveSite.length) {
+			int n = moveCount * 2;
+			moveSite = Arrays.copyOf(moveSite, n);
+			moveFrom = Arrays.copyOf(moveFrom, n);
+			moveTo = Arrays.copyOf(moveTo, n);
+			moveFlags = Arrays.copyOf(moveFlags, n);
+		}
+		moveSite[moveCount] = siteNr;
+		moveFrom[moveCount] = from;
+		moveTo[moveCount] = to;
+		moveFlags[moveCount] = flags;
+		moveCount++;
+	}
+
+	private void ensurePoolCapacity(int size) {
+		if (size > pool.length) {
+			pool = Arrays.copyOf(pool, Math.max(size, pool.length * 2));
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package mutablealignment;
+
+import java.util.Arrays;
+
+/**
+ * Arithmetic for pre-order partials, shared by MALikelihoodCore and BeagleMATreeLikelihood.
+ *
+ * The pre-order partial of a node for a state is the probability of all data
+ * outside the subtree below the node given that state, including the root
+ * frequencies. Partials are laid out as in BEAGLE and BeerLikelihoodCore:
+ * (category * patternCount + pattern) * stateCount + state, and matrices as
+ * category * stateCount * stateCount + parentState * stateCount + childState.
+ * A child is given either by its states (codes of stateCount or more count
+ * as missing data) or by its partials. Callers pass a scratch array above of
+ * length stateCount, so that repeated calls do not allocate.
+ **/
+final class PreOrderPartials {
+
+	private PreOrderPartials() {
+	}
+
+	/** pre-order partials of the root are the root frequencies, for every category and pattern **/
+	static void setRoot(double [] frequencies, int stateCount, double [] rootPreOrder) {
+		for (int v = 0; v < rootPreOrder.length; v += stateCount) {
+			System.arraycopy(frequencies, 0, rootPreOrder, v, stateCount);
+		}
+	}
+
+	/** pre-order partials of a child from those of its parent, the data below its sibling and the matrices of both **/
+	static void calculateChild(double [] parentPreOrder, int [] siblingStates, double [] siblingPartials, double [] siblingMatrices,
+			double [] childMatrices, int categoryCount, int patternCount, int stateCount, double [] above, double [] childPreOrder) {
+		int matrixSize = stateCount * stateCount;
+		for (int l = 0; l < categoryCount; l++) {
+			int w = l * matrixSize;
+			for (int k = 0; k < patternCount; k++) {
+				int u = (l * patternCount + k) * stateCount;
+				parentAndSibling(parentPreOrder, siblingStates, siblingPartials, siblingMatrices, l, k, patternCount, stateCount, above);
+				for (int j = 0; j < stateCount; j++) {
+					double sum = 0;
+					for (int i = 0; i < stateCount; i++) {
+						sum += above[i] * childMatrices[w + i * stateCount + j];
+					}
+					childPreOrder[u + j] = sum;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Log likelihood of every pattern for every state of a tip, from the pre-order partials
+	 * of its parent, the data below its sibling and the matrices of both
+	 * @param outLogLikelihoods gets stateCount values per pattern
+	 */
+	static void calculateTipConditionals(double [] parentPreOrder, int [] siblingStates, double [] siblingPartials, double [] siblingMatrices,
+			double [] tipMatrices, double [] proportions, int categoryCount, int patternCount, int stateCount, double [] above,
+			double [] outLogLikelihoods) {
+		int matrixSize = stateCount * stateCount;
+		Arrays.fill(outLogLikelihoods, 0, patternCount * stateCount, 0.0);
+		for (int l = 0; l < categoryCount; l++) {
+			int w = l * matrixSize;
+			for (int k = 0; k < patternCount; k++) {
+				parentAndSibling(parentPreOrder, siblingStates, siblingPartials, siblingMatrices, l, k, patternCount, stateCount, above);
+				int v = k * stateCount;
+				for (int j = 0; j < stateCount; j++) {
+					double sum = 0;
+					for (int i = 0; i < stateCount; i++) {
+						sum += above[i] * tipMatrices[w + i * stateCount + j];
+					}
+					outLogLikelihoods[v + j] += proportions[l] * sum;
+				}
+			}
+		}
+		for (int v = 0; v < patternCount * stateCount; v++) {
+			outLogLikelihoods[v] = Math.log(outLogLikelihoods[v]);
+		}
+	}
+
+	/**
+	 * Pattern log likelihoods for a tip with the given codes, from its conditionals as
+	 * calculated by calculateTipConditionals. Ambiguous codes are treated as missing data,
+	 * as probes do.
+	 */
+	static void getCandidateLogLikelihoods(double [] conditionals, int [] codes, TipEncoder tipEncoder, int stateCount, double [] out) {
+		for (int k = 0; k < codes.length; k++) {
+			int state = tipEncoder.getState(codes[k]);
+			int v = k * stateCount;
+			if (state < stateCount) {
+				out[k] = conditionals[v + state];
+			} else {
+				double max = Double.NEGATIVE_INFINITY;
+				for (int j = 0; j < stateCount; j++) {
+					max = Math.max(max, conditionals[v + j]);
+				}
+				if (max == Double.NEGATIVE_INFINITY) {
+					out[k] = max;
+					continue;
+				}
+				double sum = 0;
+				for (int j = 0; j < stateCount; j++) {
+					sum += Math.exp(conditionals[v + j] - max);
+				}
+				out[k] = max + Math.log(sum);
+			}
+		}
+	}
+
+	/** per parent state: pre-order partial of parent times the contribution of the sibling's subtree **/
+	private static void parentAndSibling(double [] parentPreOrder, int [] siblingStates, double [] siblingPartials, double [] siblingMatrices,
+			int l, int k, int patternCount, int stateCount, double [] above) {
+		int u = (l * patternCount + k) * stateCount;
+		int w = l * stateCount * stateCount;
+		for (int i = 0; i < stateCount; i++) {
+			double below;
+			if (siblingStates != null) {
+				int state = siblingStates[k];
+				below = state < stateCount ? siblingMatrices[w + state] : 1.0;
+			} else {
+				below = 0;
+				for (int j = 0; j < stateCount; j++) {
+					below += siblingMatrices[w + j] * siblingPartials[u + j];
+				}
+			}
+			above[i] = parentPreOrder[u + i] * below;
+			w += stateCount;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package mutablealignment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.datatype.DataType;
+
+@Description("Read-only alignment on top of a site storage, such as a sample in an indexed alignment trace. "
+		+ "Every site is a pattern of its own, as for a mutable alignment that does not compress patterns.")
+public class ReadOnlyAlignment extends Alignment {
+	private final SiteStorage storage;
+
+	/**
+	 * @param taxaNames names of taxa in storage order
+	 * @param patternIndex site to pattern, which should be the identity and is not copied
+	 * @param patternWeight weight of patterns, which should all be 1 and is not copied
+	 */
+	ReadOnlyAlignment(SiteStorage storage, List<String> taxaNames, DataType dataType, int [] patternIndex, int [] patternWeight) {
+		this.storage = storage;
+		this.taxaNames.addAll(taxaNames);
+		m_dataType = dataType;
+		maxStateCount = dataType.getStateCount();
+		for (int i = 0; i < taxaNames.size(); i++) {
+			stateCounts.add(maxStateCount);
+		}
+		this.patternIndex = patternIndex;
+		this.patternWeight = patternWeight;
+	}
+
+	/** everything is set up by the constructor **/
+	@Override
+	public void initAndValidate() {
+	}
+
+	public SiteStorage getStorage() {
+		return storage;
+	}
+
+	public int getSiteValue(int taxonNr, int siteNr) {
+		return storage.getSiteValue(taxonNr, siteNr);
+	}
+
+	public int [] getSiteValuesByTaxon(int taxonNr) {
+		int [] values = new int[storage.getSiteCount()];
+		storage.getSiteValuesByTaxon(taxonNr, values);
+		return values;
+	}
+
+	public int [] getSiteValuesBySite(int siteNr) {
+		int [] values = new int[storage.getTaxonCount()];
+		storage.getSiteValuesBySite(siteNr, values);
+		return values;
+	}
+
+	/** characters per taxon, copied from the storage on every call **/
+	@Override
+	public List<List<Integer>> getCounts() {
+		List<List<Integer>> counts = new ArrayList<>();
+		int [] values = new int[storage.getSiteCount()];
+		for (int i = 0; i < storage.getTaxonCount(); i++) {
+			storage.getSiteValuesByTaxon(i, values);
+			List<Integer> sequence = new ArrayList<>(values.length);
+			for (int value : values) {
+				sequence.add(value);
+			}
+			counts.add(sequence);
+		}
+		return counts;
+	}
+
+	@Override
+	public int getPatternCount() {
+		return storage.getSiteCount();
+	}
+
+	/** a copy, since the characters are not on the heap **/
+	@Override
+	public int [] getPattern(int patternIndex) {
+		return getSiteValuesBySite(patternIndex);
+	}
+
+	@Override
+	public int getPattern(int taxonIndex, int patternIndex) {
+		return storage.getSiteValue(taxonIndex, patternIndex);
+	}
+}
@@ -0,0 +1,98 @@
+package mutablealignment;
+
+import java.util.Arrays;
+
+/**
+ * Tree likelihood that can calculate pattern log likelihoods for a tip with a
+ * tentative sequence, without changing the alignment or the stored state.
+ * Implemented by MATreeLikelihood (Java) and BeagleMATreeLikelihood (BEAGLE),
+ * so operators can use either.
+ **/
+public interface SequenceProbe {
+
+	/** number of the tree node of the taxon with index taxonNr in the alignment **/
+	public int getTreeNodeNr(int taxonNr);
+
+	/** true if tips are represented by partials, so probes should use getLogProbsForPartialsSequence() **/
+	public boolean usesTipPartials();
+
+	/**
+	 * pattern log likelihoods after setting sequence for node with given nodeNr
+	 * to states encoded in sites, with one code per pattern
+	 */
+	public double [] getLogProbsForStateSequence(int nodeNr, int [] sites);
+
+	/**
+	 * pattern log likelihoods after setting partials for node with given nodeNr
+	 * to tipLikelihoods, with stateCount values per pattern
+	 */
+	public double [] getLogProbsForPartialsSequence(int nodeNr, double [] tipLikelihoods);
+
+	/**
+	 * as getLogProbsForStateSequence(nodeNr, sites), but writes the pattern log likelihoods
+	 * into out, so that repeated probes do not allocate
+	 * @return out
+	 */
+	public double [] getLogProbsForStateSequence(int nodeNr, int [] sites, double [] out);
+
+	/**
+	 * as getLogProbsForPartialsSequence(nodeNr, tipLikelihoods), but writes the pattern log
+	 * likelihoods into out, so that repeated probes do not allocate
+	 * @return out
+	 */
+	public double [] getLogProbsForPartialsSequence(int nodeNr, double [] tipLikelihoods, double [] out);
+
+	/**
+	 * pattern log likelihoods for each of a number of candidate sequences for node with
+	 * given nodeNr, as getLogProbsForStateSequence(nodeNr, candidates[k], out[k]) would give,
+	 * but possibly more efficiently than probing the candidates one by one.
+	 */
+	public default void getLogProbsForStateSequences(int nodeNr, int [][] candidates, double [][] out) {
+		for (int k = 0; k < candidates.length; k++) {
+			getLogProbsForStateSequence(nodeNr, candidates[k], out[k]);
+		}
+	}
+
+	/**
+	 * Log likelihood of every pattern for every state of taxon taxonNr, keeping
+	 * the data of the other taxa as they are. By default, this probes the
+	 * likelihood once per state.
+	 * @param out gets stateCount values per pattern
+	 */
+	public default void getTipConditionalLogProbs(int taxonNr, int stateCount, double [] out) {
+		int patternCount = out.length / stateCount;
+		boolean usePartials = usesTipPartials();
+		getTipConditionalLogProbs(taxonNr, stateCount, out, usePartials ? null : new int[patternCount],
+				usePartials ? new double[patternCount * stateCount] : null, new double[patternCount]);
+	}
+
+	/**
+	 * as getTipConditionalLogProbs(taxonNr, stateCount, out), probing once per state
+	 * with scratch space from the caller, so that repeated calls do not allocate
+	 * @param states of length patternCount, only used if tips are states
+	 * @param partials of length patternCount * stateCount, only used if tips are partials
+	 * @param logProbs of length patternCount
+	 */
+	public default void getTipConditionalLogProbs(int taxonNr, int stateCount, double [] out,
+			int [] states, double [] partials, double [] logProbs) {
+		int nodeNr = getTreeNodeNr(taxonNr);
+		int patternCount = out.length / stateCount;
+		boolean usePartials = usesTipPartials();
+		for (int s = 0; s < stateCount; s++) {
+			if (usePartials) {
+				Arrays.fill(partials, 0.0);
+				for (int k = s; k < partials.length; k += stateCount) {
+					partials[k] = 1.0;
+				}
+				getLogProbsForPartialsSequence(nodeNr, partials, logProbs);
+			} else {
+				Arrays.fill(states, s);
+				getLogProbsForStateSequence(nodeNr, states, logProbs);
+			}
+			for (int k = 0; k < patternCount; k++) {
+				out[k * stateCount + s] = logProbs[k];
+			}
+		}
+	}
+
+}
@@ -0,0 +1,41 @@
+package mutablealignment;
+
+/**
+ * Backing store for the characters of a MutableAlignment.
+ *
+ * Values are the data type codes as used by Alignment.getPattern(),
+ * addressed by taxon and site. Implementations decide on the memory layout,
+ * so callers should not assume anything about the cost of strided access.
+ **/
+public interface SiteStorage {
+
+	public int getTaxonCount();
+	public int getSiteCount();
+
+	/**
+	 * Get/set 1 character at a specific taxon and site
+	 */
+	public int getSiteValue(int taxonNr, int siteNr);
+	public void setSiteValue(int taxonNr, int siteNr, int value);
+
+	/**
+	 * Copy characters at a specific site for all taxa into dest,
+	 * which should be at least of length getTaxonCount()
+	 */
+	public void getSiteValuesBySite(int siteNr, int [] dest);
+	public void setSiteValuesBySite(int siteNr, int [] values);
+
+	/**
+	 * Copy characters of a specific taxon for all sites into dest,
+	 * which should be at least of length getSiteCount()
+	 */
+	public void getSiteValuesByTaxon(int taxonNr, int [] dest);
+	public void setSiteValuesByTaxon(int taxonNr, int [] values);
+
+	/**
+	 * @return estimate of the number of bytes used for holding the characters,
+	 * on the heap or, for off-heap storage, in native memory
+	 */
+	public long getMemoryFootprint();
+
+}
@@ -0,0 +1,78 @@
+package mutablealignment;
+
+/**
+ * Site storage that keeps a taxon-major copy (#taxa x #sites) of another storage
+ * in sync, so that reading or writing the sequence of a single taxon is a
+ * contiguous array copy instead of a strided walk over all sites.
+ * Per-site access goes to the primary storage, per-taxon reads to the mirror,
+ * and all writes go to both.
+ *
+ * This costs an extra int per character, so it only pays off when per-taxon
+ * operations (e.g. sequence proposals and tip updates in the likelihood) dominate.
+ **/
+public class TaxonMajorMirrorSiteStorage implements SiteStorage {
+	private final SiteStorage primary;
+	private final int [][] taxonSequences;
+
+	public TaxonMajorMirrorSiteStorage(SiteStorage primary) {
+		this.primary = primary;
+		taxonSequences = new int[primary.getTaxonCount()][primary.getSiteCount()];
+		for (int i = 0; i < taxonSequences.length; i++) {
+			primary.getSiteValuesByTaxon(i, taxonSequences[i]);
+		}
+	}
+
+	public SiteStorage getPrimary() {
+		return primary;
+	}
+
+	@Override
+	public int getTaxonCount() {
+		return primary.getTaxonCount();
+	}
+
+	@Override
+	public int getSiteCount() {
+		return primary.getSiteCount();
+	}
+
+	@Override
+	public int getSiteValue(int taxonNr, int siteNr) {
+		return taxonSequences[taxonNr][siteNr];
+	}
+
+	@Override
+	public void setSiteValue(int taxonNr, int siteNr, int value) {
+		primary.setSiteValue(taxonNr, siteNr, value);
+		taxonSequences[taxonNr][siteNr] = value;
+	}
+
+	@Override
+	public void getSiteValuesBySite(int siteNr, int[] dest) {
+		primary.getSiteValuesBySite(siteNr, dest);
+	}
+
+	@Override
+	public void setSiteValuesBySite(int siteNr, int[] values) {
+		primary.setSiteValuesBySite(siteNr, values);
+		for (int i = 0; i < taxonSequences.length; i++) {
+			taxonSequences[i][siteNr] = values[i];
+		}
+	}
+
+	@Override
+	public void getSiteValuesByTaxon(int taxonNr, int[] dest) {
+		System.arraycopy(taxonSequences[taxonNr], 0, dest, 0, taxonSequences[taxonNr].length);
+	}
+
+	@Override
+	public void setSiteValuesByTaxon(int taxonNr, int[] values) {
+		primary.setSiteValuesByTaxon(taxonNr, values);
+		System.arraycopy(values, 0, taxonSequences[taxonNr], 0, taxonSequences[taxonNr].length);
+	}
+
+	@Override
+	public long getMemoryFootprint() {
+		return primary.getMemoryFootprint() + IntArraySiteStorage.estimateMemoryFootprint(getSiteCount(), getTaxonCount());
+	}
+}
@@ -0,0 +1,88 @@
+package mutablealignment;
+
+import java.util.Arrays;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.datatype.DataType;
+
+/**
+ * Lookup tables from character codes to what the likelihoods set for a tip:
+ * a state, where ambiguous codes map to themselves so the core ignores them,
+ * or a partials vector with 1 for every state the code allows. Encoding a
+ * sequence is then a gather from these tables instead of a getStatesForCode()
+ * or getStateSet() call per character.
+ *
+ * Table entries are filled in the first time a code turns up, since not every
+ * data type tells how many codes it has, and codes in between need not be
+ * defined at all.
+ **/
+final class TipEncoder {
+	private final Alignment alignment;
+	private final DataType dataType;
+	private final int stateCount;
+
+	// codeToState entry of a code that has not been seen yet
+	private static final int UNSEEN = -1;
+
+	private int [] codeToState = new int[0];
+	// stateCount values per code
+	private double [] codeToPartials = new double[0];
+
+	TipEncoder(Alignment alignment) {
+		this.alignment = alignment;
+		this.dataType = alignment.getDataType();
+		this.stateCount = dataType.getStateCount();
+	}
+
+	/** state for code, or code itself if it is ambiguous **/
+	int getState(int code) {
+		if (code >= codeToState.length || codeToState[code] == UNSEEN) {
+			add(code);
+		}
+		return codeToState[code];
+	}
+
+	/** states for the first count codes **/
+	void encodeStates(int [] codes, int count, int [] states) {
+		int [] table = codeToState;
+		for (int i = 0; i < count; i++) {
+			int code = codes[i];
+			if (code >= table.length || table[code] == UNSEEN) {
+				table = add(code);
+			}
+			states[i] = table[code];
+		}
+	}
+
+	/** partials for the first count codes, stateCount values per code **/
+	void encodePartials(int [] codes, int count, double [] partials) {
+		for (int i = 0; i < count; i++) {
+			int code = codes[i];
+			if (code >= codeToState.length || codeToState[code] == UNSEEN) {
+				add(code);
+			}
+			int u = code * stateCount, v = i * stateCount;
+			for (int s = 0; s < stateCount; s++) {
+				partials[v + s] = codeToPartials[u + s];
+			}
+		}
+	}
+
+	/** fill in the table entries of code, growing the tables if code is beyond them **/
+	private int [] add(int code) {
+		int oldLength = codeToState.length;
+		if (code >= oldLength) {
+			int newLength = Math.max(code + 1, 2 * oldLength);
+			codeToState = Arrays.copyOf(codeToState, newLength);
+			Arrays.fill(codeToState, oldLength, newLength, UNSEEN);
+			codeToPartials = Arrays.copyOf(codeToPartials, newLength * stateCount);
+		}
+		int [] states = dataType.getStatesForCode(code);
+		codeToState[code] = states.length == 1 ? states[0] : code;
+		boolean [] stateSet = alignment.getStateSet(code);
+		for (int s = 0; s < stateCount; s++) {
+			codeToPartials[code * stateCount + s] = stateSet[s] ? 1.0 : 0.0;
+		}
+		return codeToState;
+	}
+}
@@ -0,0 +1,199 @@
+package test.mutablealignment;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+
+import beast.base.evolution.tree.Tree;
+import mutablealignment.IntArraySiteStorage;
+import mutablealignment.MATreeLikelihood;
+import mutablealignment.MutableAlignment;
+import mutablealignment.PackedSiteStorage;
+import mutablealignment.SiteStorage;
+
+/**
+ * Timings of MutableAlignment and likelihood code paths, kept out of the unit
+ * tests so that those only check behaviour. Not run by the test suite: run
+ * main() from the test class path, with names of benchmarks as arguments to
+ * run only those.
+ **/
+public class AlignmentBenchmarks {
+
+	private interface Benchmark {
+		void run() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Set<String> names = Set.of(args);
+		run(names, "taxonMajorMirror", AlignmentBenchmarks::taxonMajorMirror);
+		run(names, "copyOnWriteChains", AlignmentBenchmarks::copyOnWriteChains);
+		run(names, "stateEncoding", AlignmentBenchmarks::stateEncoding);
+		run(names, "proposals", AlignmentBenchmarks::proposals);
+		run(names, "packedStorage", AlignmentBenchmarks::packedStorage);
+		run(names, "tipConditionals", AlignmentBenchmarks::tipConditionals);
+	}
+
+	private static void run(Set<String> names, String name, Benchmark benchmark) throws Exception {
+		if (names.isEmpty() || names.contains(name)) {
+			benchmark.run();
+		}
+	}
+
+	/** per-taxon proposals on site-major storage, with and without the taxon-major mirror **/
+	static void taxonMajorMirror() throws Exception {
+		int taxonCount = 100, siteCount = 20000, proposals = 2000;
+		long [] time = new long[2];
+		for (int k = 0; k < 2; k++) {
+			MutableAlignment a = MutableAlignmentTest.getRandomAlignment(taxonCount, siteCount);
+			a.taxonMajorMirrorInput.setValue(k == 1, a);
+			a.initAndValidate();
+
+			// read sequence, change a few sites, write back, reject
+			Random rand = new Random(17);
+			int [] seq = new int[siteCount];
+			long start = System.nanoTime();
+			for (int i = 0; i < proposals; i++) {
+				int taxonNr = rand.nextInt(taxonCount);
+				a.getSiteValuesByTaxon(taxonNr, seq);
+				for (int j = 0; j < 10; j++) {
+					seq[rand.nextInt(siteCount)] = rand.nextInt(4);
+				}
+				a.setSiteValuesByTaxon(taxonNr, seq);
+				a.restore();
+			}
+			time[k] = System.nanoTime() - start;
+		}
+		System.out.println(proposals + " per-taxon proposals: site-major " + time[0] / 1000000 + " ms, with taxon-major mirror " + time[1] / 1000000 + " ms");
+	}
+
+	/** copies for heated chains and swaps between them, with plain and copy-on-write storage **/
+	static void copyOnWriteChains() throws Exception {
+		int taxonCount = 100, siteCount = 20000;
+		for (int chainCount : new int[] {4, 8}) {
+			for (String storage : new String[] {"intArray", "copyOnWrite"}) {
+				MutableAlignment a = MutableAlignmentTest.getRandomAlignment(taxonCount, siteCount);
+				a.storageInput.setValue(storage, a);
+				a.initAndValidate();
+
+				MutableAlignment [] chains = new MutableAlignment[chainCount];
+				long start = System.nanoTime();
+				for (int i = 0; i < chainCount; i++) {
+					chains[i] = (MutableAlignment) a.copy();
+				}
+				long copyTime = System.nanoTime() - start;
+
+				// each chain changes a few sites
+				Random rand = new Random(11);
+				for (MutableAlignment chain : chains) {
+					for (int j = 0; j < 10; j++) {
+						chain.setSiteValue(rand.nextInt(taxonCount), rand.nextInt(siteCount), rand.nextInt(4));
+					}
+				}
+				long bytes = a.getStorage().getMemoryFootprint();
+				for (MutableAlignment chain : chains) {
+					bytes += chain.getStorage().getMemoryFootprint();
+				}
+
+				start = System.nanoTime();
+				for (int i = 0; i < 100; i++) {
+					chains[i % chainCount].assignFromFragile(chains[(i + 1) % chainCount]);
+				}
+				long assignTime = System.nanoTime() - start;
+				System.out.println(chainCount + " chains, " + storage + ": copy " + copyTime / 1000000 + " ms, "
+						+ bytes / 1024 + " kB for all chains, 100 assignments " + assignTime / 1000000 + " ms");
+			}
+		}
+	}
+
+	/** writing and reading the state of an alignment as text and as binary **/
+	static void stateEncoding() throws Exception {
+		int taxonCount = 50, siteCount = 20000;
+		MutableAlignment a = MutableAlignmentTest.getRandomAlignment(taxonCount, siteCount);
+		MutableAlignment b = MutableAlignmentTest.getRandomAlignment(taxonCount, siteCount);
+		for (String encoding : new String[] {"text", "binary"}) {
+			a.stateEncodingInput.setValue(encoding, a);
+			long start = System.nanoTime();
+			String xml = a.toXML();
+			b.fromXML(MutableAlignmentTest.parse(xml));
+			long time = System.nanoTime() - start;
+			System.out.println(encoding + " state: " + xml.length() + " characters, written and read in " + time / 1000000 + " ms");
+		}
+	}
+
+	/** time and allocations of rejected proposals, as used by testProposalAllocation **/
+	static void proposals() throws Exception {
+		MutableAlignment a = MutableAlignmentTest.getRandomAlignment(20, 500);
+		int [] seq = a.getSiteValuesByTaxon(3);
+		int [] site = a.getSiteValuesBySite(7).clone();
+		int [][] all = new int[500][20];
+		MutableAlignmentTest.doProposals(a, 10000, seq, site, all);
+
+		int proposals = 100000;
+		long allocated = ThreadAllocation.getAllocatedBytes();
+		long start = System.nanoTime();
+		MutableAlignmentTest.doProposals(a, proposals, seq, site, all);
+		long time = System.nanoTime() - start;
+		allocated = ThreadAllocation.getAllocatedBytes() - allocated;
+		System.out.println(proposals + " proposals in " + time / 1000000 + " ms, "
+				+ (ThreadAllocation.isAvailable() ? (double) allocated / proposals + " bytes" : "unknown bytes") + " allocated per proposal");
+	}
+
+	/** memory footprint and random access of int[][] and bit-packed storage **/
+	static void packedStorage() throws Exception {
+		int taxonCount = 1000, siteCount = 10000, accesses = 10000000;
+		SiteStorage [] storages = {
+				new IntArraySiteStorage(new int[siteCount][taxonCount], taxonCount),
+				new PackedSiteStorage(taxonCount, siteCount, 4, 17)
+		};
+		for (SiteStorage storage : storages) {
+			Random rand = new Random(5);
+			long start = System.nanoTime();
+			long sum = 0;
+			for (int i = 0; i < accesses; i++) {
+				int taxonNr = rand.nextInt(taxonCount), siteNr = rand.nextInt(siteCount);
+				storage.setSiteValue(taxonNr, siteNr, i & 3);
+				sum += storage.getSiteValue(taxonNr, rand.nextInt(siteCount));
+			}
+			long time = System.nanoTime() - start;
+			String name = storage instanceof PackedSiteStorage ? "packed " + ((PackedSiteStorage) storage).getBitsPerValue() + " bits" : "int[][]";
+			System.out.println(name + ": " + storage.getMemoryFootprint() + " bytes, " + accesses
+					+ " writes and reads in " + time / 1000000 + " ms, checksum " + sum);
+		}
+	}
+
+	/** tip conditionals from pre-order partials and from a probe per state, on caterpillar trees **/
+	static void tipConditionals() throws Exception {
+		int siteCount = 2000, stateCount = 4;
+		for (int taxonCount : new int[] {64, 256}) {
+			MutableAlignment a = MATreeLikelihoodTest.getRandomAlignment(taxonCount, siteCount, 3);
+			Tree caterpillar = MATreeLikelihoodTest.getCaterpillar(a);
+			MATreeLikelihood likelihood = new MATreeLikelihood();
+			likelihood.initByName("data", a, "tree", caterpillar, "siteModel", MATreeLikelihoodTest.getSiteModel());
+			likelihood.calculateLogP();
+			int patternCount = a.getPatternCount();
+			int [] taxa = {0, 1, taxonCount / 2, taxonCount - 1};
+
+			double [] conditionals = new double[patternCount * stateCount];
+			long start = System.nanoTime();
+			for (int taxonNr : taxa) {
+				likelihood.getTipConditionalLogProbs(taxonNr, stateCount, conditionals);
+			}
+			long preOrderTime = System.nanoTime() - start;
+
+			int [] states = new int[patternCount];
+			double [] logProbs = new double[patternCount];
+			start = System.nanoTime();
+			for (int taxonNr : taxa) {
+				int nodeNr = likelihood.getTreeNodeNr(taxonNr);
+				for (int s = 0; s < stateCount; s++) {
+					Arrays.fill(states, s);
+					likelihood.getLogProbsForStateSequence(nodeNr, states, logProbs);
+				}
+			}
+			long probeTime = System.nanoTime() - start;
+			System.out.println("Conditionals for " + taxa.length + " tips of a " + taxonCount + " taxon caterpillar: probes "
+					+ probeTime / 1000000 + " ms, pre-order partials " + preOrderTime / 1000000 + " ms");
+		}
+	}
+
+}
@@ -1,6 +1,15 @@
 package test.mutablealignment;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntConsumer;
 
 import beast.base.spec.domain.PositiveReal;
 import beast.base.spec.inference.parameter.RealScalarParam;
@@ -11,6 +20,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
 import beast.base.evolution.likelihood.TreeLikelihood;
 import beast.base.spec.evolution.sitemodel.SiteModel;
 import beast.base.spec.evolution.substitutionmodel.Frequencies;
@@ -18,8 +28,11 @@ import beast.base.spec.evolution.substitutionmodel.HKY;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
 import beast.base.inference.State;
+import mutablealignment.BeagleMATreeLikelihood;
+import mutablealignment.GibbsSequenceOperator;
 import mutablealignment.MATreeLikelihood;
 import mutablealignment.MutableAlignment;
+import mutablealignment.SequenceProbe;
 public class MATreeLikelihoodTest {
 
 	private static final double PRECISION = 1e-6;
@@ -45,9 +58,7 @@ public class MATreeLikelihoodTest {
         return tree;
     }
 
-	private double calcLogP(Alignment data) throws Exception {
-        tree = getTree(data);
-
+    static SiteModel getSiteModel() {
         // mutation rate
         RealScalar<PositiveReal> mu = new RealScalarParam<>(1.0, PositiveReal.INSTANCE);
 
@@ -59,10 +70,16 @@ public class MATreeLikelihoodTest {
         HKY hky = new HKY();
         hky.initByName("kappa", "20", "frequencies", freqs);
 
-        siteModel = new SiteModel();
+        SiteModel siteModel = new SiteModel();
         siteModel.initByName("mutationRate", mu,
                 "gammaCategoryCount", 1,
                 "substModel", hky);
+        return siteModel;
+    }
+
+	private double calcLogP(Alignment data) throws Exception {
+        tree = getTree(data);
+        siteModel = getSiteModel();
 
         TreeLikelihood likelihood = new TreeLikelihood();
         likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
@@ -153,4 +170,544 @@ public class MATreeLikelihoodTest {
         assertEquals(logP1, logP, PRECISION);
         state.acceptCalculationNodes();
 	}
+
+	@Test
+	public void testSiteLocalUpdates() throws Exception {
+		testSiteLocalUpdates(false);
+		testSiteLocalUpdates(true);
+	}
+
+	private void testSiteLocalUpdates(boolean compressPatterns) throws Exception {
+		// long enough for single site edits to take the site local path,
+		// with only two characters when compressing so that there are duplicate columns
+		String characters = compressPatterns ? "AC" : "ACGT";
+		String [] taxa = {"0human", "1chimp", "2bonobo", "3gorilla", "4orangutan", "5siamang"};
+		Random rand = new Random(123);
+		List<Sequence> sequences = new ArrayList<>();
+		for (String taxon : taxa) {
+			StringBuilder b = new StringBuilder();
+			for (int j = 0; j < 40; j++) {
+				b.append(characters.charAt(rand.nextInt(characters.length())));
+			}
+			sequences.add(new Sequence(taxon, b.toString()));
+		}
+		MutableAlignment a = new MutableAlignment();
+		a.initByName("sequence", sequences, "dataType", "nucleotide", "compressPatterns", compressPatterns);
+		double logP0 = calcLogP(a);
+
+        MATreeLikelihood likelihood = new MATreeLikelihood();
+        likelihood.initByName("data", a, "tree", tree, "siteModel", siteModel);
+        State state = new State();
+        state.initByName("stateNode", a);
+        state.initialise();
+		state.setPosterior(likelihood);
+        assertEquals(logP0, state.robustlyCalcPosterior(likelihood), PRECISION);
+
+        for (int i = 0; i < 20; i++) {
+            state.store(i);
+            state.storeCalculationNodes();
+            a.setSiteValue(rand.nextInt(6), rand.nextInt(40), rand.nextInt(4));
+            if (i % 3 == 0) {
+            	a.setSiteValue(rand.nextInt(6), rand.nextInt(40), rand.nextInt(4));
+            }
+            state.checkCalculationNodesDirtiness();
+            double logP = likelihood.calculateLogP();
+            assertEquals(calcLogP(copy(a, taxa)), logP, PRECISION);
+            if (i % 2 == 0) {
+            	state.acceptCalculationNodes();
+            } else {
+                state.restore();
+                state.restoreCalculationNodes();
+            }
+            state.checkCalculationNodesDirtiness();
+            assertEquals(calcLogP(copy(a, taxa)), likelihood.calculateLogP(), PRECISION);
+        }
+	}
+
+	@Test
+	public void testRejectedSequenceUpdates() throws Exception {
+		testRejectedSequenceUpdates(true);
+		testRejectedSequenceUpdates(false);
+	}
+
+	private void testRejectedSequenceUpdates(boolean siteLocal) throws Exception {
+		// whole sequences change, and tips are probed during proposals, so restore()
+		// has to get tips back from their other buffer, or from the alignment without siteLocal
+		String [] taxa = {"0human", "1chimp", "2bonobo", "3gorilla", "4orangutan", "5siamang"};
+		Random rand = new Random(31);
+		MutableAlignment a = MutableAlignmentTest.getAlignment1();
+		calcLogP(a);
+		int siteCount = a.getSiteCount();
+
+        MATreeLikelihood likelihood = new MATreeLikelihood();
+        likelihood.initByName("data", a, "tree", tree, "siteModel", siteModel, "siteLocal", siteLocal);
+        State state = new State();
+        state.initByName("stateNode", a);
+        state.initialise();
+		state.setPosterior(likelihood);
+        assertEquals(calcLogP(copy(a, taxa)), state.robustlyCalcPosterior(likelihood), PRECISION);
+
+        int [] sequence = new int[siteCount];
+        for (int i = 0; i < 20; i++) {
+            state.store(i);
+            int taxonNr = rand.nextInt(6);
+            likelihood.getLogProbsForStateSequence(likelihood.getTreeNodeNr(taxonNr), new int[a.getPatternCount()]);
+            for (int j = 0; j < siteCount; j++) {
+            	sequence[j] = rand.nextInt(4);
+            }
+            a.setSiteValuesByTaxon(taxonNr, sequence);
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            assertEquals(calcLogP(copy(a, taxa)), likelihood.calculateLogP(), PRECISION);
+            if (i % 2 == 0) {
+            	state.acceptCalculationNodes();
+            } else {
+                state.restore();
+                state.restoreCalculationNodes();
+            }
+            state.checkCalculationNodesDirtiness();
+            assertEquals(calcLogP(copy(a, taxa)), likelihood.calculateLogP(), PRECISION);
+        }
+	}
+
+	@Test
+	public void testHotColdPatterns() throws Exception {
+		testHotColdPatterns(true);
+		testHotColdPatterns(false);
+	}
+
+	private void testHotColdPatterns(boolean siteLocal) throws Exception {
+		// only missing characters can change, so most sites are cold; the likelihood
+		// should match that of an alignment with the same characters but without mask
+		String [] taxa = {"0human", "1chimp", "2bonobo", "3gorilla", "4orangutan", "5siamang"};
+		Random rand = new Random(41);
+		List<Sequence> sequences = new ArrayList<>();
+		for (int i = 0; i < taxa.length; i++) {
+			StringBuilder b = new StringBuilder();
+			for (int j = 0; j < 120; j++) {
+				b.append(j % 20 == i ? '?' : "AC".charAt(rand.nextInt(2)));
+			}
+			sequences.add(new Sequence(taxa[i], b.toString()));
+		}
+		MutableAlignment a = new MutableAlignment();
+		a.initByName("sequence", sequences, "dataType", "nucleotide", "mutableAmbiguitiesOnly", true);
+		assertTrue(a.getColdPatternCount() > 0);
+		calcLogP(a);
+
+        MATreeLikelihood likelihood = new MATreeLikelihood();
+        likelihood.initByName("data", a, "tree", tree, "siteModel", siteModel, "siteLocal", siteLocal);
+        State state = new State();
+        state.initByName("stateNode", a);
+        state.initialise();
+		state.setPosterior(likelihood);
+        assertEquals(calcLogP(copy(a, taxa)), state.robustlyCalcPosterior(likelihood), PRECISION);
+
+		for (int i = 0; i < 20; i++) {
+			state.store(i);
+			state.storeCalculationNodes();
+			int taxonNr = rand.nextInt(taxa.length);
+			if (i % 3 == 2) {
+				int [] sequence = a.getSiteValuesByTaxon(taxonNr);
+				for (int j = taxonNr; j < 120; j += 20) {
+					sequence[j] = rand.nextInt(4);
+				}
+				a.setSiteValuesByTaxon(taxonNr, sequence);
+			} else {
+				a.setSiteValue(taxonNr, taxonNr + 20 * rand.nextInt(6), rand.nextInt(4));
+			}
+			state.checkCalculationNodesDirtiness();
+			assertEquals(calcLogP(copy(a, taxa)), likelihood.calculateLogP(), PRECISION);
+			if (i % 2 == 0) {
+				state.acceptCalculationNodes();
+			} else {
+				state.restore();
+				state.restoreCalculationNodes();
+			}
+			state.checkCalculationNodesDirtiness();
+			assertEquals(calcLogP(copy(a, taxa)), likelihood.calculateLogP(), PRECISION);
+		}
+	}
+
+	@Test
+	public void testBeagleBlockUpdates() throws Exception {
+		testBeagleBlockUpdates(false);
+		testBeagleBlockUpdates(true);
+	}
+
+	private void testBeagleBlockUpdates(boolean compressPatterns) throws Exception {
+		// without sidecar, edits of a few sites are handled by updating their blocks in place,
+		// and restore() recalculates the same blocks from the restored tips
+		String [] taxa = {"0human", "1chimp", "2bonobo", "3gorilla", "4orangutan", "5siamang"};
+		MutableAlignment a = getRandomAlignment(taxa, 400, compressPatterns ? 2 : 4, 43);
+		calcLogP(a);
+		BeagleMATreeLikelihood likelihood = newBeagleLikelihood("data", a, "tree", tree, "siteModel", siteModel,
+				"blockSize", 16, "sidecarSize", 0);
+		assumeTrue(likelihood != null, "BEAGLE not available");
+		runEdits(a, taxa, likelihood, new Random(47), false);
+	}
+
+	@Test
+	public void testBeagleSidecar() throws Exception {
+		testBeagleSidecar(0, false);
+		testBeagleSidecar(16, false);
+		testBeagleSidecar(16, true);
+	}
+
+	private void testBeagleSidecar(int blockSize, boolean compressPatterns) throws Exception {
+		// edits of a few patterns are evaluated by the sidecar, and folded into BEAGLE
+		// by accept(), or by store() when edits were committed without accept()
+		String [] taxa = {"0human", "1chimp", "2bonobo", "3gorilla", "4orangutan", "5siamang"};
+		MutableAlignment a = getRandomAlignment(taxa, 400, compressPatterns ? 2 : 4, 53);
+		calcLogP(a);
+		BeagleMATreeLikelihood likelihood = newBeagleLikelihood("data", a, "tree", tree, "siteModel", siteModel,
+				"blockSize", blockSize, "sidecarSize", 16);
+		assumeTrue(likelihood != null, "BEAGLE not available");
+		runEdits(a, taxa, likelihood, new Random(59), true);
+	}
+
+	/**
+	 * Make edits of a few sites, accepting or rejecting them, or with skipAccept
+	 * sometimes doing neither so the next store() commits them, and check logP
+	 * against a fresh likelihood after every step.
+	 */
+	private void runEdits(MutableAlignment a, String [] taxa, BeagleMATreeLikelihood likelihood, Random rand, boolean skipAccept) throws Exception {
+        State state = new State();
+        state.initByName("stateNode", a);
+        state.initialise();
+		state.setPosterior(likelihood);
+        assertEquals(calcLogP(copy(a, taxa)), state.robustlyCalcPosterior(likelihood), PRECISION);
+
+		int siteCount = a.getSiteCount();
+		for (int i = 0; i < 40; i++) {
+			state.store(i);
+			int taxonNr = rand.nextInt(taxa.length);
+			switch (i % 3) {
+			case 0:
+				a.setSiteValue(taxonNr, rand.nextInt(siteCount), rand.nextInt(4));
+				break;
+			case 1:
+				a.setSiteValue(taxonNr, rand.nextInt(siteCount), rand.nextInt(4));
+				a.setSiteValue(rand.nextInt(taxa.length), rand.nextInt(siteCount), rand.nextInt(4));
+				break;
+			default:
+				int [] sequence = a.getSiteValuesByTaxon(taxonNr);
+				for (int j = 0; j < 3; j++) {
+					sequence[rand.nextInt(siteCount)] = rand.nextInt(4);
+				}
+				a.setSiteValuesByTaxon(taxonNr, sequence);
+			}
+			state.storeCalculationNodes();
+			state.checkCalculationNodesDirtiness();
+			assertEquals(calcLogP(copy(a, taxa)), likelihood.calculateLogP(), PRECISION);
+			int choice = rand.nextInt(skipAccept ? 3 : 2);
+			if (choice == 0) {
+				state.acceptCalculationNodes();
+			} else if (choice == 1) {
+				state.restore();
+				state.restoreCalculationNodes();
+			} else {
+				// the next state.store() commits the edits
+				continue;
+			}
+			state.checkCalculationNodesDirtiness();
+			assertEquals(calcLogP(copy(a, taxa)), likelihood.calculateLogP(), PRECISION);
+		}
+	}
+
+	/** BeagleMATreeLikelihood with the given inputs, or null if BEAGLE is not available **/
+	private BeagleMATreeLikelihood newBeagleLikelihood(Object... inputs) {
+		BeagleMATreeLikelihood likelihood = new BeagleMATreeLikelihood();
+		try {
+			likelihood.initByName(inputs);
+		} catch (UnsatisfiedLinkError | NoClassDefFoundError e) {
+			return null;
+		}
+		return likelihood.getBeagle() == null ? null : likelihood;
+	}
+
+	private MutableAlignment getRandomAlignment(String [] taxa, int siteCount, int stateCount, long seed) {
+		Random rand = new Random(seed);
+		List<Sequence> sequences = new ArrayList<>();
+		for (String taxon : taxa) {
+			StringBuilder b = new StringBuilder();
+			for (int j = 0; j < siteCount; j++) {
+				b.append("ACGT".charAt(rand.nextInt(stateCount)));
+			}
+			sequences.add(new Sequence(taxon, b.toString()));
+		}
+		MutableAlignment a = new MutableAlignment();
+		a.initByName("sequence", sequences, "dataType", "nucleotide", "compressPatterns", stateCount < 4);
+		return a;
+	}
+
+	@Test
+	public void testGibbsSequenceOperator() throws Exception {
+		testGibbsSequenceOperator(false);
+		testGibbsSequenceOperator(true);
+	}
+
+	private void testGibbsSequenceOperator(boolean compressPatterns) throws Exception {
+		String [] taxa = {"0human", "1chimp", "2bonobo", "3gorilla", "4orangutan", "5siamang"};
+		Random rand = new Random(17);
+		List<Sequence> sequences = new ArrayList<>();
+		for (String taxon : taxa) {
+			StringBuilder b = new StringBuilder();
+			for (int j = 0; j < 12; j++) {
+				b.append("ACGT".charAt(rand.nextInt(compressPatterns ? 2 : 4)));
+			}
+			sequences.add(new Sequence(taxon, b.toString()));
+		}
+		MutableAlignment a = new MutableAlignment();
+		a.initByName("sequence", sequences, "dataType", "nucleotide", "compressPatterns", compressPatterns);
+		calcLogP(a);
+
+        MATreeLikelihood likelihood = new MATreeLikelihood();
+        likelihood.initByName("data", a, "tree", tree, "siteModel", siteModel);
+        State state = new State();
+        state.initByName("stateNode", a);
+        state.initialise();
+		state.setPosterior(likelihood);
+        state.robustlyCalcPosterior(likelihood);
+
+		GibbsSequenceOperator operator = new GibbsSequenceOperator();
+		operator.initByName("mutableAlignment", a, "likelihood", likelihood, "weight", 1.0);
+
+		// conditionals should match differences in likelihood when changing one character
+		int taxonNr = 2;
+		double [] conditionals = operator.calculateConditionals(taxonNr).clone();
+		for (int j = 0; j < 12; j++) {
+			MutableAlignment b = copy(a, taxa);
+			b.setSiteValue(taxonNr, j, 0);
+			double logP0 = calcLogP(b);
+			for (int s = 1; s < 4; s++) {
+				b.setSiteValue(taxonNr, j, s);
+				assertEquals(calcLogP(b) - logP0, conditionals[j * 4 + s] - conditionals[j * 4], PRECISION);
+			}
+		}
+
+		// probes should leave the likelihood intact, and proposals are always accepted
+		for (int i = 0; i < 5; i++) {
+			state.store(i);
+			state.storeCalculationNodes();
+			assertEquals(Double.POSITIVE_INFINITY, operator.proposal());
+			state.checkCalculationNodesDirtiness();
+			assertEquals(calcLogP(copy(a, taxa)), likelihood.calculateLogP(), PRECISION);
+			state.acceptCalculationNodes();
+		}
+	}
+
+	@Test
+	public void testGibbsSequenceOperatorAddsPatterns() throws Exception {
+		// 600 sites made of 10 distinct columns, so resampling a sequence
+		// creates more new columns than there are free pattern slots
+		String [] taxa = {"0human", "1chimp", "2bonobo", "3gorilla", "4orangutan", "5siamang"};
+		Random rand = new Random(23);
+		String [] columns = new String[10];
+		for (int k = 0; k < columns.length; k++) {
+			StringBuilder b = new StringBuilder();
+			for (int i = 0; i < taxa.length; i++) {
+				b.append("ACGT".charAt(rand.nextInt(4)));
+			}
+			columns[k] = b.toString();
+		}
+		List<Sequence> sequences = new ArrayList<>();
+		for (int i = 0; i < taxa.length; i++) {
+			StringBuilder b = new StringBuilder();
+			for (int j = 0; j < 600; j++) {
+				b.append(columns[j % columns.length].charAt(i));
+			}
+			sequences.add(new Sequence(taxa[i], b.toString()));
+		}
+		MutableAlignment a = new MutableAlignment();
+		a.initByName("sequence", sequences, "dataType", "nucleotide", "compressPatterns", true);
+		int patternCount = a.getPatternCount();
+		assertEquals(26, patternCount);
+		calcLogP(a);
+
+        MATreeLikelihood likelihood = new MATreeLikelihood();
+        likelihood.initByName("data", a, "tree", tree, "siteModel", siteModel);
+        State state = new State();
+        state.initByName("stateNode", a);
+        state.initialise();
+		state.setPosterior(likelihood);
+        state.robustlyCalcPosterior(likelihood);
+
+		GibbsSequenceOperator operator = new GibbsSequenceOperator();
+		operator.initByName("mutableAlignment", a, "likelihood", likelihood, "weight", 1.0);
+		for (int i = 0; i < 20; i++) {
+			state.store(i);
+			state.storeCalculationNodes();
+			assertEquals(Double.POSITIVE_INFINITY, operator.proposal());
+			state.checkCalculationNodesDirtiness();
+			assertEquals(calcLogP(copy(a, taxa)), likelihood.calculateLogP(), PRECISION);
+			if (i % 2 == 0) {
+				state.acceptCalculationNodes();
+			} else {
+				state.restore();
+				state.restoreCalculationNodes();
+			}
+			state.checkCalculationNodesDirtiness();
+			assertEquals(calcLogP(copy(a, taxa)), likelihood.calculateLogP(), PRECISION);
+		}
+		assertTrue(a.getPatternCount() > patternCount);
+	}
+
+	@Test
+	public void testTipConditionals() throws Exception {
+		// caterpillar tree, where probing a tip is most expensive
+		int taxonCount = 64, siteCount = 500, stateCount = 4;
+		MutableAlignment a = getRandomAlignment(taxonCount, siteCount, 3);
+		MATreeLikelihood likelihood = new MATreeLikelihood();
+		likelihood.initByName("data", a, "tree", getCaterpillar(a), "siteModel", siteModel);
+		likelihood.calculateLogP();
+		int patternCount = a.getPatternCount();
+		int [] taxa = {0, 1, taxonCount / 2, taxonCount - 1};
+
+		// pre-order partials
+		double [][] conditionals = new double[taxa.length][patternCount * stateCount];
+		for (int i = 0; i < taxa.length; i++) {
+			likelihood.getTipConditionalLogProbs(taxa[i], stateCount, conditionals[i]);
+		}
+
+		// one probe per state should give the same
+		int [] states = new int[patternCount];
+		for (int i = 0; i < taxa.length; i++) {
+			int nodeNr = likelihood.getTreeNodeNr(taxa[i]);
+			for (int s = 0; s < stateCount; s++) {
+				Arrays.fill(states, s);
+				double [] logProbs = likelihood.getLogProbsForStateSequence(nodeNr, states);
+				for (int k = 0; k < patternCount; k++) {
+					assertEquals(logProbs[k], conditionals[i][k * stateCount + s], PRECISION);
+				}
+			}
+		}
+	}
+
+	/** alignment with taxa t0, t1, ... and random nucleotides **/
+	static MutableAlignment getRandomAlignment(int taxonCount, int siteCount, long seed) {
+		Random rand = new Random(seed);
+		List<Sequence> sequences = new ArrayList<>();
+		for (int i = 0; i < taxonCount; i++) {
+			StringBuilder b = new StringBuilder();
+			for (int j = 0; j < siteCount; j++) {
+				b.append("ACGT".charAt(rand.nextInt(4)));
+			}
+			sequences.add(new Sequence("t" + i, b.toString()));
+		}
+		MutableAlignment a = new MutableAlignment();
+		a.initByName("sequence", sequences, "dataType", "nucleotide");
+		return a;
+	}
+
+	/** caterpillar tree ((((t0,t1),t2),t3)...) for the taxa of getRandomAlignment **/
+	static Tree getCaterpillar(MutableAlignment a) {
+		String newick = "t0";
+		for (int i = 1; i < a.getTaxonCount(); i++) {
+			newick = "(" + newick + ":0.01,t" + i + ":0.01)";
+		}
+		TreeParser caterpillar = new TreeParser();
+		caterpillar.initByName("taxa", a, "newick", newick + ";", "IsLabelledNewick", true);
+		return caterpillar;
+	}
+
+	@Test
+	public void testBatchedProbes() throws Exception {
+		MutableAlignment a = MutableAlignmentTest.getAlignment1();
+		calcLogP(a);
+		MATreeLikelihood likelihood = new MATreeLikelihood();
+		likelihood.initByName("data", a, "tree", tree, "siteModel", siteModel);
+		likelihood.calculateLogP();
+
+		int patternCount = a.getPatternCount();
+		int nodeNr = likelihood.getTreeNodeNr(3);
+		Random rand = new Random(7);
+		int [][] candidates = new int[10][patternCount];
+		for (int [] candidate : candidates) {
+			for (int k = 0; k < patternCount; k++) {
+				// include some ambiguous codes, which probes treat as missing data
+				candidate[k] = rand.nextInt(10) == 0 ? 15 : rand.nextInt(4);
+			}
+		}
+
+		// from pre-order partials
+		double [][] batched = new double[candidates.length][patternCount];
+		likelihood.getLogProbsForStateSequences(nodeNr, candidates, batched);
+		// from probes
+		double [][] probed = new double[candidates.length][];
+		for (int i = 0; i < candidates.length; i++) {
+			probed[i] = likelihood.getLogProbsForStateSequence(nodeNr, candidates[i]);
+			assertArrayEquals(probed[i], batched[i], PRECISION);
+		}
+		// the probes changed the tip, so this flips ancestors once for all candidates
+		likelihood.getLogProbsForStateSequences(nodeNr, candidates, batched);
+		for (int i = 0; i < candidates.length; i++) {
+			assertArrayEquals(probed[i], batched[i], PRECISION);
+		}
+	}
+
+	@Test
+	public void testProbesDoNotAllocate() throws Exception {
+		MutableAlignment a = MutableAlignmentTest.getAlignment1();
+		calcLogP(a);
+		for (boolean siteLocal : new boolean[] {false, true}) {
+			MATreeLikelihood likelihood = new MATreeLikelihood();
+			likelihood.initByName("data", a, "tree", tree, "siteModel", siteModel, "siteLocal", siteLocal);
+			likelihood.calculateLogP();
+			// tip conditionals come from pre-order partials with siteLocal, and from a probe per state without
+			assertProbesDoNotAllocate(a, likelihood);
+		}
+		BeagleMATreeLikelihood beagleLikelihood = newBeagleLikelihood("data", a, "tree", tree, "siteModel", siteModel);
+		if (beagleLikelihood != null) {
+			beagleLikelihood.calculateLogP();
+			assertProbesDoNotAllocate(a, beagleLikelihood);
+		}
+	}
+
+	private void assertProbesDoNotAllocate(MutableAlignment a, SequenceProbe likelihood) {
+		int patternCount = a.getPatternCount();
+		int taxonCount = a.getTaxonCount();
+		int stateCount = a.getDataType().getStateCount();
+		int nodeNr = likelihood.getTreeNodeNr(2);
+		int [] states = new int[patternCount];
+		double [] out = new double[patternCount];
+		double [] expected = likelihood.getLogProbsForStateSequence(nodeNr, states);
+		assertArrayEquals(expected, likelihood.getLogProbsForStateSequence(nodeNr, states, out), PRECISION);
+		double [] conditionals = new double[patternCount * stateCount];
+
+		assumeTrue(ThreadAllocation.isAvailable(), "allocated bytes per thread not available");
+		assertDoesNotAllocate("probes", i -> {
+			states[i % patternCount] = i % stateCount;
+			likelihood.getLogProbsForStateSequence(nodeNr, states, out);
+		});
+		assertDoesNotAllocate("tip conditionals", i -> likelihood.getTipConditionalLogProbs(i % taxonCount, stateCount, conditionals));
+	}
+
+	private static void assertDoesNotAllocate(String what, IntConsumer call) {
+		int callCount = 10000;
+		// warm up, so that allocations by class loading, the JIT and buffers allocated on first use are not counted
+		for (int i = 0; i < callCount; i++) {
+			call.accept(i);
+		}
+		long allocated = ThreadAllocation.getAllocatedBytes();
+		for (int i = 0; i < callCount; i++) {
+			call.accept(i);
+		}
+		allocated = ThreadAllocation.getAllocatedBytes() - allocated;
+		// less than a single object per call: the call itself does not allocate
+		assertTrue(allocated < 16L * callCount, what + " allocated " + allocated + " bytes");
+	}
+
+	private MutableAlignment copy(MutableAlignment a, String [] taxa) {
+		List<Sequence> sequences = new ArrayList<>();
+		for (int i = 0; i < taxa.length; i++) {
+			StringBuilder b = new StringBuilder();
+			for (int code : a.getSiteValuesByTaxon(i)) {
+				b.append(a.getDataType().getCharacter(code));
+			}
+			sequences.add(new Sequence(taxa[i], b.toString()));
+		}
+		MutableAlignment copy = new MutableAlignment();
+		copy.initByName("sequence", sequences, "dataType", "nucleotide");
+		return copy;
+	}
 }
@@ -0,0 +1,584 @@
+package test.mutablealignment;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.core.Loggable;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.inference.Logger;
+import beast.base.inference.State;
+import mutablealignment.AlignmentLogSummariser;
+import mutablealignment.AlignmentPosteriorSummariser;
+import mutablealignment.AlignmentTraceReader;
+import mutablealignment.AsyncAlignmentWriter;
+import mutablealignment.IndexedAlignmentLogger;
+import mutablealignment.IndexedAlignmentTraceReader;
+import mutablealignment.MutableAlignment;
+import mutablealignment.MutableAlignmentLogger;
+import mutablealignment.ReadOnlyAlignment;
+
+public class MutableAlignmentLoggerTest {
+
+	@Test
+	public void testBinaryTrace() throws Exception {
+		int taxonCount = 20, siteCount = 300, sampleCount = 25;
+		Random rand = new Random(5);
+		MutableAlignment a = getRandomAlignment(taxonCount, siteCount);
+
+		File file = File.createTempFile("alignment", ".trace");
+		file.deleteOnExit();
+		MutableAlignmentLogger logger = new MutableAlignmentLogger();
+		logger.initByName("alignment", a, "binaryFile", file.getPath(), "keyframeInterval", 10);
+		PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+
+		// log samples with a few changes in between, and remember what was logged
+		List<int [][]> logged = new ArrayList<>();
+		logger.init(out);
+		for (int k = 0; k < sampleCount; k++) {
+			for (int j = 0; j < 5; j++) {
+				a.setSiteValue(rand.nextInt(taxonCount), rand.nextInt(siteCount), rand.nextInt(4));
+			}
+			if (k == 12) {
+				a.setSiteValuesByTaxon(3, new int[siteCount]);
+			}
+			logger.log(k * 1000, out);
+			int [][] sample = new int[taxonCount][];
+			for (int i = 0; i < taxonCount; i++) {
+				sample[i] = a.getSiteValuesByTaxon(i);
+			}
+			logged.add(sample);
+		}
+		logger.close(out);
+
+		// deltas should be much smaller than keyframes
+		assertTrue(file.length() < 4 * taxonCount * siteCount);
+
+		try (AlignmentTraceReader reader = new AlignmentTraceReader(file)) {
+			assertEquals(a.getTaxaNames(), reader.getTaxaNames());
+			int [] seq = new int[siteCount];
+			for (int k = 0; k < sampleCount; k++) {
+				assertTrue(reader.next());
+				assertEquals(k * 1000, reader.getSample());
+				for (int i = 0; i < taxonCount; i++) {
+					reader.getStorage().getSiteValuesByTaxon(i, seq);
+					assertArrayEquals(logged.get(k)[i], seq);
+				}
+			}
+			assertTrue(!reader.next());
+		}
+
+		try (AlignmentTraceReader reader = new AlignmentTraceReader(file)) {
+			assertTrue(reader.seek(17000));
+			int [] seq = new int[siteCount];
+			reader.getStorage().getSiteValuesByTaxon(3, seq);
+			assertArrayEquals(logged.get(17)[3], seq);
+		}
+	}
+
+	@Test
+	public void testBinaryTraceResume() throws Exception {
+		int taxonCount = 8, siteCount = 50;
+		Random rand = new Random(9);
+		MutableAlignment a = getRandomAlignment(taxonCount, siteCount);
+		File file = File.createTempFile("alignment", ".trace");
+		file.deleteOnExit();
+		PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+		List<int [][]> logged = new ArrayList<>();
+
+		MutableAlignmentLogger logger = new MutableAlignmentLogger();
+		logger.initByName("alignment", a, "binaryFile", file.getPath(), "keyframeInterval", 4);
+		logger.init(out);
+		logSamples(a, logger, out, rand, 0, 10, logged);
+		logger.close(out);
+		// the run stopped while writing the last sample
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			channel.truncate(file.length() - 3);
+		}
+		logged.remove(9);
+
+		Logger.LogFileMode mode = Logger.FILE_MODE;
+		Logger.FILE_MODE = Logger.LogFileMode.resume;
+		try {
+			logger = new MutableAlignmentLogger();
+			logger.initByName("alignment", a, "binaryFile", file.getPath(), "keyframeInterval", 4);
+			logger.init(out);
+			logSamples(a, logger, out, rand, 9, 15, logged);
+			logger.close(out);
+		} finally {
+			Logger.FILE_MODE = mode;
+		}
+
+		try (AlignmentTraceReader reader = new AlignmentTraceReader(file)) {
+			int [] seq = new int[siteCount];
+			for (int k = 0; k < 15; k++) {
+				assertTrue(reader.next());
+				assertEquals(k, reader.getSample());
+				for (int i = 0; i < taxonCount; i++) {
+					reader.getStorage().getSiteValuesByTaxon(i, seq);
+					assertArrayEquals(logged.get(k)[i], seq);
+				}
+			}
+			assertFalse(reader.next());
+		}
+	}
+
+	/** log samples from up to end, with edits that are kept or restored in between **/
+	private void logSamples(MutableAlignment a, MutableAlignmentLogger logger, PrintStream out, Random rand,
+			int from, int end, List<int [][]> logged) {
+		int taxonCount = a.getTaxonCount(), siteCount = a.getSiteCount();
+		State state = new State();
+		state.initByName("stateNode", a);
+		state.initialise();
+		for (int k = from; k < end; k++) {
+			if (k % 3 == 0) {
+				// rejected, so the trace should not change
+				state.store(k);
+				a.setSiteValuesByTaxon(rand.nextInt(taxonCount), new int[siteCount]);
+				state.restore();
+			}
+			state.store(k);
+			a.setSiteValue(rand.nextInt(taxonCount), rand.nextInt(siteCount), rand.nextInt(4));
+			if (k % 4 == 1) {
+				int [] seq = a.getSiteValuesByTaxon(2);
+				seq[rand.nextInt(siteCount)] = rand.nextInt(4);
+				a.setSiteValuesByTaxon(2, seq);
+			}
+			logger.log(k, out);
+			int [][] sample = new int[taxonCount][];
+			for (int i = 0; i < taxonCount; i++) {
+				sample[i] = a.getSiteValuesByTaxon(i);
+			}
+			logged.add(sample);
+		}
+	}
+
+	@Test
+	public void testIndexedTrace() throws Exception {
+		int taxonCount = 12, siteCount = 101, sampleCount = 40;
+		Random rand = new Random(7);
+		MutableAlignment a = getRandomAlignment(taxonCount, siteCount);
+
+		File file = File.createTempFile("alignment", ".itrace");
+		file.deleteOnExit();
+		IndexedAlignmentLogger logger = new IndexedAlignmentLogger();
+		logger.initByName("alignment", a, "file", file.getPath());
+		PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+
+		List<int [][]> logged = new ArrayList<>();
+		logger.init(out);
+		for (int k = 0; k < sampleCount; k++) {
+			for (int j = 0; j < 5; j++) {
+				a.setSiteValue(rand.nextInt(taxonCount), rand.nextInt(siteCount), rand.nextInt(18));
+			}
+			logger.log(k * 100, out);
+			int [][] sample = new int[taxonCount][];
+			for (int i = 0; i < taxonCount; i++) {
+				sample[i] = a.getSiteValuesByTaxon(i);
+			}
+			logged.add(sample);
+		}
+		logger.close(out);
+
+		try (IndexedAlignmentTraceReader reader = new IndexedAlignmentTraceReader(file, a.getDataType())) {
+			assertEquals(a.getTaxaNames(), reader.getTaxaNames());
+			assertEquals(sampleCount, reader.getSampleCount());
+			// visit samples in arbitrary order
+			int [] seq = new int[siteCount];
+			for (int n = 0; n < 100; n++) {
+				int k = rand.nextInt(sampleCount);
+				assertEquals(k * 100, reader.getSample(k));
+				ReadOnlyAlignment view = reader.getAlignment(k);
+				assertEquals(a.getTaxaNames(), view.getTaxaNames());
+				assertEquals(a.getDataType(), view.getDataType());
+				assertEquals(siteCount, view.getSiteCount());
+				assertEquals(siteCount, view.getPatternCount());
+				int j = rand.nextInt(siteCount);
+				assertEquals(j, view.getPatternIndex(j));
+				assertEquals(1, view.getPatternWeight(j));
+				for (int i = 0; i < taxonCount; i++) {
+					view.getStorage().getSiteValuesByTaxon(i, seq);
+					assertArrayEquals(logged.get(k)[i], seq);
+					assertEquals(logged.get(k)[i][j], view.getPattern(i, j));
+					assertEquals(logged.get(k)[i][j], view.getPattern(j)[i]);
+				}
+			}
+			assertEquals(17, reader.indexOf(1700));
+			assertEquals(-1, reader.indexOf(1750));
+			assertThrows(UnsupportedOperationException.class, () -> reader.getAlignment(0).getStorage().setSiteValue(0, 0, 1));
+		}
+	}
+
+	@Test
+	public void testSequenceFile() throws Exception {
+		testSequenceFile("intArray", false);
+		testSequenceFile("copyOnWrite", true);
+	}
+
+	private void testSequenceFile(String storage, boolean compress) throws Exception {
+		int taxonCount = 10, siteCount = 200, sampleCount = 50;
+		MutableAlignment a = getRandomAlignment(taxonCount, siteCount);
+		a.storageInput.setValue(storage, a);
+		a.initAndValidate();
+
+		File file = File.createTempFile("alignment", compress ? ".txt.gz" : ".txt");
+		file.deleteOnExit();
+		MutableAlignmentLogger logger = new MutableAlignmentLogger();
+		logger.initByName("alignment", a, "sequenceFile", file.getPath(), "queueSize", 2, "compress", compress);
+		PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+
+		// the alignment changes while earlier samples are still being written
+		Random rand = new Random(3);
+		List<String> logged = new ArrayList<>();
+		logger.init(out);
+		for (int k = 0; k < sampleCount; k++) {
+			for (int j = 0; j < 20; j++) {
+				a.setSiteValue(rand.nextInt(taxonCount), rand.nextInt(siteCount), rand.nextInt(4));
+			}
+			logger.log(k, out);
+			StringBuilder b = new StringBuilder(Integer.toString(k));
+			for (int i = 0; i < taxonCount; i++) {
+				b.append('\t');
+				for (int code : a.getSiteValuesByTaxon(i)) {
+					b.append(a.getDataType().getCharacter(code));
+				}
+			}
+			logged.add(b.toString());
+		}
+		logger.close(out);
+
+		InputStream in = new FileInputStream(file);
+		if (compress) {
+			in = new GZIPInputStream(in);
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {
+			assertEquals("Sample\t" + String.join("\t", a.getTaxaNames()), reader.readLine());
+			for (int k = 0; k < sampleCount; k++) {
+				assertEquals(logged.get(k), reader.readLine());
+			}
+			assertEquals(null, reader.readLine());
+		}
+	}
+
+	@Test
+	public void testSequenceFileWriterFails() throws Exception {
+		// write to a named pipe that is not read, so the writer blocks and the
+		// caller ends up waiting for a free snapshot; then break the pipe
+		File dir = Files.createTempDirectory("alignment").toFile();
+		dir.deleteOnExit();
+		File fifo = new File(dir, "sequences");
+		fifo.deleteOnExit();
+		assumeTrue(new ProcessBuilder("mkfifo", fifo.getPath()).start().waitFor() == 0);
+		FileInputStream [] in = new FileInputStream[1];
+		Thread opener = new Thread(() -> {
+			try {
+				in[0] = new FileInputStream(fifo);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		opener.start();
+		MutableAlignment a = getRandomAlignment(4, 50000);
+		AsyncAlignmentWriter writer = new AsyncAlignmentWriter(fifo, a.getTaxaNames(), a.getSiteCount(), a.getDataType(), 2, false);
+		opener.join();
+
+		IOException [] thrown = new IOException[1];
+		Thread producer = new Thread(() -> {
+			try {
+				for (int k = 0; k < 100; k++) {
+					writer.write(k, a.getStorage());
+				}
+			} catch (IOException e) {
+				thrown[0] = e;
+			}
+		});
+		producer.setDaemon(true);
+		producer.start();
+		Thread.sleep(500);
+		while (producer.getState() == Thread.State.RUNNABLE) {
+			Thread.sleep(10);
+		}
+		in[0].close();
+
+		producer.join(30000);
+		assertFalse(producer.isAlive());
+		assertTrue(thrown[0] != null);
+		assertThrows(IOException.class, writer::close);
+	}
+
+	@Test
+	public void testPosteriorSummariser() throws Exception {
+		int taxonCount = 6, siteCount = 50, sampleCount = 200;
+		MutableAlignment a = getRandomAlignment(taxonCount, siteCount);
+		File file = File.createTempFile("alignment", ".summary");
+		file.deleteOnExit();
+		AlignmentPosteriorSummariser summariser = new AlignmentPosteriorSummariser();
+		summariser.initByName("alignment", a, "file", file.getPath(), "burnin", 10L);
+		PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+
+		// count by brute force what the summariser counts incrementally
+		int [][][] counts = new int[taxonCount][siteCount][18];
+		Random rand = new Random(9);
+		State state = new State();
+		state.initByName("stateNode", a);
+		state.initialise();
+		summariser.init(out);
+		for (int k = 0; k < sampleCount; k++) {
+			// only a few sites change, some proposals are rejected
+			state.store(k);
+			a.setSiteValue(rand.nextInt(taxonCount), rand.nextInt(5), rand.nextInt(4));
+			if (k % 7 == 0) {
+				a.setSiteValuesBySite(10, new int[] {0, 1, 2, 3, 0, rand.nextInt(4)});
+			}
+			if (k % 3 == 0) {
+				state.restore();
+			}
+			summariser.log(k, out);
+			if (k >= 10) {
+				for (int i = 0; i < taxonCount; i++) {
+					for (int j = 0; j < siteCount; j++) {
+						counts[i][j][a.getSiteValue(i, j)]++;
+					}
+				}
+			}
+		}
+		summariser.close(out);
+
+		assertEquals(sampleCount - 10, summariser.getSampleCount());
+		for (int i = 0; i < taxonCount; i++) {
+			for (int j = 0; j < siteCount; j++) {
+				for (int code = 0; code < 4; code++) {
+					assertEquals(counts[i][j][code], summariser.getCount(i, j, code));
+				}
+			}
+		}
+		List<String> lines = java.nio.file.Files.readAllLines(file.toPath());
+		assertEquals("# " + (sampleCount - 10) + " samples", lines.get(0));
+		assertTrue(lines.get(2).startsWith("taxon0\t"));
+		assertEquals(2 + taxonCount + 1, lines.indexOf("# marginal probabilities of characters that changed") + 1);
+	}
+
+	@Test
+	public void testPosteriorSummariserLongRun() throws Exception {
+		// more samples than a short counter holds, with a gap among the codes
+		int taxonCount = 4, siteCount = 3, sampleCount = 70000;
+		MutableAlignment a = getRandomAlignment(taxonCount, siteCount);
+		File file = File.createTempFile("alignment", ".summary");
+		file.deleteOnExit();
+		AlignmentPosteriorSummariser summariser = new AlignmentPosteriorSummariser();
+		summariser.initByName("alignment", a, "file", file.getPath());
+		PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+		State state = new State();
+		state.initByName("stateNode", a);
+		state.initialise();
+
+		int [][][] counts = new int[taxonCount][siteCount][18];
+		summariser.init(out);
+		for (int k = 0; k < sampleCount; k++) {
+			state.store(k);
+			a.setSiteValue(0, 1, k % 3 == 0 ? 17 : 2);
+			if (k == sampleCount / 2) {
+				a.setSiteValue(2, 1, (a.getSiteValue(2, 1) + 1) % 4);
+			}
+			summariser.log(k, out);
+			for (int i = 0; i < taxonCount; i++) {
+				for (int j = 0; j < siteCount; j++) {
+					counts[i][j][a.getSiteValue(i, j)]++;
+				}
+			}
+		}
+		summariser.close(out);
+
+		for (int i = 0; i < taxonCount; i++) {
+			for (int j = 0; j < siteCount; j++) {
+				for (int code = 0; code < 18; code++) {
+					assertEquals(counts[i][j][code], summariser.getCount(i, j, code));
+				}
+			}
+		}
+		assertEquals(2, summariser.getMAPCode(0, 1));
+		List<String> lines = java.nio.file.Files.readAllLines(file.toPath());
+		// only the two characters that changed have marginal probabilities
+		assertEquals(2, lines.size() - lines.indexOf("# marginal probabilities of characters that changed") - 1);
+	}
+
+	@Test
+	public void testLogSummariser() throws Exception {
+		testLogSummariser(false);
+		testLogSummariser(true);
+	}
+
+	private void testLogSummariser(boolean logCharacters) throws Exception {
+		int taxonCount = 9, siteCount = 40, sampleCount = 120;
+		Random rand = new Random(11);
+		MutableAlignment a = getRandomAlignment(taxonCount, siteCount);
+
+		// write a log the way BEAST's Logger does, with another column in front
+		File file = File.createTempFile("alignment", ".log");
+		file.deleteOnExit();
+		Loggable loggable = a;
+		if (logCharacters) {
+			MutableAlignmentLogger logger = new MutableAlignmentLogger();
+			logger.initByName("alignment", a);
+			loggable = logger;
+		}
+		int [][][] counts = new int[taxonCount][siteCount][18];
+		try (PrintStream out = new PrintStream(file)) {
+			out.println("# alignment log");
+			out.print("Sample\tposterior\t");
+			loggable.init(out);
+			out.println();
+			for (int k = 0; k < sampleCount; k++) {
+				for (int j = 0; j < 3; j++) {
+					a.setSiteValue(rand.nextInt(taxonCount), rand.nextInt(5), rand.nextInt(4));
+				}
+				out.print(k + "\t" + -rand.nextDouble() + "\t");
+				loggable.log(k, out);
+				out.println();
+				if (k >= sampleCount / 10) {
+					for (int i = 0; i < taxonCount; i++) {
+						for (int j = 0; j < siteCount; j++) {
+							counts[i][j][a.getSiteValue(i, j)]++;
+						}
+					}
+				}
+			}
+		}
+
+		File summary = File.createTempFile("alignment", ".summary");
+		summary.deleteOnExit();
+		AlignmentLogSummariser summariser = new AlignmentLogSummariser();
+		// batches of a few samples; burn-in as a percentage, or as a count so the log is read once
+		summariser.initByName("log", file.getPath(), "out", summary.getPath(), "threads", 3, "batchSize", 1, "blockSize", 2,
+				logCharacters ? "burninSamples" : "burnin", logCharacters ? sampleCount / 10 : 10);
+		summariser.run();
+
+		assertEquals(a.getTaxaNames(), summariser.getTaxaNames());
+		assertEquals(siteCount, summariser.getSiteCount());
+		assertEquals(sampleCount / 10, summariser.getBurninCount());
+		assertEquals(sampleCount - sampleCount / 10, summariser.getSampleCount());
+		for (int i = 0; i < taxonCount; i++) {
+			for (int j = 0; j < siteCount; j++) {
+				int map = 0;
+				for (int code = 0; code < 4; code++) {
+					int value = logCharacters ? code : a.getDataType().getCharacter(code).charAt(0);
+					assertEquals(counts[i][j][code], summariser.getCount(i, j, value));
+					if (counts[i][j][code] > counts[i][j][map]) {
+						map = code;
+					}
+				}
+				assertEquals(counts[i][j][map], summariser.getCount(i, j, summariser.getMAP(i, j)));
+				int [] set = summariser.getCredibleSet(i, j);
+				int covered = 0;
+				for (int value : set) {
+					covered += summariser.getCount(i, j, value);
+				}
+				assertTrue(covered >= 0.95 * summariser.getSampleCount());
+			}
+		}
+		List<String> lines = java.nio.file.Files.readAllLines(summary.toPath());
+		assertTrue(lines.get(2).startsWith("taxon0\t"));
+	}
+
+	@Test
+	public void testLogSummariserBinary() throws Exception {
+		// sequences of digits, and taxon names ending in digits, both guessed and given
+		for (boolean logCharacters : new boolean[] {false, true}) {
+			testLogSummariserBinary(logCharacters, null);
+			testLogSummariserBinary(logCharacters, "x0,x1,x2,x3,x4,x5");
+		}
+	}
+
+	private void testLogSummariserBinary(boolean logCharacters, String taxa) throws Exception {
+		int taxonCount = 6, siteCount = 30, sampleCount = 50;
+		Random rand = new Random(13);
+		int [][] sequences = new int[taxonCount][siteCount];
+		int [][][] counts = new int[taxonCount][siteCount][2];
+
+		// binary data logged the way MutableAlignment or MutableAlignmentLogger does
+		File file = File.createTempFile("alignment", ".log");
+		file.deleteOnExit();
+		try (PrintStream out = new PrintStream(file)) {
+			out.print("Sample\tposterior\t");
+			for (int i = 0; i < taxonCount; i++) {
+				for (int j = 0; j < (logCharacters ? siteCount : 1); j++) {
+					out.print("x" + i + (logCharacters ? j : "") + "\t");
+				}
+			}
+			out.println();
+			for (int k = 0; k < sampleCount; k++) {
+				sequences[rand.nextInt(taxonCount)][rand.nextInt(siteCount)] = rand.nextInt(2);
+				out.print(k + "\t" + -rand.nextDouble() + "\t");
+				for (int i = 0; i < taxonCount; i++) {
+					for (int j = 0; j < siteCount; j++) {
+						out.print(sequences[i][j]);
+						if (logCharacters) {
+							out.print('\t');
+						}
+						counts[i][j][sequences[i][j]]++;
+					}
+					if (!logCharacters) {
+						out.print('\t');
+					}
+				}
+				out.println();
+			}
+		}
+
+		File summary = File.createTempFile("alignment", ".summary");
+		summary.deleteOnExit();
+		AlignmentLogSummariser summariser = new AlignmentLogSummariser();
+		summariser.initByName("log", file.getPath(), "out", summary.getPath(), "burninSamples", 0);
+		if (taxa != null) {
+			summariser.initByName("taxa", taxa);
+		}
+		summariser.run();
+
+		assertEquals(List.of("x0", "x1", "x2", "x3", "x4", "x5"), summariser.getTaxaNames());
+		assertEquals(siteCount, summariser.getSiteCount());
+		assertEquals(sampleCount, summariser.getSampleCount());
+		for (int i = 0; i < taxonCount; i++) {
+			for (int j = 0; j < siteCount; j++) {
+				for (int code = 0; code < 2; code++) {
+					assertEquals(counts[i][j][code], summariser.getCount(i, j, logCharacters ? code : '0' + code));
+				}
+			}
+		}
+	}
+
+	private static MutableAlignment getRandomAlignment(int taxonCount, int siteCount) {
+		Random rand = new Random(5);
+		List<Sequence> sequences = new ArrayList<>();
+		for (int i = 0; i < taxonCount; i++) {
+			StringBuilder b = new StringBuilder();
+			for (int j = 0; j < siteCount; j++) {
+				b.append("ACGT".charAt(rand.nextInt(4)));
+			}
+			sequences.add(new Sequence("taxon" + i, b.toString()));
+		}
+		MutableAlignment a = new MutableAlignment();
+		a.initByName("sequence", sequences, "dataType", "nucleotide");
+		return a;
+	}
+}
@@ -1,11 +1,27 @@
 package test.mutablealignment;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.junit.jupiter.api.Test;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
 
 import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.alignment.Sequence;
+import mutablealignment.IntArraySiteStorage;
 import mutablealignment.MutableAlignment;
 
 public class MutableAlignmentTest {
@@ -30,6 +46,487 @@ public class MutableAlignmentTest {
 		assertAlignmentsAreEqual(a, e);
 	}
 	
+	@Test
+	public void testStorageRestore() throws Exception {
+		testStorageRestore("packed");
+		testStorageRestore("offHeap");
+	}
+
+	private void testStorageRestore(String storage) throws Exception {
+		MutableAlignment a = getAlignment(human, chimp, bonobo, gorilla, orangutan, siamang);
+		a.storageInput.setValue(storage, a);
+		a.initAndValidate();
+		assertAlignmentsAreEqual(a, getAlignment1());
+
+		a.setSiteValue(1, 1, 0);
+		assertAlignmentsAreEqual(a, getAlignment2());
+		a.setSiteValuesByTaxon(2, new int[] {3,2,1});
+		assertAlignmentsAreEqual(a, getAlignment3());
+		a.setSiteValuesBySite(0, new int[] {1,1,1,1,1,1});
+		assertAlignmentsAreEqual(a, getAlignment4());
+
+		// ambiguous code that was not in the data (forces packed storage to widen)
+		a.setSiteValue(0, 2, 17);
+		assertEquals(17, a.getSiteValue(0, 2));
+		assertEquals(1, a.getSiteValue(5, 0));
+
+		a.restore();
+		assertAlignmentsAreEqual(a, getAlignment1());
+	}
+	
+
+	@Test
+	public void testDoubleBuffer() throws Exception {
+		for (String storage : new String[] {"intArray", "packed", "offHeap"}) {
+			MutableAlignment a = getAlignment(human, chimp, bonobo, gorilla, orangutan, siamang);
+			a.storageInput.setValue(storage, a);
+			a.doubleBufferInput.setValue(true, a);
+			a.initAndValidate();
+
+			a.setSiteValue(1, 1, 0);
+			a.setSiteValues(new int[][]{{2,1,2,1,2,1},{1,2,1,2,1,2},{2,1,2,1,2,1}});
+			assertAlignmentsAreEqual(a, getAlignment5());
+			a.setSiteValue(1, 1, 0);
+			a.setSiteValues(new int[][]{{2,1,2,1,2,1},{1,2,1,2,1,2},{2,1,2,1,2,1}});
+			assertAlignmentsAreEqual(a, getAlignment5());
+			a.restore();
+			assertAlignmentsAreEqual(a, getAlignment1());
+
+			// standby buffer holds stale values now, which should not show up
+			a.setSiteValue(1, 1, 0);
+			a.setSiteValue(2, 2, 1);
+			a.setSiteValuesByTaxon(2, new int[] {3,2,1});
+			a.setSiteValuesBySite(0, new int[] {1,1,1,1,1,1});
+			assertAlignmentsAreEqual(a, getAlignment4());
+			a.restore();
+			assertAlignmentsAreEqual(a, getAlignment1());
+		}
+	}
+
+	@Test
+	public void testTaxonMajorMirror() throws Exception {
+		int taxonCount = 20, siteCount = 2000, proposals = 200;
+		int [][] finalSequences = new int[2][];
+		for (int k = 0; k < 2; k++) {
+			MutableAlignment a = getRandomAlignment(taxonCount, siteCount);
+			a.taxonMajorMirrorInput.setValue(k == 1, a);
+			a.initAndValidate();
+
+			// per-taxon proposals: read sequence, change a few sites, write back, reject
+			Random rand = new Random(17);
+			int [] seq = new int[siteCount];
+			for (int i = 0; i < proposals; i++) {
+				int taxonNr = rand.nextInt(taxonCount);
+				a.getSiteValuesByTaxon(taxonNr, seq);
+				for (int j = 0; j < 10; j++) {
+					seq[rand.nextInt(siteCount)] = rand.nextInt(4);
+				}
+				a.setSiteValuesByTaxon(taxonNr, seq);
+				assertArrayEquals(seq, a.getSiteValuesByTaxon(taxonNr));
+				assertEquals(seq[siteCount / 2], a.getSiteValuesBySite(siteCount / 2)[taxonNr]);
+				a.restore();
+			}
+			finalSequences[k] = a.getSiteValuesByTaxon(taxonCount / 2);
+		}
+		assertArrayEquals(finalSequences[0], finalSequences[1]);
+	}
+
+	@Test
+	public void testDirtyTracking() throws Exception {
+		MutableAlignment a = getAlignment1();
+		int [] dirty = new int[6];
+		assertEquals(0, a.getDirtySequenceIndices(dirty));
+
+		a.setSiteValue(4, 2, 0);
+		a.setSiteValue(1, 0, 3);
+		a.setSiteValue(4, 1, 3);
+		assertEquals(2, a.getDirtySequenceIndices(dirty));
+		assertEquals(1, dirty[0]);
+		assertEquals(4, dirty[1]);
+		assertEquals(1, a.getDirtySiteFrom(4));
+		assertEquals(3, a.getDirtySiteTo(4));
+		assertEquals(3, a.getDirtySiteIndices(new int[3]));
+
+		a.restore();
+		assertEquals(0, a.getDirtySequenceIndices(dirty));
+		assertEquals(0, a.getDirtySiteCount());
+
+		a.setSiteValuesBySite(2, new int[] {1,1,1,1,1,1});
+		assertEquals(6, a.getDirtySequenceIndices(dirty));
+		assertEquals(2, a.getDirtySiteFrom(0));
+		assertEquals(3, a.getDirtySiteTo(5));
+		assertEquals(1, a.getDirtySiteCount());
+		a.restore();
+	}
+
+	@Test
+	public void testPatternCompression() throws Exception {
+		// two characters over five taxa gives at most 32 distinct columns
+		Random rand = new Random(7);
+		List<Sequence> sequences = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			StringBuilder b = new StringBuilder();
+			for (int j = 0; j < 200; j++) {
+				b.append("AC".charAt(rand.nextInt(2)));
+			}
+			sequences.add(new Sequence("taxon" + i, b.toString()));
+		}
+		MutableAlignment a = new MutableAlignment();
+		a.initByName("sequence", sequences, "dataType", "nucleotide", "compressPatterns", true, "patternCapacity", 64);
+		assertEquals(64, a.getPatternCount());
+		assertPatternsMatchSites(a);
+		int [][] original = new int[200][];
+		for (int j = 0; j < 200; j++) {
+			original[j] = a.getSiteValuesBySite(j);
+		}
+
+		int [] seq = new int[200];
+		for (int i = 0; i < 200; i++) {
+			switch (i % 3) {
+			case 0:
+				a.setSiteValue(rand.nextInt(5), rand.nextInt(200), rand.nextInt(2));
+				break;
+			case 1:
+				for (int j = 0; j < 200; j++) {
+					seq[j] = rand.nextInt(2);
+				}
+				a.setSiteValuesByTaxon(rand.nextInt(5), seq);
+				break;
+			default:
+				a.setSiteValuesBySite(rand.nextInt(200), new int[] {rand.nextInt(2), 0, 1, rand.nextInt(2), 0});
+			}
+			assertPatternsMatchSites(a);
+			a.restore();
+			assertPatternsMatchSites(a);
+		}
+		for (int j = 0; j < 200; j++) {
+			assertArrayEquals(original[j], a.getSiteValuesBySite(j));
+		}
+	}
+
+	@Test
+	public void testPatternCapacityGrows() throws Exception {
+		// all sites start out the same, so there is room for 17 patterns only
+		List<Sequence> sequences = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			sequences.add(new Sequence("taxon" + i, "A".repeat(300)));
+		}
+		MutableAlignment a = new MutableAlignment();
+		a.initByName("sequence", sequences, "dataType", "nucleotide", "compressPatterns", true);
+		assertEquals(17, a.getPatternCount());
+
+		Random rand = new Random(11);
+		int [] seq = new int[300];
+		for (int j = 0; j < 300; j++) {
+			seq[j] = rand.nextInt(4);
+		}
+		a.setSiteValuesByTaxon(2, seq);
+		assertEquals(17, a.getPatternCount());
+		a.setSiteValuesByTaxon(3, seq.clone());
+		assertEquals(17, a.getPatternCount());
+		for (int j = 0; j < 300; j++) {
+			seq[j] = rand.nextInt(4);
+		}
+		a.setSiteValuesByTaxon(4, seq);
+		assertTrue(a.getPatternCount() > 17);
+		assertPatternsMatchSites(a);
+		a.restore();
+		assertPatternsMatchSites(a);
+		for (int j = 0; j < 300; j++) {
+			assertArrayEquals(new int[5], a.getSiteValuesBySite(j));
+		}
+
+		int [][] values = new int[300][5];
+		for (int j = 0; j < 300; j++) {
+			for (int i = 0; i < 5; i++) {
+				values[j][i] = rand.nextInt(4);
+			}
+		}
+		a.setSiteValue(0, 0, 3);
+		a.setSiteValues(values);
+		a.setSiteValuesBySite(1, new int[] {3, 3, 3, 3, 3});
+		values[1] = new int[] {3, 3, 3, 3, 3};
+		assertPatternsMatchSites(a);
+		for (int j = 0; j < 300; j++) {
+			assertArrayEquals(values[j], a.getSiteValuesBySite(j));
+		}
+		a.restore();
+		assertPatternsMatchSites(a);
+		for (int j = 0; j < 300; j++) {
+			assertArrayEquals(new int[5], a.getSiteValuesBySite(j));
+		}
+	}
+
+	private void assertPatternsMatchSites(MutableAlignment a) {
+		int [] weights = new int[a.getPatternCount()];
+		for (int j = 0; j < a.getSiteCount(); j++) {
+			int patternNr = a.getPatternIndex(j);
+			assertArrayEquals(a.getSiteValuesBySite(j), a.getPattern(patternNr));
+			weights[patternNr]++;
+		}
+		for (int i = 0; i < weights.length; i++) {
+			assertEquals(weights[i], a.getPatternWeight(i));
+			for (int k = 0; k < i; k++) {
+				assertTrue(weights[i] == 0 || weights[k] == 0 || !java.util.Arrays.equals(a.getPattern(i), a.getPattern(k)));
+			}
+		}
+	}
+
+	@Test
+	public void testMutabilityMask() throws Exception {
+		Random rand = new Random(3);
+		List<Sequence> sequences = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			StringBuilder b = new StringBuilder();
+			for (int j = 0; j < 200; j++) {
+				b.append(j % 40 == i ? '?' : "AC".charAt(rand.nextInt(2)));
+			}
+			sequences.add(new Sequence("taxon" + i, b.toString()));
+		}
+		MutableAlignment a = new MutableAlignment();
+		a.initByName("sequence", sequences, "dataType", "nucleotide", "mutableAmbiguitiesOnly", true);
+		// 25 sites with a missing character, the others compressed into at most 32 patterns
+		int coldPatternCount = a.getColdPatternCount();
+		assertTrue(coldPatternCount > 0 && coldPatternCount <= 32);
+		assertEquals(coldPatternCount + 25, a.getPatternCount());
+		int [] weights = new int[a.getPatternCount()];
+		for (int j = 0; j < 200; j++) {
+			assertArrayEquals(a.getSiteValuesBySite(j), a.getPattern(a.getPatternIndex(j)));
+			assertEquals(j % 40 < 5, a.isMutableSite(j));
+			weights[a.getPatternIndex(j)]++;
+		}
+		for (int k = 0; k < weights.length; k++) {
+			assertEquals(weights[k], a.getPatternWeight(k));
+		}
+		assertTrue(a.isMutable(2, 42));
+		assertTrue(!a.isMutable(1, 42));
+		assertThrows(IllegalArgumentException.class, () -> a.setSiteValue(1, 42, 0));
+
+		int [] dirtyPatterns = new int[a.getPatternCount()];
+		a.setSiteValue(2, 42, 1);
+		assertEquals(1, a.getDirtyPatternIndices(dirtyPatterns));
+		assertEquals(a.getPatternIndex(42), dirtyPatterns[0]);
+		assertEquals(1, a.getPattern(2, dirtyPatterns[0]));
+		a.restore();
+
+		// a whole sequence only dirties hot patterns
+		int [] seq = a.getSiteValuesByTaxon(3);
+		seq[123] = 0;
+		a.setSiteValuesByTaxon(3, seq);
+		assertEquals(25, a.getDirtyPatternIndices(dirtyPatterns));
+		assertTrue(dirtyPatterns[0] >= coldPatternCount);
+		int [] patternValues = new int[a.getPatternCount()];
+		a.getPatternValuesByTaxon(3, patternValues);
+		assertEquals(0, patternValues[a.getPatternIndex(123)]);
+		seq[124] = 1 - seq[124];
+		assertThrows(IllegalArgumentException.class, () -> a.setSiteValuesByTaxon(3, seq));
+		a.restore();
+
+		MutableAlignment b = new MutableAlignment();
+		b.initByName("sequence", sequences, "dataType", "nucleotide", "mutableSites", "1-10, 20");
+		assertEquals(11, b.getPatternCount() - b.getColdPatternCount());
+		assertTrue(b.isMutable(4, 19) && !b.isMutable(4, 20));
+
+		// a matrix file left by an earlier run has the missing character resolved,
+		// which should still be allowed to change
+		File file = File.createTempFile("alignment", ".matrix");
+		file.delete();
+		file.deleteOnExit();
+		MutableAlignment c = new MutableAlignment();
+		c.initByName("sequence", sequences, "dataType", "nucleotide", "mutableAmbiguitiesOnly", true,
+				"storage", "offHeap", "matrixFile", file.getPath());
+		c.setSiteValue(2, 42, 1);
+		MutableAlignment d = new MutableAlignment();
+		d.initByName("sequence", sequences, "dataType", "nucleotide", "mutableAmbiguitiesOnly", true,
+				"storage", "offHeap", "matrixFile", file.getPath());
+		assertEquals(1, d.getSiteValue(2, 42));
+		assertTrue(d.isMutable(2, 42));
+		assertEquals(a.getPatternCount(), d.getPatternCount());
+	}
+
+	@Test
+	public void testMatrixFileMustMatchData() throws Exception {
+		File file = File.createTempFile("alignment", ".matrix");
+		file.delete();
+		file.deleteOnExit();
+		MutableAlignment a = getMappedAlignment(file, chimp);
+		a.setSiteValue(1, 2, 3);
+
+		// the same data picks up the edited characters
+		MutableAlignment b = getMappedAlignment(file, chimp);
+		assertEquals(3, b.getSiteValue(1, 2));
+
+		// other characters or taxa with the same dimensions are rejected
+		Sequence otherChimp = new Sequence("1chimp", "AAA");
+		assertThrows(IllegalArgumentException.class, () -> getMappedAlignment(file, otherChimp));
+		Sequence renamedChimp = new Sequence("1pan", "AGA");
+		assertThrows(IllegalArgumentException.class, () -> getMappedAlignment(file, renamedChimp));
+	}
+
+	private static MutableAlignment getMappedAlignment(File file, Sequence chimp) {
+		MutableAlignment data = new MutableAlignment();
+		data.initByName("sequence", human, "sequence", chimp, "sequence", bonobo, "sequence", gorilla, "sequence", orangutan, "sequence", siamang,
+				"dataType", "nucleotide", "storage", "offHeap", "matrixFile", file.getPath());
+		return data;
+	}
+
+	@Test
+	public void testCopyOnWriteChains() throws Exception {
+		int taxonCount = 100, siteCount = 20000, chainCount = 4;
+		for (String storage : new String[] {"intArray", "copyOnWrite"}) {
+			MutableAlignment a = getRandomAlignment(taxonCount, siteCount);
+			a.storageInput.setValue(storage, a);
+			a.initAndValidate();
+			a.setSiteValue(0, 0, 3);
+
+			// heated chains start as copies of the same state
+			MutableAlignment [] chains = new MutableAlignment[chainCount];
+			for (int i = 0; i < chainCount; i++) {
+				chains[i] = (MutableAlignment) a.copy();
+				assertEquals(a.getTaxaNames(), chains[i].getTaxaNames());
+				assertEquals(a.getPatternCount(), chains[i].getPatternCount());
+				assertArrayEquals(a.getSiteValuesBySite(siteCount - 1), chains[i].getSiteValuesBySite(siteCount - 1));
+			}
+
+			// each chain changes a few characters, which should not show up in the source or other chains
+			Random rand = new Random(11);
+			int [][] edits = new int[chainCount * 10][];
+			for (int i = 0; i < chainCount; i++) {
+				for (int k = 0; k < 10; k++) {
+					int taxonNr = rand.nextInt(taxonCount), siteNr = rand.nextInt(siteCount);
+					edits[i * 10 + k] = new int[] {i, taxonNr, siteNr, a.getSiteValue(taxonNr, siteNr)};
+					chains[i].setSiteValue(taxonNr, siteNr, (a.getSiteValue(taxonNr, siteNr) + 1 + rand.nextInt(3)) % 4);
+				}
+			}
+			for (int [] edit : edits) {
+				int taxonNr = edit[1], siteNr = edit[2], original = edit[3];
+				assertEquals(original, a.getSiteValue(taxonNr, siteNr));
+				for (int i = 0; i < chainCount; i++) {
+					if (!editedBy(edits, i, taxonNr, siteNr)) {
+						assertEquals(original, chains[i].getSiteValue(taxonNr, siteNr));
+					} else {
+						assertTrue(original != chains[i].getSiteValue(taxonNr, siteNr));
+					}
+				}
+			}
+			long bytes = a.getStorage().getMemoryFootprint();
+			for (MutableAlignment chain : chains) {
+				bytes += chain.getStorage().getMemoryFootprint();
+			}
+
+			// swapping states between chains, after which the two do not affect each other either
+			int [] expected = chains[1].getSiteValuesByTaxon(5);
+			chains[0].assignFromFragile(chains[1]);
+			assertArrayEquals(expected, chains[0].getSiteValuesByTaxon(5));
+			chains[0].setSiteValue(5, 7, (expected[7] + 1) % 4);
+			assertArrayEquals(expected, chains[1].getSiteValuesByTaxon(5));
+
+			assertEquals(3, a.getSiteValue(0, 0));
+			if (storage.equals("copyOnWrite")) {
+				assertTrue(bytes < 2 * IntArraySiteStorage.estimateMemoryFootprint(taxonCount, siteCount));
+			}
+		}
+
+		// double buffered copies share blocks with the source for their standby copy as well
+		MutableAlignment a = getRandomAlignment(taxonCount, 500);
+		a.storageInput.setValue("copyOnWrite", a);
+		a.doubleBufferInput.setValue(true, a);
+		a.initAndValidate();
+		int [] expected = a.getSiteValuesByTaxon(2);
+		MutableAlignment copy = (MutableAlignment) a.copy();
+		copy.setSiteValues(new int[500][taxonCount]);
+		assertEquals(0, copy.getSiteValue(2, 0));
+		assertArrayEquals(expected, a.getSiteValuesByTaxon(2));
+		copy.restore();
+		assertArrayEquals(expected, copy.getSiteValuesByTaxon(2));
+	}
+
+	/** whether chain made one of the edits to the character of taxon at site **/
+	private static boolean editedBy(int [][] edits, int chainNr, int taxonNr, int siteNr) {
+		for (int [] edit : edits) {
+			if (edit[0] == chainNr && edit[1] == taxonNr && edit[2] == siteNr) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void testBinaryState() throws Exception {
+		int taxonCount = 50, siteCount = 2000;
+		MutableAlignment a = getRandomAlignment(taxonCount, siteCount);
+		// gap and ambiguity
+		a.setSiteValue(3, 7, 17);
+		a.setSiteValue(4, 7, 5);
+
+		int [] length = new int[2];
+		for (int k = 0; k < 2; k++) {
+			a.stateEncodingInput.setValue(k == 0 ? "text" : "binary", a);
+			MutableAlignment b = getRandomAlignment(taxonCount, siteCount);
+			b.setSiteValues(new int[siteCount][taxonCount]);
+			String xml = a.toXML();
+			length[k] = xml.length();
+			b.fromXML(parse(xml));
+			for (int i = 0; i < taxonCount; i++) {
+				assertArrayEquals(a.getSiteValuesByTaxon(i), b.getSiteValuesByTaxon(i));
+			}
+		}
+		assertTrue(length[1] < length[0]);
+	}
+
+	static Node parse(String xml) throws Exception {
+		DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+		return builder.parse(new InputSource(new StringReader(xml))).getDocumentElement();
+	}
+
+	@Test
+	public void testProposalAllocation() throws Exception {
+		MutableAlignment a = getRandomAlignment(20, 500);
+		assumeTrue(ThreadAllocation.isAvailable(), "allocated bytes per thread not available");
+		int [] seq = a.getSiteValuesByTaxon(3);
+		int [] site = a.getSiteValuesBySite(7).clone();
+		int [][] all = new int[500][20];
+
+		// warm up, so journal arrays reach their steady state size
+		doProposals(a, 1000, seq, site, all);
+
+		int proposals = 10000;
+		long start = ThreadAllocation.getAllocatedBytes();
+		doProposals(a, proposals, seq, site, all);
+		long allocated = ThreadAllocation.getAllocatedBytes() - start;
+		// anything allocated per proposal would be at least 16 bytes
+		assertTrue(allocated < proposals, "proposals allocated " + allocated + " bytes");
+	}
+
+	static void doProposals(MutableAlignment a, int proposals, int [] seq, int [] site, int [][] all) {
+		for (int i = 0; i < proposals; i++) {
+			a.setSiteValue(i % 20, i % 500, i % 4);
+			a.setSiteValue((i + 1) % 20, i % 500, (i + 1) % 4);
+			if (i % 10 == 0) {
+				a.setSiteValuesByTaxon(3, seq);
+				a.setSiteValuesBySite(7, site);
+			}
+			if (i % 100 == 0) {
+				a.setSiteValues(all);
+			}
+			a.restore();
+		}
+	}
+
+	static MutableAlignment getRandomAlignment(int taxonCount, int siteCount) {
+		Random rand = new Random(42);
+		List<Sequence> sequences = new ArrayList<>();
+		for (int i = 0; i < taxonCount; i++) {
+			StringBuilder b = new StringBuilder();
+			for (int j = 0; j < siteCount; j++) {
+				b.append("ACGT".charAt(rand.nextInt(4)));
+			}
+			sequences.add(new Sequence("taxon" + i, b.toString()));
+		}
+		MutableAlignment data = new MutableAlignment();
+		data.initByName("sequence", sequences, "dataType", "nucleotide");
+		return data;
+	}
 
 	static Sequence human = new Sequence("0human",         "AGA");
     static Sequence chimp = new Sequence("1chimp",         "AGA");
@@ -0,0 +1,167 @@
+package test.mutablealignment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import mutablealignment.CopyOnWriteSiteStorage;
+import mutablealignment.IntArraySiteStorage;
+import mutablealignment.OffHeapSiteStorage;
+import mutablealignment.PackedSiteStorage;
+import mutablealignment.SiteStorage;
+
+public class SiteStorageTest {
+
+	@Test
+	public void testPackedEqualsIntArray() {
+		int taxonCount = 37, siteCount = 101;
+		Random rand = new Random(127);
+		SiteStorage ints = new IntArraySiteStorage(new int[siteCount][taxonCount], taxonCount);
+		PackedSiteStorage packed = new PackedSiteStorage(taxonCount, siteCount, 4);
+		assertEquals(2, packed.getBitsPerValue());
+
+		for (int i = 0; i < taxonCount; i++) {
+			for (int j = 0; j < siteCount; j++) {
+				int code = rand.nextInt(4);
+				ints.setSiteValue(i, j, code);
+				packed.setSiteValue(i, j, code);
+			}
+		}
+		assertStoragesAreEqual(ints, packed);
+
+		// gaps and ambiguities grow the dictionary: 18 nucleotide codes need 5 bits
+		int [] site = new int[taxonCount];
+		for (int i = 0; i < taxonCount; i++) {
+			site[i] = i % 18;
+		}
+		ints.setSiteValuesBySite(3, site);
+		packed.setSiteValuesBySite(3, site);
+		assertStoragesAreEqual(ints, packed);
+		assertEquals(5, packed.getBitsPerValue());
+
+		int [] seq = new int[siteCount];
+		for (int j = 0; j < siteCount; j++) {
+			seq[j] = rand.nextInt(18);
+		}
+		ints.setSiteValuesByTaxon(36, seq);
+		packed.setSiteValuesByTaxon(36, seq);
+		assertStoragesAreEqual(ints, packed);
+	}
+
+	@Test
+	public void testOffHeapEqualsIntArray() throws Exception {
+		int taxonCount = 11, siteCount = 23;
+		Random rand = new Random(127);
+		SiteStorage ints = new IntArraySiteStorage(new int[siteCount][taxonCount], taxonCount);
+		SiteStorage offHeap = new OffHeapSiteStorage(taxonCount, siteCount, 17);
+		File file = File.createTempFile("matrix", ".bin");
+		file.delete();
+		file.deleteOnExit();
+		OffHeapSiteStorage mapped = new OffHeapSiteStorage(taxonCount, siteCount, 17, 42, file);
+		assertTrue(!mapped.isInitialised());
+
+		for (int i = 0; i < taxonCount; i++) {
+			for (int j = 0; j < siteCount; j++) {
+				int code = rand.nextInt(18);
+				ints.setSiteValue(i, j, code);
+				offHeap.setSiteValue(i, j, code);
+				mapped.setSiteValue(i, j, code);
+			}
+		}
+		int [] seq = new int[siteCount];
+		for (int j = 0; j < siteCount; j++) {
+			seq[j] = rand.nextInt(18);
+		}
+		ints.setSiteValuesByTaxon(5, seq);
+		offHeap.setSiteValuesByTaxon(5, seq);
+		mapped.setSiteValuesByTaxon(5, seq);
+		assertStoragesAreEqual(ints, offHeap);
+		assertStoragesAreEqual(ints, mapped);
+		assertEquals(taxonCount * siteCount, offHeap.getMemoryFootprint());
+
+		// content of an existing file is picked up when it is mapped again
+		mapped.force();
+		OffHeapSiteStorage reopened = new OffHeapSiteStorage(taxonCount, siteCount, 17, 42, file);
+		assertTrue(reopened.isInitialised());
+		assertStoragesAreEqual(ints, reopened);
+
+		// but not for other data or dimensions
+		assertThrows(IOException.class, () -> new OffHeapSiteStorage(taxonCount, siteCount, 17, 43, file));
+		assertThrows(IOException.class, () -> new OffHeapSiteStorage(taxonCount, siteCount + 1, 17, 42, file));
+	}
+
+	@Test
+	public void testCopyOnWrite() {
+		int taxonCount = 7, siteCount = 100;
+		Random rand = new Random(127);
+		SiteStorage ints = new IntArraySiteStorage(new int[siteCount][taxonCount], taxonCount);
+		CopyOnWriteSiteStorage cow = new CopyOnWriteSiteStorage(taxonCount, siteCount, 16);
+		assertEquals(7, cow.getBlockCount());
+		for (int i = 0; i < taxonCount; i++) {
+			for (int j = 0; j < siteCount; j++) {
+				int code = rand.nextInt(4);
+				ints.setSiteValue(i, j, code);
+				cow.setSiteValue(i, j, code);
+			}
+		}
+		assertStoragesAreEqual(ints, cow);
+
+		// copies share all blocks until written to
+		CopyOnWriteSiteStorage copy = cow.copy();
+		assertEquals(7, cow.getSharedBlockCount());
+		assertEquals(cow.getMemoryFootprint(), copy.getMemoryFootprint());
+		copy.setSiteValue(3, 40, 17);
+		assertEquals(6, cow.getSharedBlockCount());
+		assertEquals(6, copy.getSharedBlockCount());
+		assertStoragesAreEqual(ints, cow);
+		ints.setSiteValue(3, 40, 17);
+		assertStoragesAreEqual(ints, copy);
+
+		// a sequence touches all blocks
+		int [] seq = new int[siteCount];
+		cow.setSiteValuesByTaxon(2, seq);
+		assertEquals(0, cow.getSharedBlockCount());
+
+		cow.assignFrom(copy);
+		assertEquals(7, copy.getSharedBlockCount());
+		assertStoragesAreEqual(ints, cow);
+	}
+
+	@Test
+	public void testMemoryFootprint() {
+		int taxonCount = 1000, siteCount = 10000;
+		long intBytes = IntArraySiteStorage.estimateMemoryFootprint(taxonCount, siteCount);
+		PackedSiteStorage packed = new PackedSiteStorage(taxonCount, siteCount, 4, 17);
+		long packedBytes = packed.getMemoryFootprint();
+		assertEquals(3, packed.getBitsPerValue());
+		assertTrue(packedBytes * 6 < intBytes);
+	}
+
+	private void assertStoragesAreEqual(SiteStorage a, SiteStorage b) {
+		int [] valuesA = new int[a.getSiteCount()];
+		int [] valuesB = new int[b.getSiteCount()];
+		for (int i = 0; i < a.getTaxonCount(); i++) {
+			a.getSiteValuesByTaxon(i, valuesA);
+			b.getSiteValuesByTaxon(i, valuesB);
+			for (int j = 0; j < a.getSiteCount(); j++) {
+				assertEquals(valuesA[j], valuesB[j]);
+				assertEquals(a.getSiteValue(i, j), b.getSiteValue(i, j));
+			}
+		}
+		valuesA = new int[a.getTaxonCount()];
+		valuesB = new int[b.getTaxonCount()];
+		for (int j = 0; j < a.getSiteCount(); j++) {
+			a.getSiteValuesBySite(j, valuesA);
+			b.getSiteValuesBySite(j, valuesB);
+			for (int i = 0; i < a.getTaxonCount(); i++) {
+				assertEquals(valuesA[i], valuesB[i]);
+			}
+		}
+	}
+}
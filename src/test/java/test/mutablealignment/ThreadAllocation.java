@@ -0,0 +1,48 @@
+package test.mutablealignment;
+
+import java.lang.reflect.Method;
+
+/**
+ * Bytes allocated by the current thread, for tests that check a code path does
+ * not allocate. Looked up by reflection, since the module does not read
+ * java.management and com.sun.management is not available on every JVM.
+ **/
+final class ThreadAllocation {
+	private static final Object bean;
+	private static final Method method;
+
+	static {
+		Object b = null;
+		Method m = null;
+		try {
+			b = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+			m = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			m.invoke(b, Thread.currentThread().threadId());
+		} catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+			b = null;
+			m = null;
+		}
+		bean = b;
+		method = m;
+	}
+
+	private ThreadAllocation() {
+	}
+
+	/** @return true if getAllocatedBytes() can be used **/
+	static boolean isAvailable() {
+		return method != null;
+	}
+
+	/** bytes allocated by the current thread so far, or -1 if the JVM does not tell **/
+	static long getAllocatedBytes() {
+		if (method == null) {
+			return -1;
+		}
+		try {
+			return (Long) method.invoke(bean, Thread.currentThread().threadId());
+		} catch (ReflectiveOperationException e) {
+			return -1;
+		}
+	}
+}